@@ -0,0 +1,123 @@
+import argparse
+import json
+import os
+import resource
+import socket
+import subprocess
+import tempfile
+import time
+
+# Measures how long a room change takes while N other clients are connected to the same server.
+# The other clients each sit in a room of their own, so a room change of the probe client should
+# not depend on N. Build first: mvn clean install
+#
+# python join_benchmark.py --clients 100,1000,5000
+
+JAR = "target/ChatServer-1.0.0-jar-with-dependencies.jar"
+CLIENT_PORT = 4444
+COORDINATION_PORT = 5555
+
+
+class Client:
+    def __init__(self):
+        self.sock = socket.create_connection(("127.0.0.1", CLIENT_PORT))
+        self.file = self.sock.makefile("r")
+
+    def send(self, message):
+        self.sock.sendall((json.dumps(message) + "\n").encode())
+
+    def wait_for(self, message_type):
+        while True:
+            message = json.loads(self.file.readline())
+            if message["type"] == message_type:
+                return message
+
+    def request(self, message, reply_type):
+        self.send(message)
+        return self.wait_for(reply_type)
+
+    def close(self):
+        self.sock.close()
+
+
+def wait_for_port(port, timeout):
+    deadline = time.time() + timeout
+    while time.time() < deadline:
+        try:
+            socket.create_connection(("127.0.0.1", port), timeout=1).close()
+            return True
+        except OSError:
+            time.sleep(0.5)
+    return False
+
+
+def park_clients(count):
+    clients = []
+    for i in range(count):
+        client = Client()
+        client.request({"type": "newidentity", "identity": "idle%05d" % i}, "newidentity")
+        # Own room, so these clients are not members of the rooms the probe moves between.
+        client.request({"type": "createroom", "roomid": "park%05d" % i}, "createroom")
+        clients.append(client)
+    return clients
+
+
+def measure_joins(joins):
+    probe = Client()
+    probe.request({"type": "newidentity", "identity": "probe"}, "newidentity")
+    probe.request({"type": "createroom", "roomid": "probeA"}, "createroom")
+    helper = Client()
+    helper.request({"type": "newidentity", "identity": "helper"}, "newidentity")
+    helper.request({"type": "createroom", "roomid": "probeB"}, "createroom")
+
+    samples = []
+    rooms = ["probeB", "probeA"]
+    for i in range(joins):
+        started = time.perf_counter()
+        probe.request({"type": "joinroom", "roomid": rooms[i % 2]}, "roomchange")
+        samples.append(time.perf_counter() - started)
+    probe.close()
+    helper.close()
+    samples.sort()
+    return sum(samples) / len(samples), samples[int(len(samples) * 0.99) - 1]
+
+
+def run(num_clients, joins, conf_path):
+    server = subprocess.Popen(["java", "-jar", JAR, "s1", conf_path],
+                              stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL)
+    clients = []
+    try:
+        if not wait_for_port(CLIENT_PORT, 30):
+            raise RuntimeError("server did not start")
+        clients = park_clients(num_clients)
+        return measure_joins(joins)
+    finally:
+        for client in clients:
+            client.close()
+        server.kill()
+        server.wait()
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--clients", default="100,1000,5000", help="comma separated client counts")
+    parser.add_argument("--joins", type=int, default=2000)
+    args = parser.parse_args()
+
+    counts = [int(count) for count in args.clients.split(",")]
+    soft, hard = resource.getrlimit(resource.RLIMIT_NOFILE)
+    resource.setrlimit(resource.RLIMIT_NOFILE, (min(hard, max(soft, max(counts) * 2 + 1024)), hard))
+
+    with tempfile.NamedTemporaryFile("w", suffix=".conf", delete=False) as conf:
+        conf.write("s1\t127.0.0.1\t%d\t%d\n" % (CLIENT_PORT, COORDINATION_PORT))
+    try:
+        print("%-10s %14s %14s" % ("clients", "mean join(ms)", "p99 join(ms)"))
+        for count in counts:
+            mean, p99 = run(count, args.joins, conf.name)
+            print("%-10d %14.3f %14.3f" % (count, mean * 1000, p99 * 1000))
+    finally:
+        os.unlink(conf.name)
+
+
+if __name__ == '__main__':
+    main()
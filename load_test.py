@@ -0,0 +1,161 @@
+import argparse
+import json
+import os
+import resource
+import socket
+import subprocess
+import tempfile
+import threading
+import time
+
+# Compares memory and OS thread usage of the server with many idle clients connected,
+# across the client execution modes. While the idle clients stay connected, a few active
+# clients send list requests back to back, and the request throughput and latency are reported.
+# Build first: mvn clean install
+#
+# python load_test.py --clients 10000
+# python load_test.py --clients 10000 --modes platform,virtual   (virtual requires JDK 21)
+
+JAR = "target/ChatServer-1.0.0-jar-with-dependencies.jar"
+CLIENT_PORT = 4444
+COORDINATION_PORT = 5555
+
+# mode -> JVM system properties overriding config.properties
+MODES = {
+    "platform": ["-Dclient.engine=thread", "-Dhandler.threads=platform"],
+    "virtual": ["-Dclient.engine=thread", "-Dhandler.threads=virtual"],
+    "nio": ["-Dclient.engine=nio"],
+}
+
+
+class Client:
+    def __init__(self):
+        self.sock = socket.create_connection(("127.0.0.1", CLIENT_PORT))
+        self.file = self.sock.makefile("r")
+
+    def request(self, message, reply_type):
+        self.sock.sendall((json.dumps(message) + "\n").encode())
+        while True:
+            reply = json.loads(self.file.readline())
+            if reply["type"] == reply_type:
+                return reply
+
+    def close(self):
+        self.sock.close()
+
+
+def read_proc_status(pid):
+    status = {}
+    with open("/proc/%d/status" % pid) as f:
+        for line in f:
+            key, _, value = line.partition(":")
+            status[key] = value.strip()
+    return status
+
+
+def wait_for_port(port, timeout):
+    deadline = time.time() + timeout
+    while time.time() < deadline:
+        try:
+            socket.create_connection(("127.0.0.1", port), timeout=1).close()
+            return True
+        except OSError:
+            time.sleep(0.5)
+    return False
+
+
+def connect_active(num_active):
+    active = []
+    for i in range(num_active):
+        client = Client()
+        client.request({"type": "newidentity", "identity": "active%03d" % i}, "newidentity")
+        active.append(client)
+    return active
+
+
+def measure_requests(active, duration):
+    samples = [[] for _ in active]
+    deadline = time.perf_counter() + duration
+
+    def send_requests(client, latencies):
+        while time.perf_counter() < deadline:
+            started = time.perf_counter()
+            client.request({"type": "list"}, "roomlist")
+            latencies.append(time.perf_counter() - started)
+
+    threads = [threading.Thread(target=send_requests, args=(client, latencies))
+               for client, latencies in zip(active, samples)]
+    started = time.perf_counter()
+    for thread in threads:
+        thread.start()
+    for thread in threads:
+        thread.join()
+    elapsed = time.perf_counter() - started
+
+    latencies = sorted(latency for latencies in samples for latency in latencies)
+    return {
+        "requests_per_s": len(latencies) / elapsed,
+        "p50_ms": latencies[len(latencies) // 2] * 1000,
+        "p99_ms": latencies[int(len(latencies) * 0.99) - 1] * 1000,
+    }
+
+
+def run_mode(mode, num_clients, conf_path, settle, num_active, duration):
+    server = subprocess.Popen(["java"] + MODES[mode] + ["-jar", JAR, "s1", conf_path],
+                              stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL)
+    active = []
+    clients = []
+    try:
+        if not wait_for_port(CLIENT_PORT, 30):
+            raise RuntimeError("server did not start")
+        # Joined before the idle clients connect: clients without a room are informed of every first join.
+        active = connect_active(num_active)
+        baseline = read_proc_status(server.pid)
+        for _ in range(num_clients):
+            clients.append(socket.create_connection(("127.0.0.1", CLIENT_PORT)))
+        time.sleep(settle)
+        loaded = read_proc_status(server.pid)
+        result = {
+            "threads_before": int(baseline["Threads"]),
+            "threads_after": int(loaded["Threads"]),
+            "rss_before_kb": int(baseline["VmRSS"].split()[0]),
+            "rss_after_kb": int(loaded["VmRSS"].split()[0]),
+        }
+        result.update(measure_requests(active, duration))
+        return result
+    finally:
+        for client in active + clients:
+            client.close()
+        server.kill()
+        server.wait()
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--clients", type=int, default=10000)
+    parser.add_argument("--modes", default="platform,virtual,nio")
+    parser.add_argument("--settle", type=int, default=5, help="seconds to wait before sampling")
+    parser.add_argument("--active", type=int, default=20, help="clients sending requests while the others idle")
+    parser.add_argument("--duration", type=int, default=10, help="seconds of requests")
+    args = parser.parse_args()
+
+    soft, hard = resource.getrlimit(resource.RLIMIT_NOFILE)
+    resource.setrlimit(resource.RLIMIT_NOFILE, (min(hard, max(soft, args.clients * 2 + 1024)), hard))
+
+    with tempfile.NamedTemporaryFile("w", suffix=".conf", delete=False) as conf:
+        conf.write("s1\t127.0.0.1\t%d\t%d\n" % (CLIENT_PORT, COORDINATION_PORT))
+    try:
+        print("%-10s %10s %10s %10s %10s %10s %10s %10s" % (
+            "mode", "threads", "threads@N", "rss(MB)", "rss@N(MB)", "req/s@N", "p50(ms)", "p99(ms)"))
+        for mode in args.modes.split(","):
+            result = run_mode(mode, args.clients, conf.name, args.settle, args.active, args.duration)
+            print("%-10s %10d %10d %10.1f %10.1f %10.0f %10.3f %10.3f" % (
+                mode, result["threads_before"], result["threads_after"],
+                result["rss_before_kb"] / 1024.0, result["rss_after_kb"] / 1024.0,
+                result["requests_per_s"], result["p50_ms"], result["p99_ms"]))
+    finally:
+        os.unlink(conf.name)
+
+
+if __name__ == '__main__':
+    main()
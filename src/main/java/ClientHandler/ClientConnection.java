@@ -0,0 +1,40 @@
+package ClientHandler;
+
+/**
+ * Outbound side of a client connection, independent of the I/O model serving it.
+ */
+public interface ClientConnection {
+
+    /**
+     * Queue an encoded frame for the client. Never blocks on the client's socket.
+     *
+     * @param frame - Encoded frame, possibly shared with other recipients.
+     */
+    void send(EncodedFrame frame);
+
+    /**
+     * Close the connection.
+     */
+    void close();
+
+    /**
+     * Remote address of the client, for logging.
+     *
+     * @return - host:port of the client.
+     */
+    String getRemoteAddress();
+
+    /**
+     * Number of frames waiting to be written to the client.
+     *
+     * @return - Queue depth.
+     */
+    int getQueueDepth();
+
+    /**
+     * Number of frames discarded by the slow consumer policy.
+     *
+     * @return - Dropped frames.
+     */
+    long getDroppedFrames();
+}
@@ -3,10 +3,12 @@ package ClientHandler;
 import Consensus.Consensus;
 import Constants.ChatServerConstants.ClientConstants;
 import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
 import Exception.ServerException;
 import Server.Room;
 import Server.Server;
 import Server.ServerState;
+import Utilities.LineFramer;
 import Utilities.Messaging;
 import Utilities.Util;
 import org.apache.logging.log4j.LogManager;
@@ -17,15 +19,18 @@ import org.json.simple.parser.ParseException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
 
     private static final Logger logger = LogManager.getLogger(ClientHandler.class);
+    private static final AtomicLong sessionCounter = new AtomicLong();
     final Object lock;
+    private final long id;
     private final Socket clientSocket;
+    private final ClientConnection connection;
     private boolean quitFlag;
     private String currentIdentity;
     private String currentRoom = "";
@@ -35,8 +40,27 @@ public class ClientHandler extends Thread {
     private String moveJoinRoom = "";
 
 
+    /**
+     * Client handler served by a dedicated thread reading from a blocking socket.
+     *
+     * @param clientSocket - Socket of the client.
+     */
     public ClientHandler(Socket clientSocket) {
+        this.id = sessionCounter.incrementAndGet();
         this.clientSocket = clientSocket;
+        this.connection = new SocketClientConnection(clientSocket, "Client-Writer-" + id, this::releaseSession);
+        this.lock = new Object();
+    }
+
+    /**
+     * Client handler driven by an external engine (e.g. {@link NioClientEngine}) through the given connection.
+     *
+     * @param connection - Outbound connection of the client.
+     */
+    public ClientHandler(ClientConnection connection) {
+        this.id = sessionCounter.incrementAndGet();
+        this.clientSocket = null;
+        this.connection = connection;
         this.lock = new Object();
     }
 
@@ -44,25 +68,52 @@ public class ClientHandler extends Thread {
     public void run() {
         try {
             // Start client handler and wait for client to connect.
-            logger.info("Client " + clientSocket.getInetAddress() + ":" + clientSocket.getPort() + " connected.");
+            logger.info("Client " + connection.getRemoteAddress() + " connected.");
             //Create Input for the connection
             InputStream inputFromClient = clientSocket.getInputStream();
-            Scanner scanner = new Scanner(inputFromClient, String.valueOf(StandardCharsets.UTF_8));
+            LineFramer framer = new LineFramer(inputFromClient, ServerProperties.CLIENT_MAX_FRAME_LENGTH);
 
-            while (!quitFlag && scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                logger.debug("Received from client: " + line);
-                resolveClientRequest(Messaging.jsonParseRequest(line));
+            while (!quitFlag && framer.next()) {
+                ClientRequest request = Messaging.decodeClientRequest(
+                        framer.getBuffer(), framer.getFrameOffset(), framer.getFrameLength());
+                logger.debug("Received from client: " + request);
+                resolveClientRequest(request);
             }
-            // Client quit or got disconnected. Doesn't execute if client moved to another server.
+        } catch (IOException | ParseException | ServerException | InterruptedException e) {
+            // Also how a dropped connection ends, e.g. "Connection reset".
+            logger.debug(e);
+        } catch (RuntimeException e) {
+            logger.error("Failed to serve client " + connection.getRemoteAddress() + ": " + e);
+        } finally {
+            releaseSession();
+            connection.close();
+        }
+    }
+
+    /**
+     * Clean up after the client quit or got disconnected. May be called again, also from another thread than the
+     * one resolving the client's requests, e.g. when a slow client is dropped; every call releases what the client
+     * has acquired since the last one.
+     *
+     * @throws IOException
+     */
+    void closeSession() throws IOException {
+        synchronized (lock) {
+            // Doesn't execute if client moved to another server.
             if (!moveJoinFlag) {
                 removeClientFromServer();
             } else {
                 // Remove client from room if moved to another server.
                 removeClientMoveJoin();
             }
+            ServerState.getServerState().removeClientHandler(this);
+        }
+    }
 
-        } catch (IOException | ParseException | ServerException | InterruptedException e) {
+    private void releaseSession() {
+        try {
+            closeSession();
+        } catch (IOException e) {
             logger.debug(e);
         }
     }
@@ -70,33 +121,33 @@ public class ClientHandler extends Thread {
     /**
      * Resolve a given request.
      *
-     * @param jsonPayload -  Request as a JSONObject.
+     * @param request -  Decoded request.
      */
-    private void resolveClientRequest(JSONObject jsonPayload) throws ServerException, IOException, ParseException, InterruptedException {
-        String type = (String) jsonPayload.get("type");
+    void resolveClientRequest(ClientRequest request) throws ServerException, IOException, ParseException, InterruptedException {
+        String type = request.getType();
 
 
         switch (type) {
             case ClientConstants.TYPE_CREATE_ID:
-                String identity = (String) jsonPayload.get(ClientConstants.IDENTITY);
+                String identity = request.getIdentity();
                 logger.debug("Creating new identity: " + identity);
                 createNewIdentity(identity);
                 break;
 
             case ClientConstants.TYPE_CREATE_ROOM:
-                String roomId = Util.getRoomId(jsonPayload);
+                String roomId = request.getRoomId();
                 logger.debug("Request received to create new room: " + roomId);
                 createNewRoom(roomId);
                 break;
 
             case ClientConstants.TYPE_DELETE_ROOM:
-                String delRoomId = Util.getRoomId(jsonPayload);
+                String delRoomId = request.getRoomId();
                 logger.debug("Request received to delete room: " + delRoomId);
                 deleteRoom(delRoomId);
                 break;
 
             case ClientConstants.TYPE_JOIN_ROOM:
-                String joinRoomId = Util.getRoomId(jsonPayload);
+                String joinRoomId = request.getRoomId();
                 logger.debug("Request received to join room: " + joinRoomId);
                 joinRoom(joinRoomId);
                 break;
@@ -108,12 +159,12 @@ public class ClientHandler extends Thread {
 
             case ClientConstants.TYPE_MESSAGE:
                 // Broadcast message received by the client.
-                broadcastMessage(jsonPayload);
+                broadcastMessage(request.getContent());
                 break;
 
             case ClientConstants.TYPE_MOVE_JOIN:
                 logger.debug("Handling movejoin.");
-                handleMoveJoin(jsonPayload);
+                handleMoveJoin(request);
                 break;
 
             case ClientConstants.TYPE_QUIT:
@@ -142,16 +193,16 @@ public class ClientHandler extends Thread {
         if (Util.meetsCriteria(identity)) {
             logger.info("Identity creation failed. Identity doesn't meet the required criteria.");
             response = Util.buildApprovedJSONId(ClientConstants.FALSE);
-            Messaging.respond(response, this.clientSocket);
+            respond(response);
             return;
         }
 
         // Verify identity.
-        boolean isAvailable = Consensus.getConsensus().verifyUniqueValue(identity, ServerConstants.IDENTITY);
+        boolean isAvailable = verifyUniqueValue(identity, ServerConstants.IDENTITY);
         logger.debug("New identity availability: " + isAvailable);
         if (!isAvailable) {
             response = Util.buildApprovedJSONId(ClientConstants.FALSE);
-            Messaging.respond(response, this.clientSocket);
+            respond(response);
             return;
         }
         // Add identity to server state.
@@ -160,7 +211,7 @@ public class ClientHandler extends Thread {
         currentIdentity = identity;
         // Send appropriate response back to client.
         response = Util.buildApprovedJSONId(ClientConstants.TRUE);
-        Messaging.respond(response, this.clientSocket);
+        respond(response);
         logger.info("Identity: " + identity + " created.");
         // Get mainHall room from ServerState.
         Room mainHall = ServerState.getServerState().getMainHall();
@@ -170,6 +221,24 @@ public class ClientHandler extends Thread {
         Messaging.informServersIdentity(ServerConstants.KIND_INFORM_NEW_IDENTITY, identity);
     }
 
+    /**
+     * Verify whether a value is unique. The value is treated as taken if there is no working leader to verify it,
+     * so the client gets an answer instead of waiting for the cluster to recover.
+     *
+     * @param value   - Identity or room id.
+     * @param askType - identity | roomid
+     * @return - Boolean value.
+     * @throws InterruptedException
+     */
+    private boolean verifyUniqueValue(String value, String askType) throws InterruptedException {
+        try {
+            return Consensus.getConsensus().verifyUniqueValue(value, askType);
+        } catch (ServerException e) {
+            logger.info("Could not verify " + value + ": " + e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Create new chat room.
      *
@@ -186,16 +255,16 @@ public class ClientHandler extends Thread {
         if (Util.meetsCriteria(roomId)) {
             logger.info("Room creation failed. Room Id doesn't meet the required criteria.");
             response = Util.buildApprovedJSONRoom(ClientConstants.TYPE_CREATE_ROOM, ClientConstants.FALSE, roomId);
-            Messaging.respond(response, this.clientSocket);
+            respond(response);
             return;
         }
 
         // Verify room id.
-        boolean isAvailable = Consensus.getConsensus().verifyUniqueValue(roomId, ServerConstants.ROOM_ID);
+        boolean isAvailable = verifyUniqueValue(roomId, ServerConstants.ROOM_ID);
         logger.debug("New room id availability: " + isAvailable);
         if (!isAvailable) {
             response = Util.buildApprovedJSONRoom(ClientConstants.TYPE_CREATE_ROOM, ClientConstants.FALSE, roomId);
-            Messaging.respond(response, this.clientSocket);
+            respond(response);
             return;
         }
         // Get current server id.
@@ -205,7 +274,7 @@ public class ClientHandler extends Thread {
         // Set current room of the client handler.
         // Send appropriate response back to client.
         response = Util.buildApprovedJSONRoom(ClientConstants.TYPE_CREATE_ROOM, ClientConstants.TRUE, roomId);
-        Messaging.respond(response, this.clientSocket);
+        respond(response);
         logger.info("Room: " + roomId + " created.");
 
         // Change room of the client.
@@ -228,7 +297,7 @@ public class ClientHandler extends Thread {
         if (Util.isMainHall(roomId) || room == null || !currentIdentity.equals(room.getOwner())) {
             logger.info("Unable to delete room: " + roomId);
             response = Util.buildApprovedJSONRoom(ClientConstants.TYPE_DELETE_ROOM, ClientConstants.FALSE, roomId);
-            Messaging.respond(response, this.clientSocket);
+            respond(response);
             return;
         }
 
@@ -247,7 +316,7 @@ public class ClientHandler extends Thread {
         ServerState.getServerState().removeRoom(room);
         // Send appropriate response back to client.
         response = Util.buildApprovedJSONRoom(ClientConstants.TYPE_DELETE_ROOM, ClientConstants.TRUE, roomId);
-        Messaging.respond(response, this.clientSocket);
+        respond(response);
 
         logger.info("Room: " + roomId + " deleted.");
         // Inform servers about delete room.
@@ -265,7 +334,7 @@ public class ClientHandler extends Thread {
         if (room == null) {
             logger.info("Tried joining " + roomId + " room. Room doesn't exist.");
             JSONObject roomChangeRequest = Util.buildRoomChangeJSON(currentIdentity, roomId, roomId);
-            Messaging.respond(roomChangeRequest, clientSocket);
+            respond(roomChangeRequest);
             return;
         }
 
@@ -298,7 +367,7 @@ public class ClientHandler extends Thread {
         request.put(ClientConstants.PORT, String.valueOf(server.getClientPort()));
         request.put(ClientConstants.ROOM_ID, roomId);
         JSONObject routeRequest = new JSONObject(request);
-        Messaging.respond(routeRequest, clientSocket);
+        respond(routeRequest);
     }
 
     /**
@@ -311,19 +380,28 @@ public class ClientHandler extends Thread {
         logger.info("Moving client into " + room.getRoomId());
         // Remove client from previous room.
         logger.debug("Current room: " + currentRoom);
+        Room prevRoom = null;
+        Collection<ClientHandler> formerRoomClients;
         if (!currentRoom.equals("")) {
-            Room prevRoom = ServerState.getServerState().getRoom(currentRoom);
+            prevRoom = ServerState.getServerState().getRoom(currentRoom);
             if (prevRoom != null) {
                 prevRoom.removeClient(this);
                 ServerState.getServerState().updateRoom(prevRoom);
             }
+            formerRoomClients = prevRoom != null && prevRoom != room ? prevRoom.getClientIdentityList() : List.of();
+        } else {
+            // Joining a first room: the clients that have no room yet share the empty former room.
+            ServerState.getServerState().removeClientWithoutRoom(this);
+            formerRoomClients = ServerState.getServerState().getClientsWithoutRoom();
         }
         // Add client to new room.
         room.addClient(this);
         ServerState.getServerState().updateRoom(room);
-        Collection<ClientHandler> connectedClients = ServerState.getServerState().getClientHandlerHashMap().values();
-        logger.debug("Broadcasting to connected clients in the room: " + room.getRoomId());
-        informClientChangeRoom(connectedClients, room.getRoomId());
+        // Only clients in the former and the new room are informed; this client is a member of the new room by now.
+        logger.debug("Broadcasting to clients in the rooms: " + currentRoom + ", " + room.getRoomId());
+        EncodedFrame roomChangeFrame = EncodedFrame.of(Util.buildRoomChangeJSON(currentIdentity, currentRoom, room.getRoomId()));
+        informClientChangeRoom(formerRoomClients, room.getRoomId(), roomChangeFrame);
+        informClientChangeRoom(room.getClientIdentityList(), room.getRoomId(), roomChangeFrame);
         currentRoom = room.getRoomId();
     }
 
@@ -334,11 +412,21 @@ public class ClientHandler extends Thread {
      * @param roomId  New joining room id.
      */
     private void informClientChangeRoom(Collection<ClientHandler> clients, String roomId) {
+        informClientChangeRoom(clients, roomId, EncodedFrame.of(Util.buildRoomChangeJSON(currentIdentity, currentRoom, roomId)));
+    }
+
+    /**
+     * Inform the clients of a set that are in the former or the new room.
+     *
+     * @param clients         Collection clients.
+     * @param roomId          New joining room id.
+     * @param roomChangeFrame Encoded room change message.
+     */
+    private void informClientChangeRoom(Collection<ClientHandler> clients, String roomId, EncodedFrame roomChangeFrame) {
+        logger.debug("Informing about room change of " + currentIdentity + ": " + roomChangeFrame);
         for (ClientHandler client : clients) {
             if (client.getCurrentRoom().equals(currentRoom) || client.getCurrentRoom().equals(roomId)) {
-                logger.debug("Informing about room change of " + currentIdentity + " to " + client.currentIdentity);
-                JSONObject roomChangeRequest = Util.buildRoomChangeJSON(currentIdentity, currentRoom, roomId);
-                Messaging.respond(roomChangeRequest, client.getClientSocket());
+                client.send(roomChangeFrame);
             }
         }
     }
@@ -346,26 +434,25 @@ public class ClientHandler extends Thread {
     /**
      * Broadcast a received message to all the clients in the connected room.
      *
-     * @param jsonPayload
+     * @param message - Message content.
      */
-    private void broadcastMessage(JSONObject jsonPayload) {
-        String message = (String) jsonPayload.get(ClientConstants.CONTENT);
+    private void broadcastMessage(String message) {
         // Only broadcast messages that contains text.
         if (message != null && (!message.isBlank())) {
             logger.debug("Message '" + message + "' received from client " + currentIdentity);
-            // Create message broadcast object
+            // Create message broadcast object, serialized once for every recipient.
             HashMap<String, String> messageBroadcast = new HashMap<>();
             messageBroadcast.put(ClientConstants.TYPE, ClientConstants.TYPE_MESSAGE);
             messageBroadcast.put(ClientConstants.IDENTITY, currentIdentity);
             messageBroadcast.put(ClientConstants.CONTENT, message);
+            EncodedFrame messageFrame = EncodedFrame.of(new JSONObject(messageBroadcast));
 
             // Broadcast message to client in the room.
             Room chatRoom = ServerState.getServerState().getRoom(currentRoom);
-            Collection<ClientHandler> clients = chatRoom.getClientIdentityList();
-            for (ClientHandler client : clients) {
+            for (ClientHandler client : chatRoom.getMembers()) {
                 // Check for self object.
                 if (client.getId() != this.getId()) {
-                    Messaging.respond(new JSONObject(messageBroadcast), client.getClientSocket());
+                    client.send(messageFrame);
                 }
             }
         }
@@ -384,7 +471,7 @@ public class ClientHandler extends Thread {
         HashMap<String, Object> response = new HashMap<>();
         response.put(ClientConstants.TYPE, ClientConstants.ROOM_LIST);
         response.put(ClientConstants.ROOMS, roomIdList);
-        Messaging.respond(new JSONObject(response), clientSocket);
+        respond(new JSONObject(response));
     }
 
     /**
@@ -405,7 +492,7 @@ public class ClientHandler extends Thread {
         response.put(ClientConstants.ROOM_ID, currentRoom);
         response.put(ServerConstants.ROOM_OWNER, room.getOwner());
         response.put(ClientConstants.IDENTITIES, identityList);
-        Messaging.respond(new JSONObject(response), clientSocket);
+        respond(new JSONObject(response));
     }
 
     /**
@@ -415,7 +502,7 @@ public class ClientHandler extends Thread {
      * @throws IOException
      */
     private void removeClientFromServer() throws IOException {
-        logger.info("Client " + clientSocket.getInetAddress() + ":" + clientSocket.getPort() + " disconnecting.");
+        logger.info("Client " + connection.getRemoteAddress() + " disconnecting.");
         if (currentIdentity != null) {
             logger.debug("Lost connection to: " + currentIdentity);
 
@@ -446,6 +533,7 @@ public class ClientHandler extends Thread {
                 ServerState.getServerState().updateRoom(room);
             }
             deleteRoomOfClient();
+            currentIdentity = null;
         }
     }
 
@@ -463,12 +551,12 @@ public class ClientHandler extends Thread {
     /**
      * Handle movejoin.
      *
-     * @param jsonPayload - JSON payload.
+     * @param request - Movejoin request.
      */
-    private void handleMoveJoin(JSONObject jsonPayload) {
-        String mjIdentity = (String) jsonPayload.get(ClientConstants.IDENTITY);
-        String mjFormerRoom = (String) jsonPayload.get(ClientConstants.FORMER_ROOM);
-        String mjRoom = (String) jsonPayload.get(ClientConstants.ROOM_ID);
+    private void handleMoveJoin(ClientRequest request) {
+        String mjIdentity = request.getIdentity();
+        String mjFormerRoom = request.getFormer();
+        String mjRoom = request.getRoomId();
         logger.debug("Move join request received for client: " + mjIdentity + ". Former room: " + mjFormerRoom);
         logger.debug("Joining new room: " + mjRoom);
         // Set values for new client.
@@ -503,7 +591,7 @@ public class ClientHandler extends Thread {
         request.put(ClientConstants.TYPE, ClientConstants.SERVER_CHANGE);
         request.put(ClientConstants.APPROVED, ClientConstants.TRUE);
         request.put(ClientConstants.SERVER_ID, ServerState.getServerState().getServerId());
-        Messaging.respond(new JSONObject(request), this.clientSocket);
+        respond(new JSONObject(request));
     }
 
     /**
@@ -522,6 +610,7 @@ public class ClientHandler extends Thread {
                 logger.debug("Broadcasting to connected clients in the room: " + moveJoinRoom);
                 informClientChangeRoom(connectedClients, moveJoinRoom);
             }
+            moveJoinRoom = "";
         }
     }
 
@@ -532,7 +621,7 @@ public class ClientHandler extends Thread {
         if (ServerState.getServerState().isSmallPartitionFormed()) {
             quitFlag = true;
             JSONObject roomChangeRequest = Util.buildRoomChangeJSON(currentIdentity, currentRoom, "");
-            Messaging.respond(roomChangeRequest, clientSocket);
+            respond(roomChangeRequest);
         }
     }
 
@@ -548,7 +637,44 @@ public class ClientHandler extends Thread {
         this.currentRoom = currentRoom;
     }
 
-    public Socket getClientSocket() {
-        return clientSocket;
+    public boolean isQuitting() {
+        return quitFlag;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Number of responses queued for this client but not yet written.
+     *
+     * @return - Outbound queue depth.
+     */
+    public int getOutboundQueueDepth() {
+        return connection.getQueueDepth();
+    }
+
+    public long getDroppedFrames() {
+        return connection.getDroppedFrames();
+    }
+
+    /**
+     * Send a given json response to this client.
+     *
+     * @param obj - Response as a json object
+     */
+    public void respond(JSONObject obj) {
+        EncodedFrame frame = EncodedFrame.of(obj);
+        logger.debug("Sending: " + frame + " to: " + connection.getRemoteAddress());
+        connection.send(frame);
+    }
+
+    /**
+     * Send an already encoded frame to this client. Used for broadcasts, where one frame is shared by every recipient.
+     *
+     * @param frame - Encoded frame.
+     */
+    public void send(EncodedFrame frame) {
+        connection.send(frame);
     }
 }
@@ -0,0 +1,89 @@
+package ClientHandler;
+
+import Constants.ChatServerConstants.ClientConstants;
+import org.json.simple.JSONObject;
+
+/**
+ * Typed client request. Every client request is a flat json object of string values;
+ * fields that are not part of a given request type are null.
+ */
+public class ClientRequest {
+
+    private String type;
+    private String identity;
+    private String roomId;
+    private String former;
+    private String content;
+
+    /**
+     * Build a request from a json-simple object.
+     *
+     * @param jsonPayload - Parsed request.
+     * @return - Typed request.
+     */
+    public static ClientRequest fromJSON(JSONObject jsonPayload) {
+        ClientRequest request = new ClientRequest();
+        request.type = asString(jsonPayload.get(ClientConstants.TYPE));
+        request.identity = asString(jsonPayload.get(ClientConstants.IDENTITY));
+        request.roomId = asString(jsonPayload.get(ClientConstants.ROOM_ID));
+        request.former = asString(jsonPayload.get(ClientConstants.FORMER_ROOM));
+        request.content = asString(jsonPayload.get(ClientConstants.CONTENT));
+        return request;
+    }
+
+    private static String asString(Object value) {
+        return value == null ? null : String.valueOf(value);
+    }
+
+    /**
+     * Set a field by its protocol key. Unknown keys are ignored.
+     *
+     * @param key   - Protocol key.
+     * @param value - Value.
+     */
+    public void set(String key, String value) {
+        switch (key) {
+            case ClientConstants.TYPE:
+                type = value;
+                break;
+            case ClientConstants.IDENTITY:
+                identity = value;
+                break;
+            case ClientConstants.ROOM_ID:
+                roomId = value;
+                break;
+            case ClientConstants.FORMER_ROOM:
+                former = value;
+                break;
+            case ClientConstants.CONTENT:
+                content = value;
+                break;
+        }
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getIdentity() {
+        return identity;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public String getFormer() {
+        return former;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    @Override
+    public String toString() {
+        return "ClientRequest{type=" + type + ", identity=" + identity + ", roomid=" + roomId +
+                ", former=" + former + ", content=" + content + "}";
+    }
+}
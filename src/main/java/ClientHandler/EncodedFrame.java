@@ -0,0 +1,80 @@
+package ClientHandler;
+
+import Constants.ChatServerConstants.ClientConstants;
+import Utilities.Messaging;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable, already serialized response. Broadcasts encode a message once and hand the same frame
+ * to every recipient's outbound queue.
+ */
+public final class EncodedFrame {
+
+    private final byte[] bytes;
+    private final String conflationKey;
+
+    private EncodedFrame(byte[] bytes, String conflationKey) {
+        this.bytes = bytes;
+        this.conflationKey = conflationKey;
+    }
+
+    /**
+     * Serialize a json response.
+     *
+     * @param obj - Response as a json object
+     * @return - Encoded frame.
+     */
+    public static EncodedFrame of(JSONObject obj) {
+        return new EncodedFrame(Messaging.frame(obj), conflationKey(obj));
+    }
+
+    /**
+     * Room changes of the same identity supersede each other; everything else is delivered as is.
+     *
+     * @param obj - Response as a json object
+     * @return - Conflation key or null.
+     */
+    private static String conflationKey(JSONObject obj) {
+        if (ClientConstants.CHANGE_ROOM.equals(obj.get(ClientConstants.TYPE))) {
+            return ClientConstants.CHANGE_ROOM + ":" + obj.get(ClientConstants.IDENTITY);
+        }
+        return null;
+    }
+
+    public String getConflationKey() {
+        return conflationKey;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Write the frame to a stream.
+     *
+     * @param outputStream - Stream.
+     * @throws IOException
+     */
+    void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes);
+    }
+
+    /**
+     * A fresh read-only view of the frame, one per recipient.
+     *
+     * @return - Read-only buffer.
+     */
+    ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, bytes.length - 1, StandardCharsets.UTF_8);
+    }
+}
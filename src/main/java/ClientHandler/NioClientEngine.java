@@ -0,0 +1,406 @@
+package ClientHandler;
+
+import Constants.ChatServerConstants.ClientConstants;
+import Constants.ServerProperties;
+import Server.ServerState;
+import Utilities.LineFramer;
+import Utilities.Messaging;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-loop client engine. Client connections are multiplexed over a small fixed set of I/O threads,
+ * each owning a Selector. Requests that block on consensus (newidentity, createroom) are handed to a
+ * worker pool; reading from that client is paused until the request completes so requests of a single
+ * client are still resolved in order.
+ */
+public class NioClientEngine {
+
+    private static final Logger logger = LogManager.getLogger(NioClientEngine.class);
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final ServerSocketChannel serverChannel;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private int nextLoop = 0;
+
+    public NioClientEngine(SocketAddress endpoint, int ioThreads, int workerThreads) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(endpoint);
+        this.loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop("NIO-Client-Loop-" + i);
+        }
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "NIO-Client-Worker-" + workerCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public SocketAddress getLocalAddress() throws IOException {
+        return serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Start the I/O threads and accept client connections on the calling thread.
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        for (IoLoop loop : loops) {
+            loop.start();
+        }
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            // Prevent accepting client connections when in small partitioned state.
+            if (ServerState.getServerState().isSmallPartitionFormed()) {
+                logger.info("Client connection terminated since server is in the small partition.");
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            IoLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.register(channel);
+        }
+    }
+
+    /**
+     * Whether resolving a request of the given type may block on other servers.
+     *
+     * @param type - Request type.
+     * @return - Boolean value.
+     */
+    private static boolean isBlockingRequest(String type) {
+        return ClientConstants.TYPE_CREATE_ID.equals(type) || ClientConstants.TYPE_CREATE_ROOM.equals(type);
+    }
+
+    /**
+     * A single selector thread serving a subset of the client connections.
+     */
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Thread thread;
+
+        IoLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * Run a task on this loop's thread.
+         *
+         * @param task - Task.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioClientSession session = new NioClientSession(this, channel);
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                    ServerState.getServerState().addClientHandler(session.handler);
+                    logger.info("Client " + session.getRemoteAddress() + " connected.");
+                } catch (ClosedChannelException e) {
+                    logger.debug(e);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioClientSession session = (NioClientSession) key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            session.read(readBuffer);
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.error(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * State of a single client connection. Only touched from its loop thread, except {@link #send(EncodedFrame)}.
+     */
+    private class NioClientSession implements ClientConnection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final ClientHandler handler;
+        private final String remoteAddress;
+        // Holds received bytes until they are resolved; frames stay buffered while the client is busy.
+        private final LineFramer framer = new LineFramer(ServerProperties.CLIENT_MAX_FRAME_LENGTH);
+        private final OutboundQueue outboundQueue = new OutboundQueue(ServerProperties.CLIENT_OUTBOUND_QUEUE_CAPACITY,
+                OutboundQueue.SlowConsumerPolicy.fromProperty(ServerProperties.CLIENT_SLOW_CONSUMER_POLICY));
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final List<EncodedFrame> drained = new ArrayList<>();
+        // Frames taken from the queue but not completely written yet.
+        private ByteBuffer[] inFlight = new ByteBuffer[0];
+        private SelectionKey key;
+        // A blocking request of this client is being resolved by a worker.
+        private boolean busy = false;
+        // Client closed its side of the connection.
+        private boolean endOfStream = false;
+        private boolean closed = false;
+        // The client's identity, rooms and handler have been released.
+        private boolean sessionEnded = false;
+
+        NioClientSession(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+            this.handler = new ClientHandler(this);
+        }
+
+        @Override
+        public void send(EncodedFrame frame) {
+            if (!outboundQueue.offer(frame)) {
+                logger.info("Disconnecting slow client " + remoteAddress + " with " + outboundQueue.getDepth() + " queued frames.");
+                close();
+                return;
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(this::flush);
+            }
+        }
+
+        @Override
+        public void close() {
+            loop.execute(this::closeChannel);
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return outboundQueue.getDepth();
+        }
+
+        @Override
+        public long getDroppedFrames() {
+            return outboundQueue.getDroppedFrames();
+        }
+
+        /**
+         * Write queued frames with gathering writes until the socket buffer is full, then wait for OP_WRITE.
+         */
+        void flush() {
+            flushScheduled.set(false);
+            if (!key.isValid()) {
+                outboundQueue.clear();
+                return;
+            }
+            try {
+                while (true) {
+                    if (!hasRemaining(inFlight)) {
+                        if (outboundQueue.drainTo(drained) == 0) {
+                            break;
+                        }
+                        inFlight = new ByteBuffer[drained.size()];
+                        for (int i = 0; i < inFlight.length; i++) {
+                            inFlight[i] = drained.get(i).asByteBuffer();
+                        }
+                        drained.clear();
+                    }
+                    channel.write(inFlight);
+                    if (hasRemaining(inFlight)) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closed) {
+                    closeChannel();
+                }
+            } catch (IOException e) {
+                logger.debug("Socket closed for: " + remoteAddress);
+                closeChannel();
+            }
+        }
+
+        private boolean hasRemaining(ByteBuffer[] buffers) {
+            return buffers.length > 0 && buffers[buffers.length - 1].hasRemaining();
+        }
+
+        void read(ByteBuffer readBuffer) {
+            int read;
+            try {
+                readBuffer.clear();
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read < 0) {
+                endOfStream = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                readBuffer.flip();
+                framer.append(readBuffer);
+            }
+            processRequests();
+        }
+
+        /**
+         * Resolve buffered requests in order until one has to be handed to a worker.
+         */
+        private void processRequests() {
+            while (!busy && !closed) {
+                ClientRequest request;
+                try {
+                    if (!framer.next()) {
+                        break;
+                    }
+                    request = Messaging.decodeClientRequest(
+                            framer.getBuffer(), framer.getFrameOffset(), framer.getFrameLength());
+                } catch (IOException | ParseException e) {
+                    logger.debug(e);
+                    closeChannel();
+                    return;
+                }
+                logger.debug("Received from client: " + request);
+                if (isBlockingRequest(request.getType())) {
+                    busy = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    workers.submit(() -> resolveOnWorker(request));
+                    return;
+                }
+                if (!resolve(request)) {
+                    return;
+                }
+                if (handler.isQuitting()) {
+                    endSession();
+                    return;
+                }
+            }
+            if (endOfStream && !busy && !closed) {
+                endSession();
+            }
+        }
+
+        private void resolveOnWorker(ClientRequest request) {
+            boolean resolved = resolve(request);
+            loop.execute(() -> {
+                busy = false;
+                if (!resolved || closed) {
+                    // Closed while the worker was resolving the request; release what the request acquired too.
+                    releaseSession();
+                    return;
+                }
+                if (handler.isQuitting()) {
+                    endSession();
+                    return;
+                }
+                if (key.isValid() && !endOfStream) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+                processRequests();
+            });
+        }
+
+        /**
+         * Resolve a request, dropping the connection the same way a client thread exits on failure.
+         *
+         * @param request - Request.
+         * @return - Whether the session is still usable.
+         */
+        private boolean resolve(ClientRequest request) {
+            try {
+                handler.resolveClientRequest(request);
+                return true;
+            } catch (Exception e) {
+                logger.debug(e);
+                close();
+                return false;
+            }
+        }
+
+        /**
+         * Client quit or got disconnected.
+         */
+        private void endSession() {
+            closed = true;
+            releaseSession();
+            // Close once the remaining responses have been written.
+            flush();
+        }
+
+        /**
+         * Release the client's identity, rooms and handler, once. Waits for a request being resolved by a worker,
+         * which releases the session when it completes.
+         */
+        private void releaseSession() {
+            if (sessionEnded || busy) {
+                return;
+            }
+            sessionEnded = true;
+            try {
+                handler.closeSession();
+            } catch (IOException e) {
+                logger.debug(e);
+            }
+        }
+
+        /**
+         * Drop the connection, e.g. on a write failure or a slow consumer, without waiting for the client to close it.
+         */
+        private void closeChannel() {
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug(e);
+            }
+            releaseSession();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ClientHandler;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded frames waiting to be written to a single client.
+ * When the client doesn't keep up, the configured {@link SlowConsumerPolicy} decides what gives.
+ * Frames are written by at most one writer at a time, which only runs while frames are queued, so an idle client
+ * doesn't keep a thread waiting. A ReentrantLock is used instead of a monitor so that a virtual thread doesn't pin
+ * its carrier while it holds the queue.
+ */
+public class OutboundQueue {
+
+    public enum SlowConsumerPolicy {
+        // Discard the oldest queued frame to make room.
+        DROP_OLDEST,
+        // Replace the latest queued frame with the same conflation key where it stands, otherwise discard the oldest.
+        CONFLATE,
+        // Give up on the client.
+        DISCONNECT;
+
+        public static SlowConsumerPolicy fromProperty(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final LinkedList<EncodedFrame> entries = new LinkedList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private long droppedFrames = 0;
+    private boolean closed = false;
+    private boolean writing = false;
+
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Queue a frame. Frames offered after the queue is closed are discarded.
+     *
+     * @param frame - Encoded frame.
+     * @return - False if the client should be disconnected.
+     */
+    public boolean offer(EncodedFrame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (entries.size() >= capacity) {
+                if (policy == SlowConsumerPolicy.DISCONNECT) {
+                    return false;
+                }
+                droppedFrames++;
+                // A conflated frame takes the place of the one it supersedes, so it isn't reordered with the frames
+                // queued in between.
+                if (policy == SlowConsumerPolicy.CONFLATE && replaceLast(frame)) {
+                    return true;
+                }
+                entries.poll();
+            }
+            entries.add(frame);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move every queued frame into the given list.
+     *
+     * @param frames - List to fill.
+     * @return - Number of frames moved.
+     */
+    public int drainTo(List<EncodedFrame> frames) {
+        lock.lock();
+        try {
+            int count = entries.size();
+            frames.addAll(entries);
+            entries.clear();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Become the writer of the queue, after offering a frame or closing the queue.
+     *
+     * @return - True if there was no writer; the caller starts one then.
+     */
+    public boolean claimWriter() {
+        lock.lock();
+        try {
+            if (writing) {
+                return false;
+            }
+            writing = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop being the writer once every queued frame is drained. A closed queue keeps its writer, which is left to
+     * close the connection, so no writer is started after it.
+     *
+     * @return - False if frames were queued or the queue closed meanwhile; the writer carries on then.
+     */
+    public boolean releaseWriter() {
+        lock.lock();
+        try {
+            if (!entries.isEmpty() || closed) {
+                return false;
+            }
+            writing = false;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting frames. Frames queued already can still be drained.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedFrames() {
+        lock.lock();
+        try {
+            return droppedFrames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean replaceLast(EncodedFrame frame) {
+        String conflationKey = frame.getConflationKey();
+        if (conflationKey == null) {
+            return false;
+        }
+        ListIterator<EncodedFrame> iterator = entries.listIterator(entries.size());
+        while (iterator.hasPrevious()) {
+            if (conflationKey.equals(iterator.previous().getConflationKey())) {
+                iterator.set(frame);
+                return true;
+            }
+        }
+        return false;
+    }
+}
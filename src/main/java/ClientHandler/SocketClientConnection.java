@@ -0,0 +1,132 @@
+package ClientHandler;
+
+import Constants.ServerProperties;
+import Utilities.HandlerThreads;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client connection backed by a blocking socket. Frames are queued per client and written by a writer of the
+ * connection's own, so a client with a full TCP window stalls neither the thread broadcasting to it nor the output
+ * to any other client. The writer only runs while frames are queued, so an idle client costs no thread besides its
+ * reader.
+ */
+public class SocketClientConnection implements ClientConnection {
+
+    private static final Logger logger = LogManager.getLogger(SocketClientConnection.class);
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    private final Socket socket;
+    private final OutboundQueue outboundQueue;
+    private final Runnable onDisconnect;
+    private final String writerName;
+    private OutputStream outputStream; // only used by the writer, one at a time
+    // Closed by the server once the session is over, rather than dropped.
+    private volatile boolean closing = false;
+
+    /**
+     * @param socket       - Socket of the client.
+     * @param writerName   - Name of the writer's thread while it runs.
+     * @param onDisconnect - Releases the session when the connection is dropped: the client doesn't keep up or
+     *                       can't be written to.
+     */
+    public SocketClientConnection(Socket socket, String writerName, Runnable onDisconnect) {
+        this.socket = socket;
+        this.outboundQueue = new OutboundQueue(ServerProperties.CLIENT_OUTBOUND_QUEUE_CAPACITY,
+                OutboundQueue.SlowConsumerPolicy.fromProperty(ServerProperties.CLIENT_SLOW_CONSUMER_POLICY));
+        this.onDisconnect = onDisconnect;
+        this.writerName = writerName;
+    }
+
+    @Override
+    public void send(EncodedFrame frame) {
+        if (!outboundQueue.offer(frame)) {
+            logger.info("Disconnecting slow client " + getRemoteAddress() + " with " + outboundQueue.getDepth() + " queued frames.");
+            outboundQueue.clear();
+            outboundQueue.close();
+            closeSocket();
+        }
+        startWriter();
+    }
+
+    private void startWriter() {
+        if (outboundQueue.claimWriter()) {
+            HandlerThreads.execute(this::write, writerName);
+        }
+    }
+
+    /**
+     * Write queued frames, flushing once per batch, until none are left, or until the connection is closed. A
+     * blocked write only holds up this client.
+     */
+    private void write() {
+        List<EncodedFrame> frames = new ArrayList<>();
+        try {
+            if (outputStream == null) {
+                // Flushed after every batch, so nothing is left buffered for the next writer.
+                outputStream = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+            }
+            while (true) {
+                if (outboundQueue.drainTo(frames) > 0) {
+                    for (EncodedFrame frame : frames) {
+                        frame.writeTo(outputStream);
+                    }
+                    frames.clear();
+                    outputStream.flush();
+                } else if (outboundQueue.isClosed()) {
+                    break;
+                } else if (outboundQueue.releaseWriter()) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Socket closed for: " + getRemoteAddress());
+            outboundQueue.close();
+            outboundQueue.clear();
+        }
+        closeSocket();
+        if (!closing) {
+            onDisconnect.run();
+        }
+    }
+
+    /**
+     * Close the connection once the queued frames have been written.
+     */
+    @Override
+    public void close() {
+        closing = true;
+        outboundQueue.close();
+        startWriter();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug(e);
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress() + ":" + socket.getPort();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return outboundQueue.getDepth();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return outboundQueue.getDroppedFrames();
+    }
+}
@@ -2,23 +2,24 @@ package Consensus;
 
 import Constants.ChatServerConstants.ServerConstants;
 import Constants.ChatServerConstants.ServerExceptionConstants;
+import Constants.ServerProperties;
 import Exception.ServerException;
-import Server.Server;
 import Server.ServerState;
 import Utilities.Messaging;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.ParseException;
 
-import java.io.IOException;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class Consensus {
 
     private static final Logger logger = LogManager.getLogger(Consensus.class);
+    private static final String AUTHORITATIVE_MODE = "authoritative";
     private static Consensus consensus;
 
     private Consensus() {
@@ -37,108 +38,162 @@ public class Consensus {
     }
 
     /**
-     * Whether this server is the current leader
+     * Verify whether a given value is unique across all servers. Blocks until
+     * {@link #verifyUniqueValueAsync(String, String)} completes.
      *
-     * @return boolean
+     * @param value   the value you want to verify whether it is unique or not
+     * @param askType room | identity
+     * @throws ServerException if there is still no working leader after the last attempt
      */
-    private boolean isLeader() throws ServerException {
-        Leader currentLeader = ServerState.getServerState().getCurrentLeader();
-        if (currentLeader == null) {
-            logger.info("No elected leader present in ServerState.");
+    public boolean verifyUniqueValue(String value, String askType) throws ServerException, InterruptedException {
+        try {
+            return verifyUniqueValueAsync(value, askType).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServerException) {
+                throw (ServerException) e.getCause();
+            }
+            logger.debug("Verification of " + value + " failed: " + e.getCause());
             throw new ServerException(
-                    ServerExceptionConstants.NO_LEADER_MSG,
-                    ServerExceptionConstants.NO_LEADER_CODE);
+                    ServerExceptionConstants.INTERNAL_SERVER_ERROR_MSG,
+                    ServerExceptionConstants.INTERNAL_SERVER_ERROR_CODE);
         }
-        logger.debug("Leader id: " + currentLeader.getId());
-        logger.debug("Self id: " + ServerState.getServerState().getServerId());
-        return ServerState.getServerState().getServerId().equals(currentLeader.getId());
     }
 
     /**
-     * Verify whether a given value is unique across all servers.
+     * Verify whether a given value is unique across all servers, without blocking. Values that are certainly
+     * taken are rejected locally, see {@link RegistryPreCheck}.
+     * If there is no leader, or the leader fails, an election is started and the verification is attempted again
+     * once it completes, up to a limited number of attempts. Each wait for an election is at most twice as long as
+     * the one before.
      *
      * @param value   the value you want to verify whether it is unique or not
      * @param askType room | identity
+     * @return - Future completed with whether the value is unique, or with a ServerException if there is still
+     * no working leader after the last attempt.
      */
-    public boolean verifyUniqueValue(String value, String askType) throws IOException, ParseException, ServerException, InterruptedException {
-        boolean isUnique = true;
-        HashMap<String, String> request;
-        try {
-            if (isLeader()) {
-                logger.debug("Taking 'Is the leader path'.");
-                // build the request
-                request = createRequestMap();
-                request.put(ServerConstants.KIND, ServerConstants.KIND_VERIFY_UNIQUE);
-                switch (askType) {
-                    case ServerConstants.IDENTITY:
-                        request.put(ServerConstants.IDENTITY, value);
-                        break;
-                    case ServerConstants.ROOM_ID:
-                        request.put(ServerConstants.ROOM_ID, value);
-                }
-                Collection<Server> servers = ServerState.getServerState().getServers();
-                ConcurrentHashMap<String, JSONObject> responses = Messaging.askServers(new JSONObject(request), servers);
-                logger.debug("Response object for Ask Servers:" + (responses.values()));
-                for (JSONObject response : responses.values()) {
-                    if (!Boolean.parseBoolean((String) response.get("unique"))) {
-                        isUnique = false;
-                        break;
-                    }
-                }
-            } else {
-
-                logger.debug("Taking 'Not the leader path'.");
-                // Get current leader.
-                Leader currentLeader = ServerState.getServerState().getCurrentLeader();
-
-                // Throw ServerException if no leader exists.
-                if (currentLeader == null) {
-                    logger.info("No elected leader present in ServerState.");
-                    throw new ServerException(
-                            ServerExceptionConstants.NO_LEADER_MSG,
-                            ServerExceptionConstants.NO_LEADER_CODE);
-                }
-
-                // Create Request JSON.
-                request = createRequestMap();
-                switch (askType) {
-                    case ServerConstants.IDENTITY:
-                        request.put(ServerConstants.KIND, ServerConstants.KIND_REQUEST_TO_CREATE_NEW_IDENTITY);
-                        request.put(ServerConstants.IDENTITY, value);
-                        break;
-                    case ServerConstants.ROOM_ID:
-                        request.put(ServerConstants.KIND, ServerConstants.KIND_REQUEST_TO_CREATE_NEW_ROOM);
-                        request.put(ServerConstants.ROOM_ID, value);
-                }
-                request.put(ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
+    public CompletableFuture<Boolean> verifyUniqueValueAsync(String value, String askType) {
+        if (!ServerProperties.PRE_CHECK_ENABLED) {
+            return attempt(value, askType, 1);
+        }
+        RegistryPreCheck preCheck = RegistryPreCheck.getRegistryPreCheck();
+        long registryVersion = ServerState.getServerState().getRegistryVersion();
+        if (preCheck.isTaken(value, askType)) {
+            logger.debug("Rejected " + value + " without asking the leader.");
+            return CompletableFuture.completedFuture(false);
+        }
+        return attempt(value, askType, 1).thenApply(isUnique -> {
+            if (!isUnique) {
+                preCheck.recordRejection(value, askType, registryVersion);
+            }
+            return isUnique;
+        });
+    }
 
-                // Contact leader for verification.
-                logger.debug("Contacting Leader for verification");
-                JSONObject response = Messaging.contactLeader(new JSONObject(request), currentLeader);
+    private CompletableFuture<Boolean> attempt(String value, String askType, int attempt) {
+        Leader currentLeader = ServerState.getServerState().getCurrentLeader();
+        CompletableFuture<Boolean> result;
+        if (currentLeader == null) {
+            logger.info("No elected leader present in ServerState.");
+            result = CompletableFuture.failedFuture(new ServerException(
+                    ServerExceptionConstants.NO_LEADER_MSG,
+                    ServerExceptionConstants.NO_LEADER_CODE));
+        } else if (ServerState.getServerState().getServerId().equals(currentLeader.getId())) {
+            logger.debug("Taking 'Is the leader path'.");
+            result = reserveAsLeader(value, askType);
+        } else {
+            logger.debug("Taking 'Not the leader path'.");
+            result = askLeader(value, askType, currentLeader);
+        }
+        return result.handle((isUnique, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(isUnique);
+            }
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (!isLeaderMissing(cause)) {
+                return CompletableFuture.<Boolean>failedFuture(cause);
+            }
+            if (attempt >= ServerProperties.CONSENSUS_MAX_ATTEMPTS) {
+                logger.info("Verification of " + value + " failed after " + attempt + " attempts.");
+                return CompletableFuture.<Boolean>failedFuture(cause);
+            }
+            // Start leader election, and try again once it completes.
+            logger.debug("Leader either doesn't exist or failed. Starting Leader Election Process.");
+            LeaderElection.startElection();
+            long backoff = Math.min(ServerProperties.CONSENSUS_INITIAL_BACKOFF << (attempt - 1), ServerProperties.CONSENSUS_MAX_BACKOFF);
+            // With leader leases the failed leader is kept until the election replaces it.
+            CompletableFuture<Object> electionOrBackoff = CompletableFuture.anyOf(
+                    ServerState.getServerState().whenLeaderElected(LeaderLease.isEnabled() ? currentLeader : null),
+                    CompletableFuture.runAsync(() -> {
+                    }, CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS)));
+            return electionOrBackoff.thenCompose(ignored -> {
+                logger.debug("Restarting verification process. Attempt: " + (attempt + 1));
+                return attempt(value, askType, attempt + 1);
+            });
+        }).thenCompose(next -> next);
+    }
 
-                // Return response received from the leader.
-                String responseKind = (String) response.get(ServerConstants.KIND);
-                if (responseKind.equals(ServerConstants.KIND_REPLY_TO_CREATE_NEW_IDENTITY) ||
-                        responseKind.equals(ServerConstants.KIND_REPLY_TO_CREATE_NEW_ROOM)) {
-                    isUnique = Boolean.parseBoolean((String) response.get(ServerConstants.SUCCESS));
-                }
+    private static boolean isLeaderMissing(Throwable error) {
+        if (!(error instanceof ServerException)) {
+            return false;
+        }
+        String code = ((ServerException) error).getCode();
+        return code.equals(ServerExceptionConstants.LEADER_FAILED_CODE) ||
+                code.equals(ServerExceptionConstants.NO_LEADER_CODE);
+    }
 
+    /**
+     * Ask the leader to create a value.
+     *
+     * @param value         - Identity or room id.
+     * @param askType       - identity | roomid
+     * @param currentLeader - Leader.
+     * @return - Future completed with the leader's answer.
+     */
+    private CompletableFuture<Boolean> askLeader(String value, String askType, Leader currentLeader) {
+        // Create Request JSON.
+        HashMap<String, String> request = createRequestMap();
+        switch (askType) {
+            case ServerConstants.IDENTITY:
+                request.put(ServerConstants.KIND, ServerConstants.KIND_REQUEST_TO_CREATE_NEW_IDENTITY);
+                request.put(ServerConstants.IDENTITY, value);
+                break;
+            case ServerConstants.ROOM_ID:
+                request.put(ServerConstants.KIND, ServerConstants.KIND_REQUEST_TO_CREATE_NEW_ROOM);
+                request.put(ServerConstants.ROOM_ID, value);
+        }
+        request.put(ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
+
+        // Contact leader for verification.
+        logger.debug("Contacting Leader for verification");
+        return Messaging.contactLeaderAsync(new JSONObject(request), currentLeader).thenApply(response -> {
+            // Return response received from the leader.
+            String responseKind = (String) response.get(ServerConstants.KIND);
+            if (responseKind.equals(ServerConstants.KIND_REPLY_TO_CREATE_NEW_IDENTITY) ||
+                    responseKind.equals(ServerConstants.KIND_REPLY_TO_CREATE_NEW_ROOM)) {
+                return Boolean.parseBoolean((String) response.get(ServerConstants.SUCCESS));
             }
-        } catch (ServerException err) {
-            // Start leader election if
-            if (err.getCode().equals(ServerExceptionConstants.LEADER_FAILED_CODE) ||
-                    err.getCode().equals(ServerExceptionConstants.NO_LEADER_CODE)) {
-                logger.debug("Leader either doesn't exist or failed. Starting Leader Election Process.");
-                LeaderElection.startElection();
-                // TODO: Need to set an exit block the recursion. Take num of attempts into consideration.
-                logger.debug("Restarting verification process. Attempt: ");
-                Thread.sleep(5000);
-                return verifyUniqueValue(value, askType);
-            } else {
-                throw err;
-            }
+            return true;
+        });
+    }
+
+    /**
+     * Reserve a value on this server, the leader. In the authoritative mode the leader's own registry and
+     * reservations decide; otherwise the value is verified with the other servers along with the other
+     * reservations made around the same time.
+     *
+     * @param value   - Identity or room id.
+     * @param askType - identity | roomid
+     * @return - Future completed with whether the value has been reserved.
+     */
+    public CompletableFuture<Boolean> reserveAsLeader(String value, String askType) {
+        if (AUTHORITATIVE_MODE.equals(ServerProperties.CONSENSUS_MODE)) {
+            boolean isRegistered = ServerConstants.IDENTITY.equals(askType) ?
+                    ServerState.getServerState().containsIdentity(value) :
+                    ServerState.getServerState().hasRoomId(value);
+            return CompletableFuture.completedFuture(
+                    !isRegistered && ReservationTable.getReservationTable().reserve(value, askType));
         }
-        return isUnique;
+        return ReservationBatcher.getReservationBatcher().reserve(value, askType);
     }
 
     /**
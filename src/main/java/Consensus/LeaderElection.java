@@ -8,15 +8,23 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.simple.JSONObject;
 
-import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 public class LeaderElection {
     private static final Logger logger = LogManager.getLogger(LeaderElection.class);
-    public static boolean electionFlag = false; // an election is running
+    public static volatile boolean electionFlag = false; // an election is running
     private static Thread leaderElectionThread = null;
+    // Delays elections started again after a coordinator, without holding up the messages handled meanwhile.
+    private static final ScheduledExecutorService electionTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Election-Timer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     //No objects from LeaderElection class
     private LeaderElection() {
@@ -28,10 +36,36 @@ public class LeaderElection {
             logger.debug("An election process is already running");
             return;
         }
+        if (LeaderLease.isEnabled() && LeaderLease.getLeaderLease().isLeaderLeaseValid()) {
+            logger.debug("The leader's lease hasn't run out; not starting an election.");
+            return;
+        }
         electionFlag = true;
-        ServerState.getServerState().setCurrentLeader(null);
+        if (!LeaderLease.isEnabled()) {
+            ServerState.getServerState().setCurrentLeader(null);
+        }
         leaderElectionThread = new Thread(() -> {
+            if (LeaderLease.isEnabled()) {
+                // The current leader is kept unless a majority agrees that it is gone.
+                if (!LeaderLease.getLeaderLease().preVote()) {
+                    logger.info("Pre-vote lost; the leader is still followed by a majority.");
+                    electionFlag = false;
+                    return;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    logger.debug("Election stopped by a coordinator during the pre-vote.");
+                    return;
+                }
+                ServerState.getServerState().setCurrentLeader(null);
+            }
             ConcurrentHashMap<String, JSONObject> replies = sendElectionStartMessage();
+            if (Thread.currentThread().isInterrupted()) {
+                // Stopped by a coordinator; the replies collected so far don't mean that no one else is up. The
+                // servers that got the ELECTION message have dropped their leader, and wait for a coordinator.
+                logger.debug("Election stopped by a coordinator.");
+                askLeaderToAnnounce();
+                return;
+            }
             Collection<String> okReplies = new ArrayList<>();
             for (Map.Entry<String, JSONObject> mapEntry : replies.entrySet()) {
                 if (!replies.isEmpty() && mapEntry.getValue().get(ServerConstants.KIND).equals(ServerConstants.KIND_OK)) {
@@ -42,7 +76,7 @@ public class LeaderElection {
             if (okReplies.isEmpty()) {
                 // No one has responded; I am the leader
                 announceToTheWorld();
-                ServerState.getServerState().setCurrentLeader(new Leader(ServerState.getServerState().getServerFromId(getThisServerId())));
+                setLeader(getThisServerId());
                 logger.debug("No one responded to: " + getThisServerId());
                 stopLeaderElection();
             } else {
@@ -67,6 +101,14 @@ public class LeaderElection {
         logger.debug("Elected Leader: " + ServerState.getServerState().getCurrentLeader());
     }
 
+    private static void setLeader(String leaderId) {
+        if (LeaderLease.isEnabled()) {
+            LeaderLease.getLeaderLease().onLeaderElected(leaderId);
+        } else {
+            ServerState.getServerState().setCurrentLeader(new Leader(ServerState.getServerState().getServerFromId(leaderId)));
+        }
+    }
+
     private static String getThisServerId() {
         return ServerState.getServerState().getServerId();
     }
@@ -89,7 +131,13 @@ public class LeaderElection {
 
     private static ConcurrentHashMap<String, JSONObject> sendElectionStartMessage() {
         JSONObject message = buildElectionJSON(ServerConstants.KIND_ELECTION, getThisServerId());
-        return Messaging.askServers(message, ServerState.getServerState().getServersHigherThanMyId()); //Only send election msg to higher servers with higher id
+        Collection<Server> higherServers = new ArrayList<>(ServerState.getServerState().getServersHigherThanMyId());
+        if (LeaderLease.isEnabled()) {
+            // Don't wait for the failed leader, or servers known to have failed, to answer.
+            Set<String> suspected = ServerState.getServerState().getClusterView().getSuspected();
+            higherServers.removeIf(server -> suspected.contains(server.getId()) || LeaderLease.getLeaderLease().hasLapsed(server.getId()));
+        }
+        return Messaging.askServers(message, higherServers); //Only send election msg to higher servers with higher id
     }
 
     /**
@@ -97,8 +145,9 @@ public class LeaderElection {
      * Only replies OK if this server's server ID is larger than election starter's server ID
      *
      * @param request JSON request
+     * @return OK or PASS message to reply with; null if there is nothing to reply
      */
-    public static void replyOKorPass(JSONObject request, Socket socket) {
+    public static JSONObject replyOKorPass(JSONObject request) {
         electionFlag = true;
         ServerState.getServerState().setCurrentLeader(null);
         String electionStarterId = (String) request.get(ServerConstants.SERVER_ID);
@@ -106,13 +155,14 @@ public class LeaderElection {
         if (Integer.parseInt(getThisServerId()) > Integer.parseInt(electionStarterId)) {
             JSONObject oKMessage = buildElectionJSON(ServerConstants.KIND_OK, getThisServerId());
             logger.debug("Sending OK message to: " + electionStarterId + " from: " + getThisServerId());
-            Messaging.respond(oKMessage, socket);
+            return oKMessage;
         } else if (Integer.parseInt(getThisServerId()) < Integer.parseInt(electionStarterId)) {
             JSONObject passMessage = buildElectionJSON(ServerConstants.KIND_PASS, getThisServerId());
             logger.debug("Sending PASS message to: " + electionStarterId + " from: " + getThisServerId());
-            Messaging.respond(passMessage, socket);
+            return passMessage;
         } else {
             logger.error("Replying OK to self. This should not happen");
+            return null;
         }
     }
 
@@ -136,8 +186,21 @@ public class LeaderElection {
         Messaging.sendAndForget(new JSONObject(message), List.of(maxServer));
     }
 
+    /**
+     * Send the "ELECTED" message to the leader that stopped this server's election, so that it announces itself
+     * again to the servers the election has reached.
+     */
+    private static void askLeaderToAnnounce() {
+        Leader leader = ServerState.getServerState().getCurrentLeader();
+        if (leader == null || leader.getId().equals(getThisServerId())) {
+            return;
+        }
+        JSONObject message = buildElectionJSON(ServerConstants.KIND_ELECTED, getThisServerId());
+        Messaging.sendAndForget(message, List.of(ServerState.getServerState().getServerFromId(leader.getId())));
+    }
+
     public static void respondToElectedMessage() {
-        ServerState.getServerState().setCurrentLeader(new Leader(ServerState.getServerState().getServerFromId(getThisServerId())));
+        setLeader(getThisServerId());
         announceToTheWorld();
     }
 
@@ -152,26 +215,26 @@ public class LeaderElection {
         // The election process is complete.
         String newLeaderId = (String) request.get(ServerConstants.SERVER_ID);
         if (electionFlag) {
-            ServerState.getServerState().setCurrentLeader(new Leader(ServerState.getServerState().getServerFromId(newLeaderId)));
+            setLeader(newLeaderId);
             stopLeaderElection();
+        } else if (LeaderLease.isEnabled()) {
+            // Elections only start after a pre-vote, so a coordinator is followed even if it has a lower id;
+            // if elections overlapped, the leader with the higher id keeps the lease.
+            setLeader(newLeaderId);
+            logger.debug("Elected Leader: " + ServerState.getServerState().getCurrentLeader());
         } else {
             logger.debug("Received coordinator sampler");
             if (Integer.parseInt(newLeaderId) < Integer.parseInt(getThisServerId())) {
-                try {
-                    // If more than one server, send the ELECTION message at the same time, election process may continue, each may elect themselves as leaders.
-                    // To avoid this backoff for a random time and start the election again.
-                    // Servers won't be stuck in a loop.
-                    // Eventually they will agree on a new leader.
-                    int sleepFor = new Random().nextInt(1500) + 100;
-                    Thread.sleep(sleepFor);
-                } catch (InterruptedException e) {
-                    logger.error(e);
-                }
+                // If more than one server, send the ELECTION message at the same time, election process may continue, each may elect themselves as leaders.
+                // To avoid this backoff for a random time and start the election again.
+                // Servers won't be stuck in a loop.
+                // Eventually they will agree on a new leader.
+                int delay = new Random().nextInt(1500) + 100;
                 logger.debug("Received COORDINATOR message after completing an election; " +
                         "Multiple servers may have started teh election process at the same time.");
-                startElection();
+                electionTimer.schedule(LeaderElection::startElection, delay, TimeUnit.MILLISECONDS);
             } else {
-                ServerState.getServerState().setCurrentLeader(new Leader(ServerState.getServerState().getServerFromId(newLeaderId)));
+                setLeader(newLeaderId);
                 logger.debug("Elected Leader: " + ServerState.getServerState().getCurrentLeader());
             }
         }
@@ -0,0 +1,375 @@
+package Consensus;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+import Server.Server;
+import Server.ServerState;
+import Utilities.ConnectionPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Time bounded leadership. The leader renews its lease with the other servers every renew period, and a server
+ * grants the lease to one leader at a time, until it runs out. The leader steps down once a majority hasn't granted
+ * it for the lease duration; the other servers start an election once their lease of the leader runs out, instead
+ * of waiting for a request to the leader to time out. An election is preceded by a pre-vote, which only succeeds
+ * if a majority's leases have run out too, so that a server cut off from the leader doesn't depose a leader the
+ * majority still follows. Each leader renews under a term one higher than any it has seen; servers refuse renewals
+ * from an older term, and a leader that learns of a newer one steps down, so that a deposed leader isn't followed
+ * again once the leases of its successor run out.
+ */
+public class LeaderLease {
+
+    private static final Logger logger = LogManager.getLogger(LeaderLease.class);
+    private static final long ORIGIN = System.nanoTime();
+    private static LeaderLease leaderLease;
+    private final ScheduledExecutorService renewer;
+    private final LongSupplier clock;
+    private long term = 0; // highest term of a leader this server has seen, its own as the leader
+    private String leaseHolder = null; // leader this server has granted the lease to
+    private long leaseExpiry = 0;
+    private long heldUntil = 0; // as the leader, until when a majority has granted the lease
+    private long lastPreVote = Long.MIN_VALUE / 2;
+    private final AtomicLong renewals = new AtomicLong();
+    private final AtomicLong preVotesWon = new AtomicLong();
+    private final AtomicLong preVotesLost = new AtomicLong();
+    private final AtomicLong stepDowns = new AtomicLong();
+    private volatile long lastFailover = -1;
+
+    private LeaderLease() {
+        this(LeaderLease::monotonicNow);
+    }
+
+    /**
+     * @param clock - Milliseconds on a monotonic clock.
+     */
+    LeaderLease(LongSupplier clock) {
+        this.clock = clock;
+        this.renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Leader-Lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static LeaderLease getLeaderLease() {
+        if (leaderLease == null) {
+            synchronized (LeaderLease.class) {
+                if (leaderLease == null) {
+                    leaderLease = new LeaderLease();
+                }
+            }
+        }
+        return leaderLease;
+    }
+
+    public static boolean isEnabled() {
+        return ServerProperties.LEASE_ENABLED;
+    }
+
+    public void start() {
+        renewer.scheduleAtFixedRate(this::tick, ServerProperties.LEASE_RENEW_PERIOD, ServerProperties.LEASE_RENEW_PERIOD,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Renew the lease as the leader, or check the leader's lease as any other server.
+     */
+    private void tick() {
+        try {
+            if (ServerState.getServerState().amITheLeader()) {
+                renew();
+            } else {
+                checkLeader();
+            }
+        } catch (RuntimeException e) {
+            logger.debug("Leader lease check failed: " + e);
+        }
+    }
+
+    private void renew() {
+        long start = now();
+        long renewalTerm;
+        synchronized (this) {
+            if (start > heldUntil) {
+                stepDown("a majority hasn't renewed its lease for " + ServerProperties.LEASE_DURATION + " ms");
+                return;
+            }
+            renewalTerm = term;
+        }
+        int majority = majority();
+        if (majority <= 1) {
+            extendHeld(start);
+            return;
+        }
+        renewals.incrementAndGet();
+        AtomicInteger grants = new AtomicInteger(1);
+        JSONObject renewal = buildMessage(ServerConstants.KIND_LEASE, null, renewalTerm);
+        for (Server peer : ServerState.getServerState().getClusterView().getAlivePeers()) {
+            ConnectionPool.getConnectionPool().requestAsync(peer, renewal).thenAccept(reply -> {
+                if (isGranted(reply)) {
+                    if (grants.incrementAndGet() == majority) {
+                        extendHeld(start);
+                    }
+                } else {
+                    onRefused(reply);
+                }
+            });
+        }
+    }
+
+    /**
+     * Step down if a server refused the lease because it follows a leader of a newer term.
+     *
+     * @param reply - Refused lease renewal.
+     */
+    synchronized void onRefused(JSONObject reply) {
+        long replyTerm = termOf(reply);
+        if (replyTerm > term) {
+            term = replyTerm;
+            if (ServerState.getServerState().amITheLeader()) {
+                stepDown("server " + reply.get(ServerConstants.SERVER_ID) + " follows a leader of term " + replyTerm);
+            }
+        }
+    }
+
+    private void checkLeader() {
+        Leader leader;
+        synchronized (this) {
+            leader = ServerState.getServerState().getCurrentLeader();
+            if (leader == null || LeaderElection.electionFlag) {
+                return;
+            }
+            long now = now();
+            if ((leader.getId().equals(leaseHolder) && now <= leaseExpiry) ||
+                    now - lastPreVote < ServerProperties.LEASE_DURATION) {
+                return;
+            }
+        }
+        logger.info("Lease of leader " + leader.getId() + " has run out.");
+        LeaderElection.startElection();
+    }
+
+    /**
+     * Whether this server follows a leader whose lease hasn't run out, so there is no need for an election.
+     */
+    public synchronized boolean isLeaderLeaseValid() {
+        Leader leader = ServerState.getServerState().getCurrentLeader();
+        return leader != null && leader.getId().equals(leaseHolder) && now() <= leaseExpiry;
+    }
+
+    /**
+     * Whether the lease of a server, as the leader, has run out; it is left out of the election then.
+     *
+     * @param serverId - Server id.
+     */
+    public synchronized boolean hasLapsed(String serverId) {
+        return serverId.equals(leaseHolder) && now() > leaseExpiry;
+    }
+
+    /**
+     * Ask the other servers whether their leases of the leader have run out too. Blocks until a majority agrees,
+     * or at most a lease duration.
+     *
+     * @return - True if a majority, this server included, agrees to an election.
+     */
+    public boolean preVote() {
+        synchronized (this) {
+            lastPreVote = now();
+        }
+        int majority = majority();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (majority <= 1) {
+            result.complete(true);
+        }
+        Collection<Server> peers = ServerState.getServerState().getServers();
+        AtomicInteger grants = new AtomicInteger(1);
+        AtomicInteger answers = new AtomicInteger(0);
+        JSONObject request;
+        synchronized (this) {
+            request = buildMessage(ServerConstants.KIND_PRE_VOTE, null, term);
+        }
+        for (Server peer : peers) {
+            ConnectionPool.getConnectionPool().requestAsync(peer, request).whenComplete((reply, error) -> {
+                if (error == null && isGranted(reply) && grants.incrementAndGet() >= majority) {
+                    result.complete(true);
+                }
+                if (answers.incrementAndGet() == peers.size()) {
+                    result.complete(grants.get() >= majority);
+                }
+            });
+        }
+        boolean won;
+        try {
+            won = result.get(ServerProperties.LEASE_DURATION, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            won = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            won = false;
+        }
+        (won ? preVotesWon : preVotesLost).incrementAndGet();
+        logger.debug("Pre-vote " + (won ? "won" : "lost") + " with " + grants.get() + " of " + (peers.size() + 1) + " servers.");
+        return won;
+    }
+
+    /**
+     * Answer a pre-vote: agree unless this server still follows, or is, a leader whose lease hasn't run out.
+     *
+     * @param request - Pre-vote request.
+     * @return - Reply.
+     */
+    public synchronized JSONObject onPreVote(JSONObject request) {
+        long now = now();
+        boolean granted;
+        if (ServerState.getServerState().amITheLeader()) {
+            granted = now > heldUntil;
+        } else {
+            granted = leaseHolder == null || now > leaseExpiry;
+        }
+        return buildMessage(ServerConstants.KIND_PRE_VOTE, granted, term);
+    }
+
+    /**
+     * Answer a lease renewal: refuse it if it is from an older term than this server has seen, and grant it if it is
+     * from a newer term, or if this server hasn't granted the lease to another leader, or that lease has run out. A
+     * server without a leader follows the one it grants the lease to, which is how a server that starts finds the
+     * leader.
+     *
+     * @param request - Lease renewal.
+     * @return - Reply, with the highest term this server has seen.
+     */
+    public JSONObject onRenewal(JSONObject request) {
+        String senderId = (String) request.get(ServerConstants.SERVER_ID);
+        long senderTerm = termOf(request);
+        ServerState serverState = ServerState.getServerState();
+        boolean granted;
+        synchronized (this) {
+            long now = now();
+            if (senderTerm < term) {
+                // From a leader deposed since.
+                granted = false;
+            } else if (serverState.amITheLeader()) {
+                // Two leaders: the one of the newer term stays, or the one with the higher id after concurrent
+                // elections.
+                granted = senderTerm > term || Integer.parseInt(senderId) > Integer.parseInt(serverState.getServerId());
+                if (granted) {
+                    stepDown("server " + senderId + " is the leader too, of term " + senderTerm);
+                }
+            } else {
+                granted = senderTerm > term || leaseHolder == null || leaseHolder.equals(senderId) || now > leaseExpiry;
+            }
+            if (granted) {
+                term = senderTerm;
+                leaseHolder = senderId;
+                leaseExpiry = now + ServerProperties.LEASE_DURATION;
+                Leader leader = serverState.getCurrentLeader();
+                if (!LeaderElection.electionFlag && (leader == null || !leader.getId().equals(senderId))) {
+                    logger.info("Following server " + senderId + " as the leader by its lease.");
+                    serverState.setCurrentLeader(new Leader(serverState.getServerFromId(senderId)));
+                }
+            }
+            return buildMessage(ServerConstants.KIND_LEASE, granted, term);
+        }
+    }
+
+    /**
+     * Follow a newly elected leader and start its lease, at once so that the leader isn't taken for one whose lease
+     * has run out in between. This server starts a new term if it is the one elected.
+     *
+     * @param leaderId - Leader id.
+     */
+    public synchronized void onLeaderElected(String leaderId) {
+        long now = now();
+        if (leaseHolder != null && !leaseHolder.equals(leaderId) && now > leaseExpiry) {
+            // From the last renewal by the failed leader to the new leader.
+            lastFailover = now - (leaseExpiry - ServerProperties.LEASE_DURATION);
+            logger.info("Failed over from leader " + leaseHolder + " to " + leaderId + " in " + lastFailover + " ms.");
+        }
+        leaseHolder = leaderId;
+        leaseExpiry = now + ServerProperties.LEASE_DURATION;
+        ServerState serverState = ServerState.getServerState();
+        serverState.setCurrentLeader(new Leader(serverState.getServerFromId(leaderId)));
+        if (leaderId.equals(serverState.getServerId())) {
+            term++;
+            heldUntil = now + ServerProperties.LEASE_DURATION;
+        }
+    }
+
+    private synchronized void extendHeld(long renewedAt) {
+        heldUntil = Math.max(heldUntil, renewedAt + ServerProperties.LEASE_DURATION);
+    }
+
+    private synchronized void stepDown(String reason) {
+        logger.info("Stepping down as the leader: " + reason + ".");
+        stepDowns.incrementAndGet();
+        leaseHolder = null;
+        heldUntil = 0;
+        ServerState.getServerState().setCurrentLeader(null);
+    }
+
+    private static int majority() {
+        return (ServerState.getServerState().getClusterView().getPeers().size() + 1) / 2 + 1;
+    }
+
+    private static boolean isGranted(JSONObject reply) {
+        return Boolean.parseBoolean((String) reply.get(ServerConstants.GRANTED));
+    }
+
+    /**
+     * Term of a message; servers that don't send one count as term 0.
+     */
+    private static long termOf(JSONObject message) {
+        String term = (String) message.get(ServerConstants.TERM);
+        return term == null ? 0 : Long.parseLong(term);
+    }
+
+    private static JSONObject buildMessage(String kind, Boolean granted, long term) {
+        HashMap<String, String> message = new HashMap<>();
+        message.put(ServerConstants.TYPE, ServerConstants.TYPE_BULLY);
+        message.put(ServerConstants.KIND, kind);
+        message.put(ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
+        message.put(ServerConstants.TERM, String.valueOf(term));
+        if (granted != null) {
+            message.put(ServerConstants.GRANTED, granted.toString());
+        }
+        return new JSONObject(message);
+    }
+
+    /**
+     * Monotonic time in milliseconds; leases are measured on each server's own clock.
+     */
+    private static long monotonicNow() {
+        return (System.nanoTime() - ORIGIN) / 1_000_000;
+    }
+
+    private long now() {
+        return clock.getAsLong();
+    }
+
+    synchronized long getTerm() {
+        return term;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long now = now();
+        return "term=" + term + ", leaseHolder=" + leaseHolder + ", expiresIn=" + (leaseExpiry - now) +
+                (ServerState.getServerState().amITheLeader() ? ", heldFor=" + (heldUntil - now) : "") +
+                ", renewals=" + renewals.get() + ", preVotesWon=" + preVotesWon.get() + ", preVotesLost=" + preVotesLost.get() +
+                ", stepDowns=" + stepDowns.get() + ", lastFailover=" + lastFailover;
+    }
+}
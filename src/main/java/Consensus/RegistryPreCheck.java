@@ -0,0 +1,121 @@
+package Consensus;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+import Server.ServerState;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rejects values that are certainly taken before asking the leader: values in the local copy of the registry,
+ * and values the leader rejected while the local registry hasn't changed since.
+ * Only values that are probably free pay for the round trip.
+ */
+public class RegistryPreCheck {
+
+    private static RegistryPreCheck registryPreCheck;
+    private final Map<String, Rejection> rejections; // askType:value -> last rejection by the leader
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong rejectedByRegistry = new AtomicLong();
+    private final AtomicLong rejectedByCache = new AtomicLong();
+
+    private RegistryPreCheck() {
+        this.rejections = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Rejection> eldest) {
+                return size() > ServerProperties.PRE_CHECK_CACHE_SIZE;
+            }
+        };
+    }
+
+    public static RegistryPreCheck getRegistryPreCheck() {
+        if (registryPreCheck == null) {
+            synchronized (RegistryPreCheck.class) {
+                if (registryPreCheck == null) {
+                    registryPreCheck = new RegistryPreCheck();
+                }
+            }
+        }
+        return registryPreCheck;
+    }
+
+    /**
+     * Whether a value is certainly taken. Doesn't do any network I/O.
+     *
+     * @param value   - Identity or room id.
+     * @param askType - identity | roomid
+     * @return - True if the value can be rejected without asking the leader.
+     */
+    public boolean isTaken(String value, String askType) {
+        checked.incrementAndGet();
+        ServerState serverState = ServerState.getServerState();
+        boolean isRegistered = ServerConstants.IDENTITY.equals(askType) ?
+                serverState.containsIdentity(value) :
+                serverState.hasRoomId(value);
+        if (isRegistered) {
+            rejectedByRegistry.incrementAndGet();
+            return true;
+        }
+        Rejection rejection;
+        synchronized (rejections) {
+            rejection = rejections.get(key(value, askType));
+        }
+        // A rejection holds as long as nothing has been created or deleted since; the value may be
+        // reserved by a creation still on its way, which changes the version when it arrives.
+        if (rejection != null && rejection.registryVersion == serverState.getRegistryVersion() &&
+                System.currentTimeMillis() < rejection.expiry) {
+            rejectedByCache.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remember that the leader rejected a value.
+     *
+     * @param value           - Identity or room id.
+     * @param askType         - identity | roomid
+     * @param registryVersion - Version of the local registry when the leader was asked.
+     */
+    public void recordRejection(String value, String askType, long registryVersion) {
+        Rejection rejection = new Rejection(registryVersion, System.currentTimeMillis() + ServerProperties.RESERVATION_TTL);
+        synchronized (rejections) {
+            rejections.put(key(value, askType), rejection);
+        }
+    }
+
+    private static String key(String value, String askType) {
+        return askType + ":" + value;
+    }
+
+    public long getCheckedCount() {
+        return checked.get();
+    }
+
+    /**
+     * Round trips to the leader avoided so far.
+     *
+     * @return - Count.
+     */
+    public long getSavedRoundTrips() {
+        return rejectedByRegistry.get() + rejectedByCache.get();
+    }
+
+    @Override
+    public String toString() {
+        return "checked=" + checked.get() + ", rejectedByRegistry=" + rejectedByRegistry.get() +
+                ", rejectedByCache=" + rejectedByCache.get() + ", savedRoundTrips=" + getSavedRoundTrips();
+    }
+
+    private static class Rejection {
+        private final long registryVersion;
+        private final long expiry;
+
+        private Rejection(long registryVersion, long expiry) {
+            this.registryVersion = registryVersion;
+            this.expiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package Consensus;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+import Server.ServerState;
+import Utilities.Messaging;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Used by the leader. Queues identity and room reservations for a short window, or up to a maximum batch size,
+ * and verifies the whole batch with one round to the other servers. When the same value is reserved more than
+ * once in a batch, only the first reservation can succeed; values granted by earlier batches are held in the
+ * {@link ReservationTable}.
+ */
+public class ReservationBatcher {
+
+    private static final Logger logger = LogManager.getLogger(ReservationBatcher.class);
+    private static ReservationBatcher reservationBatcher;
+    private final ScheduledExecutorService verifier;
+    private List<Reservation> pendingReservations = new ArrayList<>();
+    private boolean flushScheduled = false;
+
+    private ReservationBatcher() {
+        // A single thread, so a batch collects the reservations made while the previous one is being verified.
+        this.verifier = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Reservation-Batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static ReservationBatcher getReservationBatcher() {
+        if (reservationBatcher == null) {
+            synchronized (ReservationBatcher.class) {
+                if (reservationBatcher == null) {
+                    reservationBatcher = new ReservationBatcher();
+                }
+            }
+        }
+        return reservationBatcher;
+    }
+
+    /**
+     * Queue a reservation to be verified with the next batch.
+     *
+     * @param value   - Identity or room id.
+     * @param askType - identity | roomid
+     * @return - Future completed with whether the value is available to this reservation.
+     */
+    public synchronized CompletableFuture<Boolean> reserve(String value, String askType) {
+        Reservation reservation = new Reservation(value, askType);
+        pendingReservations.add(reservation);
+        if (pendingReservations.size() >= ServerProperties.RESERVATION_BATCH_MAX_SIZE) {
+            verifier.execute(this::flush);
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            verifier.schedule(this::flush, ServerProperties.RESERVATION_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+        }
+        return reservation.result;
+    }
+
+    /**
+     * Verify everything queued so far, in batches of at most the maximum batch size.
+     */
+    private void flush() {
+        List<Reservation> reservations;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pendingReservations.isEmpty()) {
+                return;
+            }
+            reservations = pendingReservations;
+            pendingReservations = new ArrayList<>();
+        }
+        int maxSize = ServerProperties.RESERVATION_BATCH_MAX_SIZE;
+        for (int from = 0; from < reservations.size(); from += maxSize) {
+            List<Reservation> batch = reservations.subList(from, Math.min(from + maxSize, reservations.size()));
+            try {
+                verify(batch);
+            } catch (RuntimeException e) {
+                logger.debug("Reservation batch failed: " + e);
+                for (Reservation reservation : batch) {
+                    reservation.result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Verify one batch and answer each of its reservations.
+     *
+     * @param batch - Reservations.
+     */
+    private void verify(List<Reservation> batch) {
+        Set<String> identities = new HashSet<>();
+        Set<String> roomIds = new HashSet<>();
+        List<Reservation> firsts = new ArrayList<>();
+        for (Reservation reservation : batch) {
+            Set<String> values = ServerConstants.IDENTITY.equals(reservation.askType) ? identities : roomIds;
+            if (values.add(reservation.value)) {
+                firsts.add(reservation);
+            } else {
+                // Conflicts with an earlier reservation of the same batch.
+                reservation.result.complete(false);
+            }
+        }
+
+        HashMap<String, Object> request = new HashMap<>();
+        request.put(ServerConstants.TYPE, ServerConstants.TYPE_CONSENSUS);
+        request.put(ServerConstants.KIND, ServerConstants.KIND_VERIFY_UNIQUE_BATCH);
+        request.put(ServerConstants.IDENTITIES, new ArrayList<>(identities));
+        request.put(ServerConstants.ROOM_IDS, new ArrayList<>(roomIds));
+
+        logger.debug("Verifying " + batch.size() + " reservations: " + identities.size() + " identities, " + roomIds.size() + " rooms.");
+        Collection<JSONObject> responses = Messaging.askServers(new JSONObject(request), ServerState.getServerState().getServers()).values();
+        Set<String> takenIdentities = new HashSet<>();
+        Set<String> takenRoomIds = new HashSet<>();
+        for (JSONObject response : responses) {
+            addAll(takenIdentities, response.get(ServerConstants.IDENTITIES));
+            addAll(takenRoomIds, response.get(ServerConstants.ROOM_IDS));
+        }
+        for (Reservation reservation : firsts) {
+            Set<String> taken = ServerConstants.IDENTITY.equals(reservation.askType) ? takenIdentities : takenRoomIds;
+            reservation.result.complete(!taken.contains(reservation.value) &&
+                    ReservationTable.getReservationTable().reserve(reservation.value, reservation.askType));
+        }
+    }
+
+    private static void addAll(Set<String> values, Object array) {
+        if (array instanceof JSONArray) {
+            for (Object value : (JSONArray) array) {
+                values.add(String.valueOf(value));
+            }
+        }
+    }
+
+    private static class Reservation {
+        private final String value;
+        private final String askType;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private Reservation(String value, String askType) {
+            this.value = value;
+            this.askType = askType;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package Consensus;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Used by the leader. Identities and room ids it has granted, kept until the creating server deletes them again
+ * or the reservation expires, so that a value isn't granted twice before its creation has reached every registry.
+ */
+public class ReservationTable {
+
+    private static ReservationTable reservationTable;
+    private final HashMap<String, Long> identities = new HashMap<>(); // identity -> expiry
+    private final HashMap<String, Long> roomIds = new HashMap<>(); // room id -> expiry
+    private long nextSweep = 0;
+
+    private ReservationTable() {
+
+    }
+
+    public static ReservationTable getReservationTable() {
+        if (reservationTable == null) {
+            synchronized (ReservationTable.class) {
+                if (reservationTable == null) {
+                    reservationTable = new ReservationTable();
+                }
+            }
+        }
+        return reservationTable;
+    }
+
+    /**
+     * Reserve a value unless it is reserved already.
+     *
+     * @param value   - Identity or room id.
+     * @param askType - identity | roomid
+     * @return - True if the value has been reserved by this call.
+     */
+    public synchronized boolean reserve(String value, String askType) {
+        long now = System.currentTimeMillis();
+        if (now >= nextSweep) {
+            sweep(now);
+        }
+        Map<String, Long> reservations = reservationsOf(askType);
+        Long expiry = reservations.get(value);
+        if (expiry != null && expiry > now) {
+            return false;
+        }
+        reservations.put(value, now + ServerProperties.RESERVATION_TTL);
+        return true;
+    }
+
+    /**
+     * Release a value, e.g. when it is deleted from the registry.
+     *
+     * @param value   - Identity or room id.
+     * @param askType - identity | roomid
+     */
+    public synchronized void release(String value, String askType) {
+        reservationsOf(askType).remove(value);
+    }
+
+    public synchronized int size() {
+        return identities.size() + roomIds.size();
+    }
+
+    private Map<String, Long> reservationsOf(String askType) {
+        return ServerConstants.IDENTITY.equals(askType) ? identities : roomIds;
+    }
+
+    private void sweep(long now) {
+        identities.values().removeIf(expiry -> expiry <= now);
+        roomIds.values().removeIf(expiry -> expiry <= now);
+        nextSweep = now + ServerProperties.RESERVATION_TTL;
+    }
+}
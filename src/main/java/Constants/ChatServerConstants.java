@@ -25,6 +25,11 @@ public class ChatServerConstants {
         public static final String KIND = "kind";
         public static final String KIND_VERIFY_UNIQUE = "verifyunique";
 
+        // Uniqueness of several values in one round; peers reply with the values they already have.
+        public static final String KIND_VERIFY_UNIQUE_BATCH = "verifyuniquebatch";
+        public static final String IDENTITIES = "identities";
+        public static final String ROOM_IDS = "roomids";
+
         public static final String KIND_REQUEST_TO_CREATE_NEW_IDENTITY = "requesttocreatenewidentity";
         public static final String KIND_REPLY_TO_CREATE_NEW_IDENTITY = "replytocreatenewidentity";
 
@@ -37,6 +42,10 @@ public class ChatServerConstants {
         public static final String KIND_INFORM_NEW_ROOM = "informnewroom";
         public static final String KIND_INFORM_DELETE_ROOM = "informdeleteroom";
 
+        // Batch of inform entries applied as a whole.
+        public static final String KIND_REGISTRY_DELTA = "registrydelta";
+        public static final String ENTRIES = "entries";
+
         public static final String SUCCESS = "success";
 
         public static final String TYPE_BULLY = "bully";
@@ -46,11 +55,50 @@ public class ChatServerConstants {
         public static final String KIND_PASS = "pass";
         public static final String KIND_ELECTED = "elected";
         public static final String KIND_COORDINATOR = "coordinator";
-
+        // Leader lease renewals, and pre-votes before an election; both answered with whether they are granted.
+        public static final String KIND_LEASE = "lease";
+        public static final String KIND_PRE_VOTE = "prevote";
+        public static final String GRANTED = "granted";
+        // Term of the leader a lease renewal is from; in replies, the highest term the server has seen.
+        public static final String TERM = "term";
+
+        // Heartbeat table: the latest heartbeat timestamp known of every server, by server id.
         public static final String KIND_HEARTBEAT = "heartbeat";
-        public static final String TIMESTAMP = "timestamp";
+        public static final String HEARTBEATS = "heartbeats";
         public static final String LEADER_STATE_MERGE = "leaderstatemerge";
         public static final String IDENTITY_SERVER_CHANGE = "identityserverchange";
+
+        // Registry changes since a version, for a server that rejoins; the leader offers them with LEADER_STATE_MERGE.
+        public static final String TYPE_REGISTRY_SYNC = "registrysync";
+        public static final String KIND_SYNC_REQUEST = "syncrequest";
+        public static final String KIND_SYNC_REPLY = "syncreply";
+        public static final String EPOCH = "epoch";
+        public static final String VERSION = "version";
+        public static final String FULL = "full";
+        public static final String CHANGES = "changes";
+
+        // Registry hash tree root carried by heartbeats, and the walk down the tree to the buckets that differ.
+        public static final String DIGEST = "digest";
+        public static final String DIGEST_BUCKETS = "digestbuckets";
+        public static final String KIND_ANTI_ENTROPY = "antientropy";
+        public static final String LEVEL = "level";
+        public static final String NODES = "nodes";
+        public static final String HASHES = "hashes";
+
+        // Rumors of epidemic dissemination, pushed or piggybacked on heartbeat tables.
+        public static final String KIND_RUMOR = "rumor";
+        public static final String RUMOR_ID = "rumorid";
+        public static final String ORIGIN = "origin";
+        public static final String TTL = "ttl";
+        public static final String HOPS = "hops";
+        public static final String PAYLOAD = "payload";
+        public static final String RUMORS = "rumors";
+
+        // Matches a reply to its request on a shared connection.
+        public static final String CORRELATION_ID = "correlationid";
+        // Reply to a request that failed on the server it was sent to.
+        public static final String ERROR = "error";
+        public static final String ERROR_CODE = "errorcode";
     }
 
     /**
@@ -93,6 +141,56 @@ public class ChatServerConstants {
 
     }
 
+    /**
+     * Constants related to SWIM failure detection.
+     */
+    public static class SwimConstants {
+
+        public static final String PROTOCOL_SWIM = "swim";
+        public static final String TYPE_SWIM = "swim";
+
+        public static final String KIND_PING = "ping";
+        public static final String KIND_PING_REQ = "pingreq";
+        public static final String KIND_ACK = "ack";
+
+        public static final String SEQ = "seq";
+        public static final String TARGET = "target";
+        // Membership updates carried by every message: server id, state and incarnation.
+        public static final String UPDATES = "updates";
+        public static final String STATE = "state";
+        public static final String INCARNATION = "incarnation";
+    }
+
+    /**
+     * Constants related to the replicated registry log.
+     */
+    public static class RaftConstants {
+        public static final String TYPE_RAFT = "raft";
+
+        public static final String KIND_REQUEST_VOTE = "requestvote";
+        public static final String KIND_APPEND_ENTRIES = "appendentries";
+        public static final String KIND_INSTALL_SNAPSHOT = "installsnapshot";
+        public static final String KIND_FORWARD = "forward";
+
+        public static final String TERM = "term";
+        public static final String CANDIDATE_ID = "candidateid";
+        public static final String LEADER_ID = "leaderid";
+        public static final String LAST_LOG_INDEX = "lastlogindex";
+        public static final String LAST_LOG_TERM = "lastlogterm";
+        public static final String PREV_LOG_INDEX = "prevlogindex";
+        public static final String PREV_LOG_TERM = "prevlogterm";
+        public static final String ENTRIES = "entries";
+        public static final String COMMAND = "command";
+        public static final String LEADER_COMMIT = "leadercommit";
+        public static final String LAST_INCLUDED_INDEX = "lastincludedindex";
+        public static final String LAST_INCLUDED_TERM = "lastincludedterm";
+        public static final String DATA = "data";
+        public static final String VOTE_GRANTED = "votegranted";
+        public static final String SUCCESS = "success";
+        public static final String MATCH_INDEX = "matchindex";
+        public static final String INDEX = "index";
+    }
+
     public static class ServerExceptionConstants {
         public static final String NO_LEADER_MSG = "No elected leader present.";
         public static final String NO_LEADER_CODE = "SE-01";
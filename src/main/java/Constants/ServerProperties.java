@@ -9,9 +9,63 @@ import java.util.Properties;
 public class ServerProperties {
     public static long CONN_TIMEOUT;
     public static int THREAD_COUNT;
+    public static int MESSAGING_QUEUE_CAPACITY;
+    public static String MESSAGING_REJECTION_POLICY;
     public static final String LOCAL_ADDRESS = "0.0.0.0";
     public static int HEARTBEAT_PERIOD;
     public static int FAILURE_DETECTION_PERIOD;
+    public static String FAILURE_DETECTOR;
+    public static double PHI_THRESHOLD;
+    public static int PHI_WINDOW_SIZE;
+    public static double PHI_MIN_STD_DEVIATION;
+    public static long PHI_ACCEPTABLE_PAUSE;
+    public static String GOSSIP_PROTOCOL;
+    public static long SWIM_PERIOD;
+    public static long SWIM_PING_TIMEOUT;
+    public static int SWIM_INDIRECT_PROBES;
+    public static long SWIM_SUSPICION_TIMEOUT;
+    public static int SWIM_MAX_PIGGYBACK;
+    public static int DISSEMINATION_FANOUT;
+    public static int DISSEMINATION_TTL;
+    public static int DISSEMINATION_PIGGYBACK_ROUNDS;
+    public static int DISSEMINATION_MAX_PIGGYBACK;
+    public static int DISSEMINATION_SEEN_CACHE_SIZE;
+    public static String REGISTRY_DELTA_DISSEMINATION;
+    public static long REGISTRY_DELTA_WINDOW;
+    public static int REGISTRY_DELTA_MAX_ENTRIES;
+    public static int REGISTRY_SYNC_LOG_SIZE;
+    public static boolean ANTI_ENTROPY_ENABLED;
+    public static int ANTI_ENTROPY_BUCKETS;
+    public static int ANTI_ENTROPY_MISMATCH_ROUNDS;
+    public static String CLIENT_ENGINE;
+    public static int NIO_IO_THREADS;
+    public static int NIO_WORKER_THREADS;
+    public static String HANDLER_THREADS;
+    public static int CLIENT_OUTBOUND_QUEUE_CAPACITY;
+    public static String CLIENT_SLOW_CONSUMER_POLICY;
+    public static String PROTOCOL_CODEC;
+    public static int CLIENT_MAX_FRAME_LENGTH;
+    public static int SERVER_MAX_FRAME_LENGTH;
+    public static String CONSENSUS_MODE;
+    public static long RESERVATION_TTL;
+    public static int CONSENSUS_MAX_ATTEMPTS;
+    public static boolean PRE_CHECK_ENABLED;
+    public static int PRE_CHECK_CACHE_SIZE;
+    public static long CONSENSUS_INITIAL_BACKOFF;
+    public static long CONSENSUS_MAX_BACKOFF;
+    public static boolean LEASE_ENABLED;
+    public static long LEASE_DURATION;
+    public static long LEASE_RENEW_PERIOD;
+    public static long RESERVATION_BATCH_WINDOW;
+    public static int RESERVATION_BATCH_MAX_SIZE;
+    public static String REPLICATION_MODE;
+    public static long RAFT_ELECTION_TIMEOUT;
+    public static long RAFT_HEARTBEAT_PERIOD;
+    public static int RAFT_MAX_INFLIGHT;
+    public static int RAFT_MAX_BATCH;
+    public static long RAFT_SNAPSHOT_THRESHOLD;
+    public static long POOL_IDLE_TIMEOUT;
+    public static int POOL_HEALTH_CHECK_PERIOD;
 
 
     private static final Logger logger = LogManager.getLogger(ServerProperties.class);
@@ -20,11 +74,72 @@ public class ServerProperties {
         try {
             Properties prop = new Properties();
             prop.load(ServerProperties.class.getClassLoader().getResourceAsStream("config.properties"));
+            // Allow overriding any property at launch, e.g. -Dhandler.threads=virtual
+            for (String name : prop.stringPropertyNames()) {
+                String override = System.getProperty(name);
+                if (override != null) {
+                    prop.setProperty(name, override);
+                }
+            }
 
             CONN_TIMEOUT = Long.parseLong(prop.getProperty("connection.timeout"));
             THREAD_COUNT = Integer.parseInt(prop.getProperty("messaging.executor.threads"));
+            MESSAGING_QUEUE_CAPACITY = Integer.parseInt(prop.getProperty("messaging.executor.queue-capacity"));
+            MESSAGING_REJECTION_POLICY = prop.getProperty("messaging.executor.rejection-policy");
             HEARTBEAT_PERIOD = Integer.parseInt(prop.getProperty("gossiping.heartbeat.period"));
             FAILURE_DETECTION_PERIOD = Integer.parseInt(prop.getProperty("gossiping.failure-detection.period"));
+            FAILURE_DETECTOR = prop.getProperty("gossiping.failure-detector");
+            PHI_THRESHOLD = Double.parseDouble(prop.getProperty("gossiping.phi.threshold"));
+            PHI_WINDOW_SIZE = Integer.parseInt(prop.getProperty("gossiping.phi.window-size"));
+            PHI_MIN_STD_DEVIATION = Double.parseDouble(prop.getProperty("gossiping.phi.min-std-deviation"));
+            PHI_ACCEPTABLE_PAUSE = Long.parseLong(prop.getProperty("gossiping.phi.acceptable-pause"));
+            GOSSIP_PROTOCOL = prop.getProperty("gossiping.protocol");
+            SWIM_PERIOD = Long.parseLong(prop.getProperty("gossiping.swim.period"));
+            SWIM_PING_TIMEOUT = Long.parseLong(prop.getProperty("gossiping.swim.ping-timeout"));
+            SWIM_INDIRECT_PROBES = Integer.parseInt(prop.getProperty("gossiping.swim.indirect-probes"));
+            SWIM_SUSPICION_TIMEOUT = Long.parseLong(prop.getProperty("gossiping.swim.suspicion-timeout"));
+            SWIM_MAX_PIGGYBACK = Integer.parseInt(prop.getProperty("gossiping.swim.max-piggyback"));
+            DISSEMINATION_FANOUT = Integer.parseInt(prop.getProperty("gossiping.dissemination.fanout"));
+            DISSEMINATION_TTL = Integer.parseInt(prop.getProperty("gossiping.dissemination.ttl"));
+            DISSEMINATION_PIGGYBACK_ROUNDS = Integer.parseInt(prop.getProperty("gossiping.dissemination.piggyback-rounds"));
+            DISSEMINATION_MAX_PIGGYBACK = Integer.parseInt(prop.getProperty("gossiping.dissemination.max-piggyback"));
+            DISSEMINATION_SEEN_CACHE_SIZE = Integer.parseInt(prop.getProperty("gossiping.dissemination.seen-cache-size"));
+            REGISTRY_DELTA_DISSEMINATION = prop.getProperty("gossiping.registry-delta.dissemination");
+            REGISTRY_DELTA_WINDOW = Long.parseLong(prop.getProperty("gossiping.registry-delta.window"));
+            REGISTRY_DELTA_MAX_ENTRIES = Integer.parseInt(prop.getProperty("gossiping.registry-delta.max-entries"));
+            REGISTRY_SYNC_LOG_SIZE = Integer.parseInt(prop.getProperty("gossiping.registry-sync.log-size"));
+            ANTI_ENTROPY_ENABLED = Boolean.parseBoolean(prop.getProperty("gossiping.anti-entropy"));
+            ANTI_ENTROPY_BUCKETS = Integer.parseInt(prop.getProperty("gossiping.anti-entropy.buckets"));
+            ANTI_ENTROPY_MISMATCH_ROUNDS = Integer.parseInt(prop.getProperty("gossiping.anti-entropy.mismatch-rounds"));
+            CLIENT_ENGINE = prop.getProperty("client.engine");
+            NIO_IO_THREADS = Integer.parseInt(prop.getProperty("client.nio.io-threads"));
+            NIO_WORKER_THREADS = Integer.parseInt(prop.getProperty("client.nio.worker-threads"));
+            HANDLER_THREADS = prop.getProperty("handler.threads");
+            CLIENT_OUTBOUND_QUEUE_CAPACITY = Integer.parseInt(prop.getProperty("client.outbound.queue-capacity"));
+            CLIENT_SLOW_CONSUMER_POLICY = prop.getProperty("client.outbound.slow-consumer-policy");
+            PROTOCOL_CODEC = prop.getProperty("protocol.codec");
+            CLIENT_MAX_FRAME_LENGTH = Integer.parseInt(prop.getProperty("protocol.client.max-frame-length"));
+            SERVER_MAX_FRAME_LENGTH = Integer.parseInt(prop.getProperty("protocol.server.max-frame-length"));
+            CONSENSUS_MODE = prop.getProperty("consensus.mode");
+            RESERVATION_TTL = Long.parseLong(prop.getProperty("consensus.reservation-ttl"));
+            PRE_CHECK_ENABLED = Boolean.parseBoolean(prop.getProperty("consensus.pre-check"));
+            PRE_CHECK_CACHE_SIZE = Integer.parseInt(prop.getProperty("consensus.pre-check.cache-size"));
+            CONSENSUS_MAX_ATTEMPTS = Integer.parseInt(prop.getProperty("consensus.retry.max-attempts"));
+            CONSENSUS_INITIAL_BACKOFF = Long.parseLong(prop.getProperty("consensus.retry.initial-backoff"));
+            CONSENSUS_MAX_BACKOFF = Long.parseLong(prop.getProperty("consensus.retry.max-backoff"));
+            LEASE_ENABLED = Boolean.parseBoolean(prop.getProperty("consensus.lease"));
+            LEASE_DURATION = Long.parseLong(prop.getProperty("consensus.lease.duration"));
+            LEASE_RENEW_PERIOD = Long.parseLong(prop.getProperty("consensus.lease.renew-period"));
+            RESERVATION_BATCH_WINDOW = Long.parseLong(prop.getProperty("consensus.reservation-batch.window"));
+            RESERVATION_BATCH_MAX_SIZE = Integer.parseInt(prop.getProperty("consensus.reservation-batch.max-size"));
+            REPLICATION_MODE = prop.getProperty("replication.mode");
+            RAFT_ELECTION_TIMEOUT = Long.parseLong(prop.getProperty("replication.raft.election-timeout"));
+            RAFT_HEARTBEAT_PERIOD = Long.parseLong(prop.getProperty("replication.raft.heartbeat-period"));
+            RAFT_MAX_INFLIGHT = Integer.parseInt(prop.getProperty("replication.raft.max-inflight"));
+            RAFT_MAX_BATCH = Integer.parseInt(prop.getProperty("replication.raft.max-batch"));
+            RAFT_SNAPSHOT_THRESHOLD = Long.parseLong(prop.getProperty("replication.raft.snapshot-threshold"));
+            POOL_IDLE_TIMEOUT = Long.parseLong(prop.getProperty("messaging.pool.idle-timeout"));
+            POOL_HEALTH_CHECK_PERIOD = Integer.parseInt(prop.getProperty("messaging.pool.health-check-period"));
 
         } catch (IOException | NumberFormatException e) {
             logger.fatal("Properties file error");
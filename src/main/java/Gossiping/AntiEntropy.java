@@ -0,0 +1,207 @@
+package Gossiping;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+import Consensus.Leader;
+import Server.RegistryChange;
+import Server.RegistryChangeLog;
+import Server.RegistryDigest;
+import Server.ServerState;
+import Utilities.ConnectionPool;
+import Utilities.Messaging;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Repairs registry drift caused by lost inform messages. The leader's heartbeats carry the root of its registry
+ * hash tree; a server whose root keeps differing walks down the tree with the leader, one level per round trip,
+ * and transfers only the buckets that differ.
+ */
+public class AntiEntropy {
+
+    private static final Logger logger = LogManager.getLogger(AntiEntropy.class);
+    private static AntiEntropy antiEntropy;
+    private final AtomicBoolean repairing = new AtomicBoolean(false);
+    private final AtomicLong repairs = new AtomicLong();
+    private final AtomicLong repairedBuckets = new AtomicLong();
+    private final AtomicLong transferredEntries = new AtomicLong();
+    private int mismatches = 0;
+
+    private AntiEntropy() {
+
+    }
+
+    public static AntiEntropy getAntiEntropy() {
+        if (antiEntropy == null) {
+            synchronized (AntiEntropy.class) {
+                if (antiEntropy == null) {
+                    antiEntropy = new AntiEntropy();
+                }
+            }
+        }
+        return antiEntropy;
+    }
+
+    /**
+     * Add the root of this server's registry hash tree to a heartbeat.
+     *
+     * @param heartBeat - Heartbeat message.
+     */
+    public static void addDigest(HashMap<String, String> heartBeat) {
+        heartBeat.put(ServerConstants.DIGEST, Long.toString(ServerState.getServerState().getRegistryDigestRoot()));
+        heartBeat.put(ServerConstants.DIGEST_BUCKETS, Integer.toString(ServerState.getServerState().getRegistryDigestBuckets()));
+    }
+
+    /**
+     * Compare the registry with the leader's, and start a repair if they have differed on the last few heartbeats.
+     * Changes still on their way make registries differ for a moment, which a single heartbeat can't tell apart.
+     *
+     * @param heartBeat - Heartbeat, or SWIM message, from the leader.
+     */
+    public void onLeaderDigest(JSONObject heartBeat) {
+        ServerState serverState = ServerState.getServerState();
+        String digest = (String) heartBeat.get(ServerConstants.DIGEST);
+        Leader leader = serverState.getCurrentLeader();
+        if (digest == null || leader == null || serverState.amITheLeader()) {
+            return;
+        }
+        if (Integer.parseInt((String) heartBeat.get(ServerConstants.DIGEST_BUCKETS)) != serverState.getRegistryDigestBuckets()) {
+            logger.debug("Anti-entropy skipped: the leader's registry hash tree has a different number of buckets.");
+            return;
+        }
+        boolean repair;
+        synchronized (this) {
+            mismatches = Long.parseLong(digest) == serverState.getRegistryDigestRoot() ? 0 : mismatches + 1;
+            repair = mismatches >= ServerProperties.ANTI_ENTROPY_MISMATCH_ROUNDS && repairing.compareAndSet(false, true);
+            if (repair) {
+                mismatches = 0;
+            }
+        }
+        if (repair) {
+            logger.debug("Registry differs from the leader's. Starting anti-entropy.");
+            repairs.incrementAndGet();
+            List<Integer> root = new ArrayList<>();
+            root.add(0);
+            descend(leader, 0, root).whenComplete((ignored, error) -> {
+                repairing.set(false);
+                if (error != null) {
+                    logger.debug("Anti-entropy with the leader failed: " + error.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Compare some nodes of the tree with the leader's, and continue with the children that differ.
+     *
+     * @param leader - Leader.
+     * @param level  - Level of the nodes.
+     * @param nodes  - Nodes known to differ.
+     * @return - Future completed once the buckets below the nodes are repaired.
+     */
+    private CompletableFuture<Void> descend(Leader leader, int level, List<Integer> nodes) {
+        ServerState serverState = ServerState.getServerState();
+        if (level == serverState.getRegistryDigestDepth()) {
+            return repair(leader, new HashSet<>(nodes));
+        }
+        return ConnectionPool.getConnectionPool().requestAsync(leader, buildRequest(level, nodes)).thenCompose(reply -> {
+            JSONArray leaderHashes = (JSONArray) reply.get(ServerConstants.HASHES);
+            long[] hashes = serverState.getRegistryDigestChildren(level, nodes);
+            List<Integer> differing = new ArrayList<>();
+            for (int i = 0; i < hashes.length; i++) {
+                if (((Number) leaderHashes.get(i)).longValue() != hashes[i]) {
+                    differing.add(nodes.get(i / RegistryDigest.FANOUT) * RegistryDigest.FANOUT + i % RegistryDigest.FANOUT);
+                }
+            }
+            if (differing.isEmpty()) {
+                // Converged while walking down.
+                return CompletableFuture.completedFuture(null);
+            }
+            return descend(leader, level + 1, differing);
+        });
+    }
+
+    /**
+     * Replace the entries of some buckets with the leader's.
+     *
+     * @param leader  - Leader.
+     * @param buckets - Buckets that differ.
+     * @return - Future completed once the buckets are repaired.
+     */
+    private CompletableFuture<Void> repair(Leader leader, Set<Integer> buckets) {
+        int depth = ServerState.getServerState().getRegistryDigestDepth();
+        return ConnectionPool.getConnectionPool().requestAsync(leader, buildRequest(depth, new ArrayList<>(buckets))).thenAccept(reply -> {
+            List<RegistryChange> leaderEntries;
+            try {
+                leaderEntries = RegistryChangeLog.decode((String) reply.get(ServerConstants.CHANGES));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            List<JSONObject> reinforms = ServerState.getServerState().repairRegistryBuckets(buckets, leaderEntries);
+            repairedBuckets.addAndGet(buckets.size());
+            transferredEntries.addAndGet(leaderEntries.size());
+            logger.info("Anti-entropy repaired " + buckets.size() + " buckets with " + leaderEntries.size() +
+                    " entries from the leader; informing again about " + reinforms.size() + " own entries.");
+            if (!reinforms.isEmpty()) {
+                Messaging.informServersRegistry(reinforms);
+            }
+        });
+    }
+
+    /**
+     * Answer a request of the walk: children hashes of inner nodes, or the entries of buckets.
+     *
+     * @param request - Request with the level and nodes.
+     * @return - Reply.
+     */
+    public JSONObject answer(JSONObject request) {
+        ServerState serverState = ServerState.getServerState();
+        int level = Integer.parseInt((String) request.get(ServerConstants.LEVEL));
+        List<Integer> nodes = new ArrayList<>();
+        for (Object node : (JSONArray) request.get(ServerConstants.NODES)) {
+            nodes.add(((Number) node).intValue());
+        }
+        HashMap<String, Object> reply = new HashMap<>();
+        reply.put(ServerConstants.TYPE, ServerConstants.TYPE_GOSSIP);
+        reply.put(ServerConstants.KIND, ServerConstants.KIND_ANTI_ENTROPY);
+        if (level == serverState.getRegistryDigestDepth()) {
+            reply.put(ServerConstants.CHANGES, RegistryChangeLog.encode(serverState.getRegistryBuckets(new HashSet<>(nodes))));
+        } else {
+            List<Long> hashes = new ArrayList<>();
+            for (long hash : serverState.getRegistryDigestChildren(level, nodes)) {
+                hashes.add(hash);
+            }
+            reply.put(ServerConstants.HASHES, hashes);
+        }
+        return new JSONObject(reply);
+    }
+
+    private static JSONObject buildRequest(int level, List<Integer> nodes) {
+        HashMap<String, Object> request = new HashMap<>();
+        request.put(ServerConstants.TYPE, ServerConstants.TYPE_GOSSIP);
+        request.put(ServerConstants.KIND, ServerConstants.KIND_ANTI_ENTROPY);
+        request.put(ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
+        request.put(ServerConstants.LEVEL, Integer.toString(level));
+        request.put(ServerConstants.NODES, new ArrayList<>(nodes));
+        return new JSONObject(request);
+    }
+
+    @Override
+    public String toString() {
+        return "repairs=" + repairs.get() + ", repairedBuckets=" + repairedBuckets.get() +
+                ", transferredEntries=" + transferredEntries.get();
+    }
+}
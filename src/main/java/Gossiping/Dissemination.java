@@ -0,0 +1,302 @@
+package Gossiping;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+import Server.ClusterView;
+import Server.Server;
+import Server.ServerState;
+import Utilities.Messaging;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * Epidemic dissemination. Peers are sampled among the live servers only, walking a shuffled view of them so that
+ * every peer is picked once per pass. Rumors are pushed to fanout peers, pushed on by every server that hears of them
+ * first until their TTL runs out, and ride along with the next few heartbeat tables as well, to reach servers
+ * a push missed. Servers remember recent rumor ids, so every rumor is delivered once.
+ */
+public class Dissemination {
+
+    private static final Logger logger = LogManager.getLogger(Dissemination.class);
+    private static final int MAX_HOPS = 16;
+    private static Dissemination dissemination;
+    private final Map<String, Consumer<JSONObject>> handlers = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> seen;
+    private final LinkedList<HotRumor> hotRumors = new LinkedList<>();
+    private final String rumorPrefix;
+    private final AtomicLong sequence = new AtomicLong();
+    // Shuffled live peers, walked fanout at a time; rebuilt when the cluster view changes.
+    private final List<Server> view = new ArrayList<>();
+    private int viewIndex = 0;
+    private long viewVersion = -1;
+    private final AtomicLong originated = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong pushes = new AtomicLong();
+    private final AtomicLong piggybacked = new AtomicLong();
+    // Rumors delivered here by the number of hops they took, i.e. the gossip round this server was reached in.
+    private final AtomicLongArray hops = new AtomicLongArray(MAX_HOPS + 1);
+
+    private Dissemination() {
+        int seenCacheSize = ServerProperties.DISSEMINATION_SEEN_CACHE_SIZE;
+        this.seen = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > seenCacheSize;
+            }
+        };
+        // Rumor ids of a restarted server must not collide with the ones it spread before.
+        this.rumorPrefix = ServerState.getServerState().getServerId() + ":" + Long.toString(System.currentTimeMillis(), 36) + ":";
+    }
+
+    public static Dissemination getDissemination() {
+        if (dissemination == null) {
+            synchronized (Dissemination.class) {
+                if (dissemination == null) {
+                    dissemination = new Dissemination();
+                }
+            }
+        }
+        return dissemination;
+    }
+
+    /**
+     * Whether registry deltas are spread as rumors instead of being sent to every server.
+     */
+    public static boolean isRegistryDeltaEpidemic() {
+        return ServerProperties.REGISTRY_DELTA_DISSEMINATION.equals("epidemic");
+    }
+
+    /**
+     * Handle the rumors of a kind once they reach this server.
+     *
+     * @param kind    - Kind of the rumor payloads.
+     * @param handler - Handler, given the payload.
+     */
+    public void register(String kind, Consumer<JSONObject> handler) {
+        handlers.put(kind, handler);
+    }
+
+    /**
+     * Pick live peers to gossip to.
+     *
+     * @param fanout  - Number of peers.
+     * @param exclude - Server ids not to pick.
+     * @return - At most fanout distinct live peers.
+     */
+    public synchronized List<Server> samplePeers(int fanout, Set<String> exclude) {
+        ClusterView clusterView = ServerState.getServerState().getClusterView();
+        if (clusterView.getVersion() != viewVersion) {
+            viewVersion = clusterView.getVersion();
+            view.clear();
+            view.addAll(clusterView.getAlivePeers());
+            Collections.shuffle(view);
+            viewIndex = 0;
+        }
+        List<Server> peers = new ArrayList<>(fanout);
+        for (int i = 0; i < view.size() && peers.size() < fanout; i++) {
+            if (viewIndex >= view.size()) {
+                Collections.shuffle(view);
+                viewIndex = 0;
+            }
+            Server peer = view.get(viewIndex++);
+            if (!exclude.contains(peer.getId()) && !peers.contains(peer)) {
+                peers.add(peer);
+            }
+        }
+        return peers;
+    }
+
+    public List<Server> samplePeers(int fanout) {
+        return samplePeers(fanout, Set.of());
+    }
+
+    /**
+     * Pick a server that isn't known to be alive: not heard of yet, or suspected. Gossiping to one of them per round
+     * lets servers that start, or recover, be discovered.
+     *
+     * @return - Server, or null if every peer is alive.
+     */
+    public Server sampleNotAlive() {
+        ClusterView clusterView = ServerState.getServerState().getClusterView();
+        List<Server> others = new ArrayList<>();
+        for (Server peer : clusterView.getPeers()) {
+            if (!clusterView.getAlive().contains(peer.getId())) {
+                others.add(peer);
+            }
+        }
+        return others.isEmpty() ? null : others.get(ThreadLocalRandom.current().nextInt(others.size()));
+    }
+
+    /**
+     * Start a rumor. It isn't delivered on this server.
+     *
+     * @param payload - Message to deliver on the other servers; its kind selects the handler.
+     */
+    public void spread(JSONObject payload) {
+        String serverId = ServerState.getServerState().getServerId();
+        String rumorId = rumorPrefix + sequence.incrementAndGet();
+        markSeen(rumorId);
+        originated.incrementAndGet();
+        HashMap<String, Object> rumor = new HashMap<>();
+        rumor.put(ServerConstants.TYPE, ServerConstants.TYPE_GOSSIP);
+        rumor.put(ServerConstants.KIND, ServerConstants.KIND_RUMOR);
+        rumor.put(ServerConstants.RUMOR_ID, rumorId);
+        rumor.put(ServerConstants.ORIGIN, serverId);
+        rumor.put(ServerConstants.SERVER_ID, serverId);
+        rumor.put(ServerConstants.TTL, Integer.toString(ServerProperties.DISSEMINATION_TTL));
+        rumor.put(ServerConstants.HOPS, "1");
+        rumor.put(ServerConstants.PAYLOAD, payload);
+        push(new JSONObject(rumor), Set.of());
+    }
+
+    /**
+     * Deliver a rumor heard of for the first time, and pass it on while its TTL lasts.
+     *
+     * @param rumor - Rumor, pushed or piggybacked.
+     */
+    public void receive(JSONObject rumor) {
+        String rumorId = (String) rumor.get(ServerConstants.RUMOR_ID);
+        if (!markSeen(rumorId)) {
+            duplicates.incrementAndGet();
+            return;
+        }
+        delivered.incrementAndGet();
+        int hopCount = Integer.parseInt((String) rumor.get(ServerConstants.HOPS));
+        hops.incrementAndGet(Math.min(hopCount, MAX_HOPS));
+        JSONObject payload = (JSONObject) rumor.get(ServerConstants.PAYLOAD);
+        Consumer<JSONObject> handler = handlers.get((String) payload.get(ServerConstants.KIND));
+        if (handler == null) {
+            logger.debug("No handler for rumor " + rumorId + " of kind " + payload.get(ServerConstants.KIND));
+        } else {
+            handler.accept(payload);
+        }
+        int ttl = Integer.parseInt((String) rumor.get(ServerConstants.TTL));
+        if (ttl > 1) {
+            HashMap<String, Object> next = new HashMap<>();
+            for (Object key : rumor.keySet()) {
+                next.put((String) key, rumor.get(key));
+            }
+            next.put(ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
+            next.put(ServerConstants.TTL, Integer.toString(ttl - 1));
+            next.put(ServerConstants.HOPS, Integer.toString(hopCount + 1));
+            Set<String> exclude = new HashSet<>();
+            exclude.add((String) rumor.get(ServerConstants.SERVER_ID));
+            exclude.add((String) rumor.get(ServerConstants.ORIGIN));
+            push(new JSONObject(next), exclude);
+        }
+    }
+
+    /**
+     * Attach the rumors spread or heard of lately to a gossip message, e.g. a heartbeat table. Rumors take turns,
+     * so that each is attached the configured number of times.
+     *
+     * @param message - Message.
+     */
+    public void addPiggyback(Map<String, Object> message) {
+        List<JSONObject> rumors = new ArrayList<>();
+        synchronized (hotRumors) {
+            int count = Math.min(hotRumors.size(), ServerProperties.DISSEMINATION_MAX_PIGGYBACK);
+            for (int i = 0; i < count; i++) {
+                HotRumor hotRumor = hotRumors.removeFirst();
+                rumors.add(hotRumor.rumor);
+                if (--hotRumor.remaining > 0) {
+                    hotRumors.addLast(hotRumor);
+                }
+            }
+        }
+        if (!rumors.isEmpty()) {
+            piggybacked.addAndGet(rumors.size());
+            message.put(ServerConstants.RUMORS, rumors);
+        }
+    }
+
+    /**
+     * Receive the rumors attached to a gossip message.
+     *
+     * @param message - Message.
+     */
+    public void receivePiggyback(JSONObject message) {
+        JSONArray rumors = (JSONArray) message.get(ServerConstants.RUMORS);
+        if (rumors != null) {
+            for (Object rumor : rumors) {
+                receive((JSONObject) rumor);
+            }
+        }
+    }
+
+    private void push(JSONObject rumor, Set<String> exclude) {
+        Collection<Server> peers = samplePeers(ServerProperties.DISSEMINATION_FANOUT, exclude);
+        pushes.addAndGet(peers.size());
+        Messaging.sendAndForget(rumor, peers);
+        if (ServerProperties.DISSEMINATION_PIGGYBACK_ROUNDS > 0) {
+            synchronized (hotRumors) {
+                hotRumors.addLast(new HotRumor(rumor, ServerProperties.DISSEMINATION_PIGGYBACK_ROUNDS));
+                // Under a burst of rumors, piggyback the latest ones; the older ones have been pushed already.
+                while (hotRumors.size() > ServerProperties.DISSEMINATION_MAX_PIGGYBACK * ServerProperties.DISSEMINATION_PIGGYBACK_ROUNDS) {
+                    hotRumors.removeFirst();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return - True if the rumor wasn't seen before.
+     */
+    private boolean markSeen(String rumorId) {
+        synchronized (seen) {
+            return seen.put(rumorId, Boolean.TRUE) == null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder hopCounts = new StringBuilder();
+        long weightedHops = 0;
+        int maxHops = 0;
+        for (int i = 1; i <= MAX_HOPS; i++) {
+            long count = hops.get(i);
+            if (count > 0) {
+                hopCounts.append(i).append(':').append(count).append(' ');
+                weightedHops += i * count;
+                maxHops = i;
+            }
+        }
+        long deliveredCount = delivered.get();
+        return "originated=" + originated.get() + ", delivered=" + deliveredCount + ", duplicates=" + duplicates.get() +
+                ", pushes=" + pushes.get() + ", piggybacked=" + piggybacked.get() +
+                ", meanRounds=" + (deliveredCount == 0 ? 0 : String.format("%.2f", (double) weightedHops / deliveredCount)) +
+                ", maxRounds=" + maxHops + ", rounds=[" + hopCounts.toString().trim() + "]";
+    }
+
+    /**
+     * Rumor still to be piggybacked a number of times.
+     */
+    private static class HotRumor {
+        private final JSONObject rumor;
+        private int remaining;
+
+        private HotRumor(JSONObject rumor, int remaining) {
+            this.rumor = rumor;
+            this.remaining = remaining;
+        }
+    }
+}
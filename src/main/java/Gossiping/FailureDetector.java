@@ -2,30 +2,34 @@ package Gossiping;
 
 import Constants.ChatServerConstants;
 import Constants.ServerProperties;
+import Server.ClusterView;
 import Server.Room;
 import Server.ServerState;
 import Utilities.Messaging;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class FailureDetector extends TimerTask {
     private static final Logger logger = LogManager.getLogger(FailureDetector.class);
 
     @Override
     public void run() {
-        // runs every 6s
+        // runs every failure detection period, or every heartbeat period with the phi accrual detector
         try {
-            Set<Entry<String, Long>> entries = ServerState.getServerState().getHeartbeatMap().entrySet();
+            // With SWIM, servers are declared failed by SwimMembership instead of by heartbeat timeouts.
+            Set<Entry<String, Long>> entries = SwimMembership.isEnabled() ?
+                    Set.of() : ServerState.getServerState().getHeartbeatMap().entrySet();
             for (Entry<String, Long> entry : entries) {
-                if (System.currentTimeMillis() - entry.getValue() > ServerProperties.FAILURE_DETECTION_PERIOD &&
-                        !entry.getKey().equals(ServerState.getServerState().getServerId())) {
+                if (hasFailed(entry) && !entry.getKey().equals(ServerState.getServerState().getServerId())) {
                     // mark the server as dead
                     logger.error("Server failure detected through heartbeat. ServerId: " + entry.getKey());
                     Gossiping.removeServer(entry.getKey());
@@ -38,25 +42,30 @@ public class FailureDetector extends TimerTask {
                 ServerState.getServerState().purgeServerState();
             } else {
                 // Start election()
-                ConcurrentLinkedQueue<String> failedServersId = ServerState.getServerState().getFailedServers();
+                ClusterView view = ServerState.getServerState().getClusterView();
+                Set<String> failedServersId = view.getSuspected();
                 if (failedServersId.size() != 0) {
                     logger.trace("Partition has created. This server is in the large partition");
-                    if (ServerState.getServerState().amITheLeader()) {
+                    if (view.isLeader()) {
                         logger.info("Removing identities and rooms of servers in small partition.");
+                        List<JSONObject> removals = new ArrayList<>();
                         for (String serverId : failedServersId) {
                             // Remove rooms of small partition.
                             Collection<Room> roomsList = ServerState.getServerState().getRoomsByServer(serverId);
                             for (Room room : roomsList) {
-                                ServerState.getServerState().removeRoom(room);
-                                Messaging.informServersRoom(ChatServerConstants.ServerConstants.KIND_INFORM_DELETE_ROOM, room.getRoomId(), room.getOwner());
+                                removals.add(Messaging.buildRoomEntry(ChatServerConstants.ServerConstants.KIND_INFORM_DELETE_ROOM, room.getRoomId(), room.getOwner()));
                             }
                             // Remove identities of small partition.
                             Collection<String> idList = ServerState.getServerState().getIdentityByServer(serverId);
                             for (String id : idList) {
-                                ServerState.getServerState().removeIdentity(id);
-                                Messaging.informServersIdentity(ChatServerConstants.ServerConstants.KIND_INFORM_DELETE_IDENTITY, id);
+                                removals.add(Messaging.buildIdentityEntry(ChatServerConstants.ServerConstants.KIND_INFORM_DELETE_IDENTITY, id));
                             }
                         }
+                        // Apply and inform the other servers as one batch rather than one change at a time.
+                        if (!removals.isEmpty()) {
+                            ServerState.getServerState().applyRegistryDelta(removals);
+                            Messaging.informServersRegistry(removals);
+                        }
                     }
                 }
             }
@@ -66,10 +75,35 @@ public class FailureDetector extends TimerTask {
         }
     }
 
+    /**
+     * Whether the detector in use considers a server failed.
+     *
+     * @param entry - Server id and the timestamp of its latest heartbeat.
+     * @return - True if the server has failed.
+     */
+    private static boolean hasFailed(Entry<String, Long> entry) {
+        if (isPhiAccrual()) {
+            return PhiAccrualDetector.getPhiAccrualDetector().isSuspected(entry.getKey(), ServerProperties.PHI_THRESHOLD);
+        }
+        return System.currentTimeMillis() - entry.getValue() > ServerProperties.FAILURE_DETECTION_PERIOD;
+    }
+
+    public static boolean isPhiAccrual() {
+        return ServerProperties.FAILURE_DETECTOR.equals("phi");
+    }
+
+    /**
+     * @return - Period (ms) to run the failure detector at.
+     */
+    public static long getPeriod() {
+        return isPhiAccrual() ? ServerProperties.HEARTBEAT_PERIOD : ServerProperties.FAILURE_DETECTION_PERIOD;
+    }
+
     private static boolean detectPartition() {
-        int totalServers = ServerState.getServerState().getServers().size() + 1;
+        ClusterView view = ServerState.getServerState().getClusterView();
+        int totalServers = view.getPeers().size() + 1;
         int smallPartitionMaxSize = totalServers / 2; // rounds down
-        int failedServers = ServerState.getServerState().getFailedServers().size();
+        int failedServers = view.getSuspected().size();
         return failedServers > smallPartitionMaxSize;
     }
 }
@@ -1,68 +1,120 @@
 package Gossiping;
 
+import Consensus.Leader;
 import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
 import Server.Server;
 import Server.ServerState;
+import Utilities.ConnectionPool;
 import Utilities.Messaging;
-import Utilities.Util;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.simple.JSONObject;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 
 public class Gossiping {
     private static final Logger logger = LogManager.getLogger(Gossiping.class);
 
-    public static synchronized void receiveHeartBeat(JSONObject request) throws IOException {
-        long receivedTimestamp = Long.parseLong((String) request.get(ServerConstants.TIMESTAMP));
-        String serverId = (String) request.get(ServerConstants.SERVER_ID);
+    /**
+     * Merge a heartbeat table gossiped by another server. Every entry is merged on its own, keeping the newer
+     * timestamp, so tables from different servers are merged concurrently.
+     *
+     * @param request - Heartbeat table message.
+     */
+    public static void receiveHeartBeatTable(JSONObject request) {
+        String senderId = (String) request.get(ServerConstants.SERVER_ID);
+        String myId = ServerState.getServerState().getServerId();
+        JSONObject table = (JSONObject) request.get(ServerConstants.HEARTBEATS);
+        for (Object object : table.entrySet()) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) object;
+            String serverId = (String) entry.getKey();
+            if (myId.equals(serverId)) {
+                continue;
+            }
+            boolean newer = mergeHeartBeat(serverId, Long.parseLong((String) entry.getValue()));
+            Leader leader = ServerState.getServerState().getCurrentLeader();
+            if (newer && ServerProperties.ANTI_ENTROPY_ENABLED && serverId.equals(senderId) &&
+                    leader != null && leader.getId().equals(serverId)) {
+                // The digest in the table is the sender's own.
+                AntiEntropy.getAntiEntropy().onLeaderDigest(request);
+            }
+        }
+        Dissemination.getDissemination().receivePiggyback(request);
+    }
+
+    /**
+     * Keep the newer of a gossiped heartbeat and the one known of a server, discovering the server if unknown.
+     *
+     * @param serverId  - Server id.
+     * @param timeStamp - Heartbeat timestamp, by the server's own clock.
+     * @return - True if the heartbeat was newer.
+     */
+    private static boolean mergeHeartBeat(String serverId, long timeStamp) {
         ConcurrentHashMap<String, Long> heartBeatMap = ServerState.getServerState().getHeartbeatMap();
-        if (!ServerState.getServerState().getServerId().equals(serverId)) { //if not this server's id
-            if (heartBeatMap.containsKey(serverId)) {
-                long currentTimeStamp = heartBeatMap.get(serverId);
-                if (currentTimeStamp < receivedTimestamp) {
-                    heartBeatMap.put(serverId, receivedTimestamp);
-                    forwardHeartBeat(request);
+        Long current = heartBeatMap.get(serverId);
+        while (current == null || current < timeStamp) {
+            if (current == null) {
+                if (ServerState.getServerState().isStaleHeartBeat(serverId, timeStamp)) {
+                    return false;
                 }
-            } else {
-                logger.debug("Discovered server through Gossiping. Server id: " + serverId);
-                ServerState.getServerState().addMainHallOfDetectedServer(serverId);
-                if (ServerState.getServerState().amITheLeader()) {
-                    logger.debug("Sending ServerState since I'm the Leader.");
-                    HashMap<String, String> serializedServerState = ServerState.getServerState().getCurrentServerState();
-                    serializedServerState.put(ServerConstants.TYPE, ServerConstants.LEADER_STATE_MERGE);
-                    Collection<Server> serverAsACollection = new ArrayList<>();
-                    serverAsACollection.add(ServerState.getServerState().getServerFromId(serverId));
-                    Messaging.sendAndForget(new JSONObject(serializedServerState), serverAsACollection);
+                if (heartBeatMap.putIfAbsent(serverId, timeStamp) == null) {
+                    logger.debug("Discovered server through Gossiping. Server id: " + serverId);
+                    discoverServer(serverId, timeStamp);
+                    return true;
                 }
-                addServer(serverId, receivedTimestamp);
-                forwardHeartBeat(request);
+            } else if (heartBeatMap.replace(serverId, current, timeStamp)) {
+                PhiAccrualDetector.getPhiAccrualDetector().heartbeat(serverId);
+                return true;
             }
+            current = heartBeatMap.get(serverId);
         }
+        return false;
     }
 
-    private static void forwardHeartBeat(JSONObject request) {
-        Messaging.sendAndForget(request, Util.getRandomServers(ServerState.getServerState().getServers(), 2));
+    /**
+     * Add a newly discovered or recovered server; the leader offers it the registry.
+     *
+     * @param serverId  - Server id.
+     * @param timeStamp - Time it was last heard of.
+     */
+    public static void discoverServer(String serverId, long timeStamp) {
+        ServerState.getServerState().addMainHallOfDetectedServer(serverId);
+        if (ServerState.getServerState().amITheLeader()) {
+            // The server asks for the changes it hasn't seen yet, see ServerState#applyRegistrySync.
+            logger.debug("Offering registry sync since I'm the Leader.");
+            HashMap<String, String> offer = new HashMap<>();
+            offer.put(ServerConstants.TYPE, ServerConstants.LEADER_STATE_MERGE);
+            offer.put(ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
+            offer.put(ServerConstants.EPOCH, String.valueOf(ServerState.getServerState().getRegistryEpoch()));
+            offer.put(ServerConstants.VERSION, String.valueOf(ServerState.getServerState().getRegistryVersion()));
+            Collection<Server> serverAsACollection = new ArrayList<>();
+            serverAsACollection.add(ServerState.getServerState().getServerFromId(serverId));
+            Messaging.sendAndForget(new JSONObject(offer), serverAsACollection);
+        }
+        addServer(serverId, timeStamp);
     }
 
     public static synchronized void removeServer(String serverId) {
-        ServerState.getServerState().getFailedServers().add(serverId);
-        ServerState.getServerState().getHeartbeatMap().remove(serverId);
+        ServerState.getServerState().markServerFailed(serverId);
+        PhiAccrualDetector.getPhiAccrualDetector().remove(serverId);
+        ConnectionPool.getConnectionPool().evict(serverId);
     }
 
     public static synchronized void addServer(String serverId, long timeStamp) {
-        ServerState.getServerState().getFailedServers().remove(serverId);
-        ServerState.getServerState().getHeartbeatMap().put(serverId, timeStamp);
+        ServerState.getServerState().markServerAlive(serverId, timeStamp);
+        // Intervals from before the server failed, or before a purge, say nothing about it now.
+        PhiAccrualDetector.getPhiAccrualDetector().remove(serverId);
+        PhiAccrualDetector.getPhiAccrualDetector().heartbeat(serverId);
     }
 
     public static boolean failedServerMapContains(String serverId) {
-        return ServerState.getServerState().getFailedServers().contains(serverId);
+        return ServerState.getServerState().getClusterView().getSuspected().contains(serverId);
     }
 
 }
@@ -1,6 +1,7 @@
 package Gossiping;
 
 import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
 import Server.Server;
 import Server.ServerState;
 import Utilities.Messaging;
@@ -8,18 +9,31 @@ import org.json.simple.JSONObject;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.TimerTask;
 
-import static Utilities.Util.getRandomServers;
-
 public class HeartBeatSender extends TimerTask {
 
+    /**
+     * Build a heartbeat table: this server's new heartbeat and the latest one known of every other live server.
+     */
     private static JSONObject buildHeartBeatMessage(long timestamp) {
-        HashMap<String, String> requestMap = new HashMap<>();
+        HashMap<String, String> table = new HashMap<>();
+        for (Map.Entry<String, Long> entry : ServerState.getServerState().getHeartbeatMap().entrySet()) {
+            table.put(entry.getKey(), Long.toString(entry.getValue()));
+        }
+        table.put(ServerState.getServerState().getServerId(), Long.toString(timestamp));
+        HashMap<String, Object> requestMap = new HashMap<>();
         requestMap.put(ServerConstants.TYPE, ServerConstants.TYPE_GOSSIP);
         requestMap.put(ServerConstants.KIND, ServerConstants.KIND_HEARTBEAT);
-        requestMap.put(ServerConstants.TIMESTAMP, Long.toString(timestamp));
         requestMap.put(ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
+        if (ServerProperties.ANTI_ENTROPY_ENABLED) {
+            HashMap<String, String> digest = new HashMap<>();
+            AntiEntropy.addDigest(digest);
+            requestMap.putAll(digest);
+        }
+        requestMap.put(ServerConstants.HEARTBEATS, table);
+        Dissemination.getDissemination().addPiggyback(requestMap);
         return new JSONObject(requestMap);
     }
 
@@ -27,7 +41,11 @@ public class HeartBeatSender extends TimerTask {
     public void run() {
         //increase my heartbeat timestamp
         ServerState.getServerState().setMyHeartBeat(System.currentTimeMillis());
-        Collection<Server> randomServers = getRandomServers(ServerState.getServerState().getServers(), 2);
+        Collection<Server> randomServers = Dissemination.getDissemination().samplePeers(ServerProperties.DISSEMINATION_FANOUT);
+        Server notAlive = Dissemination.getDissemination().sampleNotAlive();
+        if (notAlive != null) {
+            randomServers.add(notAlive);
+        }
         Messaging.sendAndForget(buildHeartBeatMessage(ServerState.getServerState().getMyHeartBeat()), randomServers);
 
     }
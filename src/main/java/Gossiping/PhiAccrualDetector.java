@@ -0,0 +1,176 @@
+package Gossiping;
+
+import Constants.ServerProperties;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.). Keeps the intervals between the latest heartbeats of each
+ * server and turns the time since its last heartbeat into a suspicion level, phi: the chance that a heartbeat this
+ * late is still to come is 10^-phi, assuming normally distributed intervals. Slow or jittery links thus get more
+ * time than steady ones, without one fixed timeout for all.
+ */
+public class PhiAccrualDetector {
+
+    private static PhiAccrualDetector phiAccrualDetector;
+    private final Map<String, ArrivalWindow> windows = new ConcurrentHashMap<>();
+    private final LongSupplier clock;
+    private final int windowSize;
+    private final double minStdDeviation;
+    private final long firstHeartbeatEstimate;
+    private final long acceptablePause;
+
+    /**
+     * @param clock                  - Time in milliseconds.
+     * @param windowSize             - Intervals kept per server.
+     * @param minStdDeviation        - Lower bound of the standard deviation (ms), so that very regular heartbeats
+     *                                 don't make a little delay look like a failure.
+     * @param firstHeartbeatEstimate - Expected interval (ms) until enough heartbeats have arrived.
+     * @param acceptablePause        - Delay (ms) tolerated on top of the mean interval, e.g. for heartbeats that
+     *                                 reach this server only through other servers, or a busy server.
+     */
+    public PhiAccrualDetector(LongSupplier clock, int windowSize, double minStdDeviation, long firstHeartbeatEstimate,
+                              long acceptablePause) {
+        this.clock = clock;
+        this.windowSize = windowSize;
+        this.minStdDeviation = minStdDeviation;
+        this.firstHeartbeatEstimate = firstHeartbeatEstimate;
+        this.acceptablePause = acceptablePause;
+    }
+
+    public static PhiAccrualDetector getPhiAccrualDetector() {
+        if (phiAccrualDetector == null) {
+            synchronized (PhiAccrualDetector.class) {
+                if (phiAccrualDetector == null) {
+                    phiAccrualDetector = new PhiAccrualDetector(System::currentTimeMillis, ServerProperties.PHI_WINDOW_SIZE,
+                            ServerProperties.PHI_MIN_STD_DEVIATION, ServerProperties.HEARTBEAT_PERIOD,
+                            ServerProperties.PHI_ACCEPTABLE_PAUSE);
+                }
+            }
+        }
+        return phiAccrualDetector;
+    }
+
+    /**
+     * Record the arrival of a new heartbeat of a server.
+     *
+     * @param serverId - Server id.
+     */
+    public void heartbeat(String serverId) {
+        long now = clock.getAsLong();
+        windows.computeIfAbsent(serverId, id -> new ArrivalWindow()).arrive(now);
+    }
+
+    /**
+     * Suspicion level of a server.
+     *
+     * @param serverId - Server id.
+     * @return - Phi; 0 for a server no heartbeat has been recorded of.
+     */
+    public double phi(String serverId) {
+        ArrivalWindow window = windows.get(serverId);
+        return window == null ? 0.0 : window.phi(clock.getAsLong());
+    }
+
+    /**
+     * Whether a server is suspected beyond a threshold.
+     *
+     * @param serverId  - Server id.
+     * @param threshold - Phi threshold.
+     * @return - True if the server is considered failed.
+     */
+    public boolean isSuspected(String serverId, double threshold) {
+        return phi(serverId) >= threshold;
+    }
+
+    /**
+     * Forget a server, e.g. once it has been declared failed; it starts over when it is heard of again.
+     *
+     * @param serverId - Server id.
+     */
+    public void remove(String serverId) {
+        windows.remove(serverId);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("PhiAccrualDetector{");
+        long now = clock.getAsLong();
+        for (Map.Entry<String, ArrivalWindow> entry : windows.entrySet()) {
+            builder.append(entry.getKey()).append('=').append(String.format("%.2f", entry.getValue().phi(now))).append(' ');
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * Sliding window of heartbeat intervals, in a ring of primitives with running sums.
+     */
+    private class ArrivalWindow {
+        private final long[] intervals = new long[windowSize];
+        private int count = 0;
+        private int next = 0;
+        private double sum = 0;
+        private double sumOfSquares = 0;
+        private long lastArrival = -1;
+
+        private ArrivalWindow() {
+            // Until real intervals arrive, assume heartbeats at the expected rate with some deviation.
+            long deviation = firstHeartbeatEstimate / 4;
+            add(firstHeartbeatEstimate - deviation);
+            add(firstHeartbeatEstimate + deviation);
+        }
+
+        private synchronized void arrive(long now) {
+            if (lastArrival >= 0) {
+                add(now - lastArrival);
+            }
+            lastArrival = now;
+        }
+
+        private void add(long interval) {
+            if (count == intervals.length) {
+                long oldest = intervals[next];
+                sum -= oldest;
+                sumOfSquares -= (double) oldest * oldest;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % intervals.length;
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+        }
+
+        private synchronized double phi(long now) {
+            if (lastArrival < 0 || count == 0) {
+                return 0.0;
+            }
+            double mean = sum / count;
+            double variance = Math.max(sumOfSquares / count - mean * mean, 0);
+            double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviation);
+            return PhiAccrualDetector.phi(now - lastArrival, mean + acceptablePause, stdDeviation);
+        }
+    }
+
+    /**
+     * -log10 of the probability that a heartbeat comes later than timeDiff, using a logistic approximation of the
+     * normal distribution that stays finite for large deviations.
+     *
+     * @param timeDiff     - Time since the last heartbeat (ms).
+     * @param mean         - Mean interval (ms).
+     * @param stdDeviation - Standard deviation of the intervals (ms).
+     * @return - Phi.
+     */
+    static double phi(long timeDiff, double mean, double stdDeviation) {
+        double y = (timeDiff - mean) / stdDeviation;
+        double exponent = -y * (1.5976 + 0.070566 * y * y);
+        if (timeDiff > mean) {
+            // -log10(e / (1 + e)) with e = exp(exponent), taken in log space: e underflows to 0 for large y.
+            return (Math.log1p(Math.exp(exponent)) - exponent) / Math.log(10);
+        }
+        double e = Math.exp(exponent);
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
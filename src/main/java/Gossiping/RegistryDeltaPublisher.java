@@ -0,0 +1,106 @@
+package Gossiping;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+import Server.ServerState;
+import Utilities.Messaging;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects identity and room changes for a short window, or up to a maximum number of entries,
+ * and informs the other servers with one batched delta instead of one message per change.
+ */
+public class RegistryDeltaPublisher {
+
+    private static final Logger logger = LogManager.getLogger(RegistryDeltaPublisher.class);
+    private static RegistryDeltaPublisher registryDeltaPublisher;
+    private final ScheduledExecutorService flusher;
+    private List<JSONObject> pendingEntries = new ArrayList<>();
+    private boolean flushScheduled = false;
+
+    private RegistryDeltaPublisher() {
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Registry-Delta-Publisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static RegistryDeltaPublisher getRegistryDeltaPublisher() {
+        if (registryDeltaPublisher == null) {
+            synchronized (RegistryDeltaPublisher.class) {
+                if (registryDeltaPublisher == null) {
+                    registryDeltaPublisher = new RegistryDeltaPublisher();
+                }
+            }
+        }
+        return registryDeltaPublisher;
+    }
+
+    /**
+     * Queue a registry change to be sent with the next delta.
+     *
+     * @param entry - Change, in the same form as a single inform message.
+     */
+    public void publish(JSONObject entry) {
+        publishAll(List.of(entry));
+    }
+
+    /**
+     * Queue registry changes to be sent with the next delta, keeping their order.
+     *
+     * @param entries - Changes.
+     */
+    public synchronized void publishAll(Collection<JSONObject> entries) {
+        pendingEntries.addAll(entries);
+        if (pendingEntries.size() >= ServerProperties.REGISTRY_DELTA_MAX_ENTRIES) {
+            flusher.execute(this::flush);
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            flusher.schedule(this::flush, ServerProperties.REGISTRY_DELTA_WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send everything collected so far, in deltas of at most the maximum number of entries.
+     */
+    private void flush() {
+        List<JSONObject> entries;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pendingEntries.isEmpty()) {
+                return;
+            }
+            entries = pendingEntries;
+            pendingEntries = new ArrayList<>();
+        }
+        int maxEntries = ServerProperties.REGISTRY_DELTA_MAX_ENTRIES;
+        for (int from = 0; from < entries.size(); from += maxEntries) {
+            send(new ArrayList<>(entries.subList(from, Math.min(from + maxEntries, entries.size()))));
+        }
+    }
+
+    private void send(List<JSONObject> entries) {
+        HashMap<String, Object> delta = new HashMap<>();
+        delta.put(ServerConstants.TYPE, ServerConstants.TYPE_GOSSIP);
+        delta.put(ServerConstants.KIND, ServerConstants.KIND_REGISTRY_DELTA);
+        delta.put(ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
+        delta.put(ServerConstants.ENTRIES, entries);
+        logger.debug("Publishing registry delta with " + entries.size() + " entries.");
+        if (Dissemination.isRegistryDeltaEpidemic()) {
+            Dissemination.getDissemination().spread(new JSONObject(delta));
+        } else {
+            Messaging.sendAndForget(new JSONObject(delta), ServerState.getServerState().getServers());
+        }
+    }
+}
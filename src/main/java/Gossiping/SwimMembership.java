@@ -0,0 +1,453 @@
+package Gossiping;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ChatServerConstants.SwimConstants;
+import Constants.ServerProperties;
+import Consensus.Leader;
+import Server.Server;
+import Server.ServerState;
+import Utilities.Messaging;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SWIM failure detection over UDP, on the same port number as the coordination port.
+ * Every period one server is pinged; if it doesn't ack in time, a few other servers are asked to ping it. A server
+ * that doesn't answer either way is suspected, and declared failed if nobody hears from it before the suspicion
+ * times out. A server that hears it is suspected refutes by raising its incarnation number.
+ * Membership changes ride on the pings and acks.
+ */
+public class SwimMembership {
+
+    private static final Logger logger = LogManager.getLogger(SwimMembership.class);
+    private static final int MAX_DATAGRAM = 65507;
+    private static final int RETRANSMIT_MULTIPLIER = 3;
+    private static SwimMembership swimMembership;
+    private final Map<String, Member> members = new HashMap<>(); // guarded by this
+    private final Map<String, Update> updates = new LinkedHashMap<>(); // server id -> update to spread, guarded by this
+    private final ConcurrentHashMap<Long, CompletableFuture<Void>> pendingAcks = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ScheduledExecutorService prober;
+    private final List<String> probeOrder = new ArrayList<>();
+    private long incarnation; // guarded by this
+    private int probeIndex = 0;
+    private DatagramSocket socket;
+
+    private SwimMembership() {
+        // A restarted server starts above the incarnation others last saw of it.
+        this.incarnation = System.currentTimeMillis();
+        this.prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Swim-Prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static SwimMembership getSwimMembership() {
+        if (swimMembership == null) {
+            synchronized (SwimMembership.class) {
+                if (swimMembership == null) {
+                    swimMembership = new SwimMembership();
+                }
+            }
+        }
+        return swimMembership;
+    }
+
+    public static boolean isEnabled() {
+        return SwimConstants.PROTOCOL_SWIM.equals(ServerProperties.GOSSIP_PROTOCOL);
+    }
+
+    /**
+     * Bind the UDP socket and start probing.
+     *
+     * @throws IOException - If the socket can't be bound.
+     */
+    public void start() throws IOException {
+        socket = new DatagramSocket(new InetSocketAddress(ServerProperties.LOCAL_ADDRESS, ServerState.getServerState().getCoordinationPort()));
+        Thread receiver = new Thread(this::receive, "Swim-Receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        prober.scheduleAtFixedRate(this::probe, 0, ServerProperties.SWIM_PERIOD, TimeUnit.MILLISECONDS);
+        logger.info("SWIM failure detection on UDP port " + socket.getLocalPort());
+    }
+
+    /**
+     * One protocol period: time out suspicions, then probe the next server.
+     */
+    private void probe() {
+        try {
+            expireSuspicions();
+            Server target = nextTarget();
+            if (target == null) {
+                return;
+            }
+            long seq = sequence.incrementAndGet();
+            CompletableFuture<Void> ack = expectAck(seq);
+            send(target, createMessage(SwimConstants.KIND_PING, seq));
+            ack.orTimeout(ServerProperties.SWIM_PING_TIMEOUT, TimeUnit.MILLISECONDS).whenCompleteAsync((ignored, error) -> {
+                if (error == null) {
+                    return;
+                }
+                // No direct ack: ask other servers to ping the target on our behalf, until the period ends.
+                CompletableFuture<Void> indirectAck = expectAck(seq);
+                JSONObject pingReq = createMessage(SwimConstants.KIND_PING_REQ, seq, target.getId());
+                for (Server helper : pickHelpers(target.getId())) {
+                    send(helper, pingReq);
+                }
+                long remaining = Math.max(ServerProperties.SWIM_PERIOD - ServerProperties.SWIM_PING_TIMEOUT, 1);
+                indirectAck.orTimeout(remaining, TimeUnit.MILLISECONDS).whenCompleteAsync((ignoredAgain, indirectError) -> {
+                    if (indirectError != null) {
+                        suspect(target.getId());
+                    }
+                }, prober);
+            }, prober);
+        } catch (RuntimeException e) {
+            logger.debug("SWIM probe failed: " + e);
+        }
+    }
+
+    /**
+     * Servers are probed in a shuffled round robin, so each is probed once per round. Failed servers are probed too,
+     * so that they find out and refute if they are in fact alive.
+     *
+     * @return - Server to probe, or null if there is none.
+     */
+    private synchronized Server nextTarget() {
+        if (probeIndex >= probeOrder.size()) {
+            probeOrder.clear();
+            for (Server server : ServerState.getServerState().getServers()) {
+                probeOrder.add(server.getId());
+            }
+            Collections.shuffle(probeOrder);
+            probeIndex = 0;
+        }
+        while (probeIndex < probeOrder.size()) {
+            Server server = ServerState.getServerState().getServerFromId(probeOrder.get(probeIndex++));
+            if (server != null) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    private synchronized List<Server> pickHelpers(String targetId) {
+        List<Server> helpers = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member.state == State.ALIVE && !member.serverId.equals(targetId)) {
+                Server server = ServerState.getServerState().getServerFromId(member.serverId);
+                if (server != null) {
+                    helpers.add(server);
+                }
+            }
+        }
+        Collections.shuffle(helpers);
+        return helpers.subList(0, Math.min(ServerProperties.SWIM_INDIRECT_PROBES, helpers.size()));
+    }
+
+    private CompletableFuture<Void> expectAck(long seq) {
+        CompletableFuture<Void> ack = new CompletableFuture<>();
+        pendingAcks.put(seq, ack);
+        ack.whenComplete((ignored, error) -> pendingAcks.remove(seq, ack));
+        return ack;
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                int length = packet.getLength();
+                if (length > 0 && buffer[length - 1] == '\n') {
+                    length--;
+                }
+                handle(Messaging.decodeServerMessage(buffer, 0, length), packet.getSocketAddress());
+            } catch (IOException | ParseException | RuntimeException e) {
+                logger.debug("SWIM message dropped: " + e);
+            }
+        }
+    }
+
+    private void handle(JSONObject message, SocketAddress sender) {
+        String senderId = (String) message.get(ServerConstants.SERVER_ID);
+        applyUpdates((JSONArray) message.get(SwimConstants.UPDATES));
+        synchronized (this) {
+            Member member = members.get(senderId);
+            if (member != null && member.state != State.ALIVE) {
+                // Tell the sender what it is taken for, with the reply, so that it refutes.
+                enqueue(new Update(senderId, member.state, member.incarnation));
+            }
+        }
+        Leader leader = ServerState.getServerState().getCurrentLeader();
+        if (ServerProperties.ANTI_ENTROPY_ENABLED && leader != null && leader.getId().equals(senderId)) {
+            AntiEntropy.getAntiEntropy().onLeaderDigest(message);
+        }
+        long seq = ((Number) message.get(SwimConstants.SEQ)).longValue();
+        switch ((String) message.get(ServerConstants.KIND)) {
+            case SwimConstants.KIND_PING:
+                send(sender, createMessage(SwimConstants.KIND_ACK, seq));
+                break;
+            case SwimConstants.KIND_PING_REQ:
+                Server target = ServerState.getServerState().getServerFromId((String) message.get(SwimConstants.TARGET));
+                if (target == null) {
+                    break;
+                }
+                long ownSeq = sequence.incrementAndGet();
+                expectAck(ownSeq).orTimeout(ServerProperties.SWIM_PING_TIMEOUT, TimeUnit.MILLISECONDS).thenRun(() ->
+                        send(sender, createMessage(SwimConstants.KIND_ACK, seq)));
+                send(target, createMessage(SwimConstants.KIND_PING, ownSeq));
+                break;
+            case SwimConstants.KIND_ACK:
+                CompletableFuture<Void> ack = pendingAcks.get(seq);
+                if (ack != null) {
+                    ack.complete(null);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Apply membership updates following the SWIM precedence rules: a higher incarnation wins, and at the same
+     * incarnation dead overrides suspect, which overrides alive.
+     *
+     * @param received - Updates.
+     */
+    private void applyUpdates(JSONArray received) {
+        if (received == null) {
+            return;
+        }
+        List<String> discovered = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        synchronized (this) {
+            String self = ServerState.getServerState().getServerId();
+            for (Object object : received) {
+                JSONObject json = (JSONObject) object;
+                String serverId = (String) json.get(ServerConstants.SERVER_ID);
+                State state = State.valueOf(((String) json.get(SwimConstants.STATE)).toUpperCase());
+                long updateIncarnation = ((Number) json.get(SwimConstants.INCARNATION)).longValue();
+                if (self.equals(serverId)) {
+                    if (state != State.ALIVE && updateIncarnation >= incarnation) {
+                        // Refute: this server is alive.
+                        incarnation = updateIncarnation + 1;
+                        logger.info("Refuting suspicion of this server with incarnation " + incarnation);
+                        enqueue(new Update(self, State.ALIVE, incarnation));
+                    }
+                    continue;
+                }
+                if (ServerState.getServerState().getServerFromId(serverId) == null) {
+                    continue;
+                }
+                Member member = members.get(serverId);
+                if (member != null && !overrides(state, updateIncarnation, member)) {
+                    continue;
+                }
+                State previous = member == null ? State.DEAD : member.state;
+                if (member == null) {
+                    member = new Member(serverId);
+                    members.put(serverId, member);
+                }
+                member.state = state;
+                member.incarnation = updateIncarnation;
+                member.suspectedAt = System.currentTimeMillis();
+                enqueue(new Update(serverId, state, updateIncarnation));
+                if (previous == State.DEAD && state != State.DEAD) {
+                    discovered.add(serverId);
+                } else if (previous != State.DEAD && state == State.DEAD) {
+                    failed.add(serverId);
+                }
+            }
+        }
+        notifyMembership(discovered, failed);
+    }
+
+    private static boolean overrides(State state, long updateIncarnation, Member member) {
+        if (updateIncarnation != member.incarnation) {
+            return updateIncarnation > member.incarnation;
+        }
+        return state.ordinal() > member.state.ordinal();
+    }
+
+    /**
+     * Suspect a server that didn't answer a probe. Servers never heard of aren't suspected.
+     *
+     * @param serverId - Server id.
+     */
+    private void suspect(String serverId) {
+        synchronized (this) {
+            Member member = members.get(serverId);
+            if (member == null || member.state != State.ALIVE) {
+                return;
+            }
+            logger.info("Suspecting server " + serverId + " after a failed probe.");
+            member.state = State.SUSPECT;
+            member.suspectedAt = System.currentTimeMillis();
+            enqueue(new Update(serverId, State.SUSPECT, member.incarnation));
+        }
+    }
+
+    private void expireSuspicions() {
+        List<String> failed = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Member member : members.values()) {
+                if (member.state == State.SUSPECT && now - member.suspectedAt > ServerProperties.SWIM_SUSPICION_TIMEOUT) {
+                    member.state = State.DEAD;
+                    enqueue(new Update(member.serverId, State.DEAD, member.incarnation));
+                    failed.add(member.serverId);
+                }
+            }
+        }
+        notifyMembership(new ArrayList<>(), failed);
+    }
+
+    /**
+     * Tell the rest of the server about membership changes, outside the membership lock.
+     */
+    private void notifyMembership(List<String> discovered, List<String> failed) {
+        for (String serverId : discovered) {
+            logger.debug("Discovered server through SWIM. Server id: " + serverId);
+            Gossiping.discoverServer(serverId, System.currentTimeMillis());
+        }
+        for (String serverId : failed) {
+            logger.error("Server failure detected through SWIM. ServerId: " + serverId);
+            Gossiping.removeServer(serverId);
+        }
+    }
+
+    private void enqueue(Update update) {
+        updates.put(update.serverId, update);
+    }
+
+    /**
+     * Build a ping or an ack, see {@link #createMessage(String, long, String)}.
+     *
+     * @param kind - ping | ack
+     * @param seq  - Sequence number.
+     * @return - Message.
+     */
+    private JSONObject createMessage(String kind, long seq) {
+        return createMessage(kind, seq, null);
+    }
+
+    /**
+     * Build a message carrying this server's own liveness and the updates sent the fewest times so far.
+     * An update is dropped once it has been sent a few times per doubling of the cluster size.
+     *
+     * @param kind     - ping | pingreq | ack
+     * @param seq      - Sequence number.
+     * @param targetId - Server to ping on the sender's behalf, for a pingreq; null otherwise.
+     * @return - Message.
+     */
+    private synchronized JSONObject createMessage(String kind, long seq, String targetId) {
+        List<JSONObject> piggyback = new ArrayList<>();
+        piggyback.add(new Update(ServerState.getServerState().getServerId(), State.ALIVE, incarnation).toJSON());
+        int maxTransmissions = RETRANSMIT_MULTIPLIER * (32 - Integer.numberOfLeadingZeros(members.size() + 1));
+        List<Update> candidates = new ArrayList<>(updates.values());
+        candidates.sort(Comparator.comparingInt(update -> update.transmissions));
+        for (Update update : candidates.subList(0, Math.min(ServerProperties.SWIM_MAX_PIGGYBACK, candidates.size()))) {
+            piggyback.add(update.toJSON());
+            if (++update.transmissions >= maxTransmissions) {
+                updates.remove(update.serverId, update);
+            }
+        }
+        HashMap<String, Object> message = new HashMap<>();
+        message.put(ServerConstants.TYPE, SwimConstants.TYPE_SWIM);
+        message.put(ServerConstants.KIND, kind);
+        message.put(ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
+        message.put(SwimConstants.SEQ, seq);
+        message.put(SwimConstants.UPDATES, piggyback);
+        if (targetId != null) {
+            message.put(SwimConstants.TARGET, targetId);
+        }
+        if (ServerProperties.ANTI_ENTROPY_ENABLED) {
+            HashMap<String, String> digest = new HashMap<>();
+            AntiEntropy.addDigest(digest);
+            message.putAll(digest);
+        }
+        return new JSONObject(message);
+    }
+
+    private void send(Server server, JSONObject message) {
+        send(new InetSocketAddress(server.getAddress(), server.getPort()), message);
+    }
+
+    private void send(SocketAddress address, JSONObject message) {
+        byte[] data = Messaging.frame(message);
+        try {
+            socket.send(new DatagramPacket(data, data.length, address));
+        } catch (IOException e) {
+            logger.trace("SWIM message to " + address + " failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("SwimMembership{incarnation=" + incarnation + ", members=[");
+        for (Member member : members.values()) {
+            builder.append(member.serverId).append(':').append(member.state).append('/').append(member.incarnation).append(' ');
+        }
+        return builder.append("], pendingUpdates=").append(updates.size()).append('}').toString();
+    }
+
+    /**
+     * In the order of precedence at the same incarnation.
+     */
+    private enum State {
+        ALIVE, SUSPECT, DEAD
+    }
+
+    private static class Member {
+        private final String serverId;
+        private State state = State.ALIVE;
+        private long incarnation;
+        private long suspectedAt;
+
+        private Member(String serverId) {
+            this.serverId = serverId;
+        }
+    }
+
+    private static class Update {
+        private final String serverId;
+        private final State state;
+        private final long incarnation;
+        private int transmissions = 0;
+
+        private Update(String serverId, State state, long incarnation) {
+            this.serverId = serverId;
+            this.state = state;
+            this.incarnation = incarnation;
+        }
+
+        private JSONObject toJSON() {
+            HashMap<String, Object> json = new HashMap<>();
+            json.put(ServerConstants.SERVER_ID, serverId);
+            json.put(SwimConstants.STATE, state.name().toLowerCase());
+            json.put(SwimConstants.INCARNATION, incarnation);
+            return new JSONObject(json);
+        }
+    }
+}
@@ -1,12 +1,25 @@
 import ClientHandler.ClientHandler;
+import ClientHandler.NioClientEngine;
 import Consensus.LeaderElection;
+import Consensus.LeaderLease;
+import Consensus.RegistryPreCheck;
+import Constants.ChatServerConstants.ServerConstants;
 import Constants.ServerProperties;
+import Gossiping.AntiEntropy;
+import Gossiping.Dissemination;
 import Gossiping.FailureDetector;
 import Gossiping.HeartBeatSender;
+import Gossiping.PhiAccrualDetector;
+import Gossiping.SwimMembership;
+import Replication.RegistryLog;
 import Server.ServerHandler;
 import Server.ServerState;
+import Utilities.ConnectionPool;
+import Utilities.HandlerThreads;
+import Utilities.MessagingExecutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -23,11 +36,16 @@ public class Main {
 
         //initialize server properties
         ServerProperties.init();
+        HandlerThreads.init();
 
         // Initialize server state.
         logger.info("Server Id: " + args[0] + "Conf file path:" + args[1]);
         ServerState.getServerState().initialize(args[0], args[1]);
 
+        // Registry deltas spread as rumors, see gossiping.registry-delta.dissemination.
+        Dissemination.getDissemination().register(ServerConstants.KIND_REGISTRY_DELTA,
+                delta -> ServerState.getServerState().applyRegistryDelta((JSONArray) delta.get(ServerConstants.ENTRIES)));
+
         // ServerSocket for coordination.
         ServerSocket serverCoordinationSocket = new ServerSocket();
         SocketAddress coordinationEndpoint = new InetSocketAddress(
@@ -44,7 +62,7 @@ public class Main {
                 try {
                     Socket socket = serverCoordinationSocket.accept();
                     ServerHandler serverHandler = new ServerHandler(socket);
-                    serverHandler.start();
+                    HandlerThreads.start(serverHandler, "Server-Handler");
                 } catch (IOException e) {
                     logger.debug(e);
                 }
@@ -53,21 +71,58 @@ public class Main {
         serverHandlerLoop.setName("Server Handler Loop Thread");
         serverHandlerLoop.start();
 
+        // Replicate registry changes through the raft log, if configured.
+        if (RegistryLog.isEnabled()) {
+            RegistryLog.getRegistryLog().start();
+        }
+
         //        Print the active thread count
         TimerTask timerTask = new TimerTask() {
             @Override
             public void run() {
                 logger.trace("Active thread count on server " + ServerState.getServerState().getServerId() + " : " + Thread.activeCount());
+                logger.trace("Messaging executor " + MessagingExecutor.getMessagingExecutor());
+                logger.trace("Registry pre-check " + RegistryPreCheck.getRegistryPreCheck());
+                logger.trace("Anti-entropy " + AntiEntropy.getAntiEntropy());
+                logger.trace("Dissemination " + Dissemination.getDissemination());
+                if (LeaderLease.isEnabled()) {
+                    logger.trace("Leader lease " + LeaderLease.getLeaderLease());
+                }
+                if (SwimMembership.isEnabled()) {
+                    logger.trace("Membership " + SwimMembership.getSwimMembership());
+                } else if (FailureDetector.isPhiAccrual()) {
+                    logger.trace("Suspicion " + PhiAccrualDetector.getPhiAccrualDetector());
+                }
 //                logger.trace(Arrays.toString(Thread.getAllStackTraces().keySet().toArray()));
+                // Report clients lagging behind on their outbound queue.
+                for (ClientHandler clientHandler : ServerState.getServerState().getClientHandlerHashMap().values()) {
+                    int queueDepth = clientHandler.getOutboundQueueDepth();
+                    if (queueDepth > 0 || clientHandler.getDroppedFrames() > 0) {
+                        logger.debug("Client " + clientHandler.getCurrentIdentity() + " outbound queue depth: " + queueDepth +
+                                " dropped frames: " + clientHandler.getDroppedFrames());
+                    }
+                }
             }
         };
         new Timer("Thread-Counter-Timer", true).schedule(timerTask, 0, 5000);
 
-        //start the Heartbeat Sender
-        new Timer("HeartBeat-Sender-Timer", true).schedule(new HeartBeatSender(), 0, ServerProperties.HEARTBEAT_PERIOD);
+        // Close idle peer connections that timed out or were dropped.
+        new Timer("Connection-Pool-Health-Check-Timer", true).schedule(new ConnectionPool.HealthCheck(),
+                ServerProperties.POOL_HEALTH_CHECK_PERIOD, ServerProperties.POOL_HEALTH_CHECK_PERIOD);
+
+        if (SwimMembership.isEnabled()) {
+            SwimMembership.getSwimMembership().start();
+        } else {
+            //start the Heartbeat Sender
+            new Timer("HeartBeat-Sender-Timer", true).schedule(new HeartBeatSender(), 0, ServerProperties.HEARTBEAT_PERIOD);
+        }
+
+        if (LeaderLease.isEnabled()) {
+            LeaderLease.getLeaderLease().start();
+        }
 
         // start failure detector
-        new Timer("Failure-Detector-Timer", true).schedule(new FailureDetector(), ServerProperties.HEARTBEAT_PERIOD * 2L, ServerProperties.FAILURE_DETECTION_PERIOD);
+        new Timer("Failure-Detector-Timer", true).schedule(new FailureDetector(), ServerProperties.HEARTBEAT_PERIOD * 2L, FailureDetector.getPeriod());
 
 
         //wait till an existing leader finds you; then start an election
@@ -75,12 +130,22 @@ public class Main {
         LeaderElection.startElection();
 
 
-        // ServerSocket for client communication.
-        ServerSocket serverClientSocket = new ServerSocket();
         SocketAddress clientEndpoint = new InetSocketAddress(
                 ServerProperties.LOCAL_ADDRESS,
                 ServerState.getServerState().getClientsPort());
 
+        if (ServerProperties.CLIENT_ENGINE.equals("nio")) {
+            // Serve clients from a fixed set of selector threads.
+            NioClientEngine clientEngine = new NioClientEngine(
+                    clientEndpoint, ServerProperties.NIO_IO_THREADS, ServerProperties.NIO_WORKER_THREADS);
+            logger.debug("Local Client Socket Address: " + clientEngine.getLocalAddress());
+            logger.info("Waiting for clients on " + clientEngine.getLocalAddress() + " using the NIO client engine");
+            clientEngine.run();
+            return;
+        }
+
+        // ServerSocket for client communication.
+        ServerSocket serverClientSocket = new ServerSocket();
         serverClientSocket.bind(clientEndpoint);
         logger.debug("Local Client Socket Address: " + serverClientSocket.getLocalSocketAddress());
         logger.info("Waiting for clients on port " + serverClientSocket.getLocalPort());
@@ -93,7 +158,7 @@ public class Main {
                 ClientHandler clientHandler = new ClientHandler(clientSocket);
                 ServerState.getServerState().addClientHandler(clientHandler);
                 logger.debug("Starting client handler.");
-                clientHandler.start();
+                HandlerThreads.start(clientHandler, "Client-Handler-" + clientHandler.getId());
             } else {
                 logger.info("Client connection terminated since server is in the small partition.");
                 clientSocket.getOutputStream().close();
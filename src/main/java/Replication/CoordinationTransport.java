@@ -0,0 +1,20 @@
+package Replication;
+
+import Server.Server;
+import Server.ServerState;
+import Utilities.ConnectionPool;
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends raft messages over the coordination port, on the pooled channel to each server.
+ */
+public class CoordinationTransport implements RaftTransport {
+
+    @Override
+    public CompletableFuture<JSONObject> send(String peerId, JSONObject message) {
+        Server server = ServerState.getServerState().getServerFromId(peerId);
+        return ConnectionPool.getConnectionPool().requestAsync(server, message);
+    }
+}
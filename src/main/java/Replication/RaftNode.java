@@ -0,0 +1,668 @@
+package Replication;
+
+import Constants.ChatServerConstants.RaftConstants;
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ChatServerConstants.ServerExceptionConstants;
+import Constants.ServerProperties;
+import Exception.ServerException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node of a Raft replicated log. Commands proposed to the leader are appended to its log, replicated to
+ * the other nodes and applied to the {@link StateMachine} of every node once a majority has them.
+ * The leader keeps several AppendEntries in flight per follower instead of waiting for each reply, and the log
+ * is compacted into a snapshot of the state machine every so many applied entries. Followers too far behind
+ * receive the snapshot instead of the entries.
+ * <p>
+ * State is kept in memory only, like the rest of the server state.
+ */
+public class RaftNode {
+
+    private static final Logger logger = LogManager.getLogger(RaftNode.class);
+
+    private enum Role {FOLLOWER, CANDIDATE, LEADER}
+
+    private final String id;
+    private final List<String> peerIds;
+    private final RaftTransport transport;
+    private final StateMachine stateMachine;
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+
+    private Role role = Role.FOLLOWER;
+    private long currentTerm = 0;
+    private String votedFor;
+    private String leaderId;
+    private int votes;
+
+    private final ArrayList<LogEntry> log = new ArrayList<>(); // entries after the snapshot
+    private long snapshotIndex = 0;
+    private long snapshotTerm = 0;
+    private JSONObject snapshot;
+    private long commitIndex = 0;
+    private long lastApplied = 0;
+
+    private final Map<String, Progress> progress = new HashMap<>(); // leader only
+    private final Map<Long, Proposal> proposals = new HashMap<>(); // leader only, by log index
+
+    private ScheduledFuture<?> electionTimer;
+    private ScheduledFuture<?> heartbeatTimer;
+    private boolean running = false;
+
+    /**
+     * @param id           - Id of this node.
+     * @param peerIds      - Ids of the other nodes.
+     * @param transport    - Transport to the other nodes.
+     * @param stateMachine - State the log is applied to.
+     */
+    public RaftNode(String id, Collection<String> peerIds, RaftTransport transport, StateMachine stateMachine) {
+        this.id = id;
+        this.peerIds = new ArrayList<>(peerIds);
+        this.transport = transport;
+        this.stateMachine = stateMachine;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Raft-Node-" + id);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized void start() {
+        running = true;
+        resetElectionTimer();
+        heartbeatTimer = scheduler.scheduleAtFixedRate(this::sendHeartbeats,
+                ServerProperties.RAFT_HEARTBEAT_PERIOD, ServerProperties.RAFT_HEARTBEAT_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        role = Role.FOLLOWER;
+        if (electionTimer != null) {
+            electionTimer.cancel(false);
+        }
+        if (heartbeatTimer != null) {
+            heartbeatTimer.cancel(false);
+        }
+        failProposals();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Append a command to the log. Only the leader accepts commands.
+     *
+     * @param command - Command.
+     * @return - Future completed with the log index of the command once it has been applied.
+     */
+    public synchronized CompletableFuture<Long> propose(JSONObject command) {
+        if (role != Role.LEADER) {
+            return CompletableFuture.failedFuture(notLeader());
+        }
+        log.add(new LogEntry(currentTerm, command));
+        long index = lastIndex();
+        CompletableFuture<Long> applied = new CompletableFuture<>();
+        proposals.put(index, new Proposal(currentTerm, applied));
+        for (String peerId : peerIds) {
+            replicate(peerId, false);
+        }
+        advanceCommitIndex();
+        return applied;
+    }
+
+    /**
+     * Append a command to the log, forwarding it to the leader if this node isn't the leader.
+     *
+     * @param command - Command.
+     * @return - Future completed with the log index of the command once the leader has applied it.
+     */
+    public CompletableFuture<Long> submit(JSONObject command) {
+        String currentLeaderId;
+        HashMap<String, Object> message;
+        synchronized (this) {
+            if (role == Role.LEADER) {
+                return propose(command);
+            }
+            if (leaderId == null) {
+                return CompletableFuture.failedFuture(notLeader());
+            }
+            currentLeaderId = leaderId;
+            message = createMessage(RaftConstants.KIND_FORWARD);
+            message.put(RaftConstants.COMMAND, command);
+        }
+        return transport.send(currentLeaderId, new JSONObject(message)).thenApply(reply -> {
+            if (!Boolean.TRUE.equals(reply.get(RaftConstants.SUCCESS))) {
+                throw new CompletionException(notLeader());
+            }
+            return getLong(reply, RaftConstants.INDEX);
+        });
+    }
+
+    /**
+     * Handle a message from another node.
+     *
+     * @param message - Message.
+     * @return - Future completed with the reply.
+     */
+    public CompletableFuture<JSONObject> handle(JSONObject message) {
+        String kind = (String) message.get(ServerConstants.KIND);
+        switch (kind) {
+            case RaftConstants.KIND_REQUEST_VOTE:
+                return CompletableFuture.completedFuture(handleRequestVote(message));
+            case RaftConstants.KIND_APPEND_ENTRIES:
+                return CompletableFuture.completedFuture(handleAppendEntries(message));
+            case RaftConstants.KIND_INSTALL_SNAPSHOT:
+                return CompletableFuture.completedFuture(handleInstallSnapshot(message));
+            case RaftConstants.KIND_FORWARD:
+                return propose((JSONObject) message.get(RaftConstants.COMMAND)).handle((index, error) -> {
+                    HashMap<String, Object> reply = createMessage(RaftConstants.KIND_FORWARD);
+                    reply.put(RaftConstants.SUCCESS, error == null);
+                    if (error == null) {
+                        reply.put(RaftConstants.INDEX, index);
+                    }
+                    return new JSONObject(reply);
+                });
+            default:
+                logger.debug("Unknown raft message: " + message);
+                return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    // ----- Elections -----
+
+    private void resetElectionTimer() {
+        if (electionTimer != null) {
+            electionTimer.cancel(false);
+        }
+        if (!running) {
+            return;
+        }
+        long timeout = ServerProperties.RAFT_ELECTION_TIMEOUT + random.nextInt((int) ServerProperties.RAFT_ELECTION_TIMEOUT);
+        electionTimer = scheduler.schedule(this::startElection, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void startElection() {
+        if (!running || role == Role.LEADER) {
+            return;
+        }
+        role = Role.CANDIDATE;
+        currentTerm++;
+        votedFor = id;
+        leaderId = null;
+        votes = 1;
+        logger.debug("Node " + id + " starting election for term " + currentTerm);
+        resetElectionTimer();
+        if (votes >= majority()) {
+            becomeLeader();
+            return;
+        }
+        HashMap<String, Object> request = createMessage(RaftConstants.KIND_REQUEST_VOTE);
+        request.put(RaftConstants.CANDIDATE_ID, id);
+        request.put(RaftConstants.LAST_LOG_INDEX, lastIndex());
+        request.put(RaftConstants.LAST_LOG_TERM, termAt(lastIndex()));
+        JSONObject message = new JSONObject(request);
+        long term = currentTerm;
+        for (String peerId : peerIds) {
+            transport.send(peerId, message).whenCompleteAsync((reply, error) -> onVoteReply(term, reply, error), scheduler);
+        }
+    }
+
+    private synchronized void onVoteReply(long term, JSONObject reply, Throwable error) {
+        if (error != null || reply == null) {
+            return;
+        }
+        long replyTerm = getLong(reply, RaftConstants.TERM);
+        if (replyTerm > currentTerm) {
+            stepDown(replyTerm);
+            return;
+        }
+        if (role != Role.CANDIDATE || term != currentTerm || !Boolean.TRUE.equals(reply.get(RaftConstants.VOTE_GRANTED))) {
+            return;
+        }
+        votes++;
+        if (votes >= majority()) {
+            becomeLeader();
+        }
+    }
+
+    private synchronized JSONObject handleRequestVote(JSONObject request) {
+        long term = getLong(request, RaftConstants.TERM);
+        if (term > currentTerm) {
+            stepDown(term);
+        }
+        String candidateId = (String) request.get(RaftConstants.CANDIDATE_ID);
+        boolean granted = false;
+        if (term == currentTerm && (votedFor == null || votedFor.equals(candidateId)) &&
+                isUpToDate(getLong(request, RaftConstants.LAST_LOG_TERM), getLong(request, RaftConstants.LAST_LOG_INDEX))) {
+            votedFor = candidateId;
+            granted = true;
+            resetElectionTimer();
+        }
+        HashMap<String, Object> reply = createMessage(RaftConstants.KIND_REQUEST_VOTE);
+        reply.put(RaftConstants.VOTE_GRANTED, granted);
+        return new JSONObject(reply);
+    }
+
+    private boolean isUpToDate(long lastLogTerm, long lastLogIndex) {
+        long myLastTerm = termAt(lastIndex());
+        return lastLogTerm > myLastTerm || (lastLogTerm == myLastTerm && lastLogIndex >= lastIndex());
+    }
+
+    private void becomeLeader() {
+        logger.info("Node " + id + " is the raft leader for term " + currentTerm);
+        role = Role.LEADER;
+        leaderId = id;
+        if (electionTimer != null) {
+            electionTimer.cancel(false);
+        }
+        progress.clear();
+        for (String peerId : peerIds) {
+            progress.put(peerId, new Progress(lastIndex() + 1));
+        }
+        // Entries of earlier terms are committed along with an entry of this term.
+        log.add(new LogEntry(currentTerm, null));
+        advanceCommitIndex();
+        for (String peerId : peerIds) {
+            replicate(peerId, true);
+        }
+    }
+
+    private void stepDown(long term) {
+        if (term > currentTerm) {
+            currentTerm = term;
+            votedFor = null;
+        }
+        if (role == Role.LEADER) {
+            failProposals();
+        }
+        role = Role.FOLLOWER;
+        resetElectionTimer();
+    }
+
+    // ----- Replication -----
+
+    private synchronized void sendHeartbeats() {
+        if (!running || role != Role.LEADER) {
+            return;
+        }
+        for (String peerId : peerIds) {
+            replicate(peerId, true);
+        }
+    }
+
+    /**
+     * Send a follower the entries it doesn't have yet, keeping up to the maximum number of requests in flight.
+     *
+     * @param peerId    - Follower.
+     * @param heartbeat - Send an empty request if there is nothing new.
+     */
+    private void replicate(String peerId, boolean heartbeat) {
+        Progress peer = progress.get(peerId);
+        if (peer.nextIndex <= snapshotIndex) {
+            // The entries the follower needs have been compacted.
+            if (peer.inflight == 0) {
+                sendSnapshot(peerId, peer);
+            }
+            return;
+        }
+        boolean sent = false;
+        while (peer.inflight < ServerProperties.RAFT_MAX_INFLIGHT && peer.nextIndex <= lastIndex()) {
+            sendAppendEntries(peerId, peer, Math.min(lastIndex(), peer.nextIndex + ServerProperties.RAFT_MAX_BATCH - 1));
+            sent = true;
+        }
+        if (heartbeat && !sent && peer.inflight < ServerProperties.RAFT_MAX_INFLIGHT) {
+            sendAppendEntries(peerId, peer, peer.nextIndex - 1);
+        }
+    }
+
+    private void sendAppendEntries(String peerId, Progress peer, long lastToSend) {
+        long prevIndex = peer.nextIndex - 1;
+        List<JSONObject> entries = new ArrayList<>();
+        for (long index = peer.nextIndex; index <= lastToSend; index++) {
+            LogEntry entry = entryAt(index);
+            HashMap<String, Object> jsonEntry = new HashMap<>();
+            jsonEntry.put(RaftConstants.TERM, entry.term);
+            jsonEntry.put(RaftConstants.COMMAND, entry.command);
+            entries.add(new JSONObject(jsonEntry));
+        }
+        HashMap<String, Object> request = createMessage(RaftConstants.KIND_APPEND_ENTRIES);
+        request.put(RaftConstants.LEADER_ID, id);
+        request.put(RaftConstants.PREV_LOG_INDEX, prevIndex);
+        request.put(RaftConstants.PREV_LOG_TERM, termAt(prevIndex));
+        request.put(RaftConstants.ENTRIES, entries);
+        request.put(RaftConstants.LEADER_COMMIT, commitIndex);
+        peer.nextIndex = lastToSend + 1;
+        peer.inflight++;
+        long term = currentTerm;
+        transport.send(peerId, new JSONObject(request))
+                .whenCompleteAsync((reply, error) -> onAppendReply(peerId, term, reply, error), scheduler);
+    }
+
+    private void sendSnapshot(String peerId, Progress peer) {
+        HashMap<String, Object> request = createMessage(RaftConstants.KIND_INSTALL_SNAPSHOT);
+        request.put(RaftConstants.LEADER_ID, id);
+        request.put(RaftConstants.LAST_INCLUDED_INDEX, snapshotIndex);
+        request.put(RaftConstants.LAST_INCLUDED_TERM, snapshotTerm);
+        request.put(RaftConstants.DATA, snapshot);
+        peer.inflight++;
+        long term = currentTerm;
+        transport.send(peerId, new JSONObject(request))
+                .whenCompleteAsync((reply, error) -> onAppendReply(peerId, term, reply, error), scheduler);
+    }
+
+    private synchronized void onAppendReply(String peerId, long term, JSONObject reply, Throwable error) {
+        if (role != Role.LEADER || term != currentTerm) {
+            return;
+        }
+        Progress peer = progress.get(peerId);
+        peer.inflight = Math.max(0, peer.inflight - 1);
+        if (error != null || reply == null) {
+            // Resent from the last known match with the next heartbeat.
+            peer.nextIndex = peer.matchIndex + 1;
+            return;
+        }
+        long replyTerm = getLong(reply, RaftConstants.TERM);
+        if (replyTerm > currentTerm) {
+            stepDown(replyTerm);
+            return;
+        }
+        long matchIndex = getLong(reply, RaftConstants.MATCH_INDEX);
+        if (Boolean.TRUE.equals(reply.get(RaftConstants.SUCCESS))) {
+            peer.matchIndex = Math.max(peer.matchIndex, matchIndex);
+            peer.nextIndex = Math.max(peer.nextIndex, peer.matchIndex + 1);
+            advanceCommitIndex();
+        } else {
+            // The follower's log diverges; go back to where it may match.
+            peer.nextIndex = Math.max(peer.matchIndex + 1, Math.min(peer.nextIndex, matchIndex + 1));
+        }
+        replicate(peerId, false);
+    }
+
+    private synchronized JSONObject handleAppendEntries(JSONObject request) {
+        long term = getLong(request, RaftConstants.TERM);
+        if (term < currentTerm) {
+            return appendReply(false, lastIndex());
+        }
+        if (term > currentTerm || role != Role.FOLLOWER) {
+            stepDown(term);
+        }
+        leaderId = (String) request.get(RaftConstants.LEADER_ID);
+        resetElectionTimer();
+
+        long prevIndex = getLong(request, RaftConstants.PREV_LOG_INDEX);
+        if (prevIndex > lastIndex()) {
+            return appendReply(false, lastIndex());
+        }
+        if (prevIndex >= snapshotIndex && termAt(prevIndex) != getLong(request, RaftConstants.PREV_LOG_TERM)) {
+            // Skip back over the whole conflicting term at once.
+            long conflictTerm = termAt(prevIndex);
+            long index = prevIndex;
+            while (index > snapshotIndex + 1 && termAt(index - 1) == conflictTerm) {
+                index--;
+            }
+            return appendReply(false, index - 1);
+        }
+
+        List<?> entries = (List<?>) request.get(RaftConstants.ENTRIES);
+        long index = prevIndex;
+        for (Object element : entries) {
+            index++;
+            if (index <= snapshotIndex) {
+                continue;
+            }
+            JSONObject entry = (JSONObject) element;
+            long entryTerm = getLong(entry, RaftConstants.TERM);
+            if (index <= lastIndex()) {
+                if (termAt(index) == entryTerm) {
+                    continue;
+                }
+                log.subList((int) (index - snapshotIndex - 1), log.size()).clear();
+            }
+            log.add(new LogEntry(entryTerm, (JSONObject) entry.get(RaftConstants.COMMAND)));
+        }
+        long leaderCommit = getLong(request, RaftConstants.LEADER_COMMIT);
+        if (leaderCommit > commitIndex) {
+            commitIndex = Math.max(commitIndex, Math.min(leaderCommit, index));
+            applyCommitted();
+        }
+        return appendReply(true, index);
+    }
+
+    private synchronized JSONObject handleInstallSnapshot(JSONObject request) {
+        long term = getLong(request, RaftConstants.TERM);
+        if (term < currentTerm) {
+            return appendReply(false, lastIndex());
+        }
+        if (term > currentTerm || role != Role.FOLLOWER) {
+            stepDown(term);
+        }
+        leaderId = (String) request.get(RaftConstants.LEADER_ID);
+        resetElectionTimer();
+
+        long includedIndex = getLong(request, RaftConstants.LAST_INCLUDED_INDEX);
+        long includedTerm = getLong(request, RaftConstants.LAST_INCLUDED_TERM);
+        if (includedIndex <= snapshotIndex) {
+            return appendReply(true, includedIndex);
+        }
+        if (includedIndex <= lastIndex() && termAt(includedIndex) == includedTerm) {
+            // Keep the entries after the snapshot.
+            log.subList(0, (int) (includedIndex - snapshotIndex)).clear();
+        } else {
+            log.clear();
+        }
+        snapshotIndex = includedIndex;
+        snapshotTerm = includedTerm;
+        snapshot = (JSONObject) request.get(RaftConstants.DATA);
+        if (includedIndex > lastApplied) {
+            stateMachine.restore(snapshot);
+            lastApplied = includedIndex;
+        }
+        commitIndex = Math.max(commitIndex, includedIndex);
+        applyCommitted();
+        return appendReply(true, includedIndex);
+    }
+
+    private JSONObject appendReply(boolean success, long matchIndex) {
+        HashMap<String, Object> reply = createMessage(RaftConstants.KIND_APPEND_ENTRIES);
+        reply.put(RaftConstants.SUCCESS, success);
+        reply.put(RaftConstants.MATCH_INDEX, matchIndex);
+        return new JSONObject(reply);
+    }
+
+    // ----- Commit and apply -----
+
+    /**
+     * Commit the highest entry of this term that a majority has.
+     */
+    private void advanceCommitIndex() {
+        if (role != Role.LEADER) {
+            return;
+        }
+        for (long index = lastIndex(); index > commitIndex && termAt(index) == currentTerm; index--) {
+            int replicas = 1;
+            for (Progress peer : progress.values()) {
+                if (peer.matchIndex >= index) {
+                    replicas++;
+                }
+            }
+            if (replicas >= majority()) {
+                commitIndex = index;
+                applyCommitted();
+                return;
+            }
+        }
+    }
+
+    private void applyCommitted() {
+        while (lastApplied < commitIndex) {
+            lastApplied++;
+            LogEntry entry = entryAt(lastApplied);
+            if (entry.command != null) {
+                try {
+                    stateMachine.apply(entry.command);
+                } catch (RuntimeException e) {
+                    logger.error("Failed to apply " + entry.command + ": " + e);
+                }
+            }
+            Proposal proposal = proposals.remove(lastApplied);
+            if (proposal != null) {
+                if (proposal.term == entry.term) {
+                    proposal.applied.complete(lastApplied);
+                } else {
+                    proposal.applied.completeExceptionally(notLeader());
+                }
+            }
+        }
+        compactLog();
+    }
+
+    /**
+     * Replace the applied part of the log by a snapshot once it has grown past the threshold.
+     */
+    private void compactLog() {
+        if (lastApplied - snapshotIndex < ServerProperties.RAFT_SNAPSHOT_THRESHOLD) {
+            return;
+        }
+        long term = termAt(lastApplied);
+        snapshot = stateMachine.snapshot();
+        log.subList(0, (int) (lastApplied - snapshotIndex)).clear();
+        snapshotIndex = lastApplied;
+        snapshotTerm = term;
+        logger.debug("Node " + id + " compacted its log up to " + snapshotIndex);
+    }
+
+    private void failProposals() {
+        for (Proposal proposal : proposals.values()) {
+            proposal.applied.completeExceptionally(notLeader());
+        }
+        proposals.clear();
+    }
+
+    // ----- Log -----
+
+    private long lastIndex() {
+        return snapshotIndex + log.size();
+    }
+
+    private long termAt(long index) {
+        if (index == snapshotIndex) {
+            return snapshotTerm;
+        }
+        return entryAt(index).term;
+    }
+
+    private LogEntry entryAt(long index) {
+        return log.get((int) (index - snapshotIndex - 1));
+    }
+
+    private int majority() {
+        return (peerIds.size() + 1) / 2 + 1;
+    }
+
+    private HashMap<String, Object> createMessage(String kind) {
+        HashMap<String, Object> message = new HashMap<>();
+        message.put(ServerConstants.TYPE, RaftConstants.TYPE_RAFT);
+        message.put(ServerConstants.KIND, kind);
+        message.put(RaftConstants.TERM, currentTerm);
+        return message;
+    }
+
+    private static long getLong(JSONObject message, String key) {
+        return ((Number) message.get(key)).longValue();
+    }
+
+    private static ServerException notLeader() {
+        return new ServerException(ServerExceptionConstants.NO_LEADER_MSG, ServerExceptionConstants.NO_LEADER_CODE);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public synchronized boolean isLeader() {
+        return role == Role.LEADER;
+    }
+
+    public synchronized String getLeaderId() {
+        return leaderId;
+    }
+
+    public synchronized long getCurrentTerm() {
+        return currentTerm;
+    }
+
+    public synchronized long getCommitIndex() {
+        return commitIndex;
+    }
+
+    public synchronized long getLastApplied() {
+        return lastApplied;
+    }
+
+    public synchronized long getSnapshotIndex() {
+        return snapshotIndex;
+    }
+
+    synchronized long getLastIndex() {
+        return lastIndex();
+    }
+
+    /**
+     * Term of an entry that is still in the log, or of the last entry of the snapshot.
+     *
+     * @param index - Log index, from the snapshot index to the last index.
+     * @return - Term.
+     */
+    synchronized long getTermAt(long index) {
+        return termAt(index);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RaftNode{id=" + id + ", role=" + role + ", term=" + currentTerm + ", leader=" + leaderId +
+                ", lastIndex=" + lastIndex() + ", commitIndex=" + commitIndex + ", snapshotIndex=" + snapshotIndex + "}";
+    }
+
+    private static class LogEntry {
+        private final long term;
+        private final JSONObject command; // null for the entry a new leader starts its term with
+
+        private LogEntry(long term, JSONObject command) {
+            this.term = term;
+            this.command = command;
+        }
+    }
+
+    private static class Progress {
+        private long nextIndex;
+        private long matchIndex = 0;
+        private int inflight = 0;
+
+        private Progress(long nextIndex) {
+            this.nextIndex = nextIndex;
+        }
+    }
+
+    private static class Proposal {
+        private final long term;
+        private final CompletableFuture<Long> applied;
+
+        private Proposal(long term, CompletableFuture<Long> applied) {
+            this.term = term;
+            this.applied = applied;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package Replication;
+
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Carries the messages of a {@link RaftNode} to its peers.
+ */
+public interface RaftTransport {
+
+    /**
+     * Send a message to a peer.
+     *
+     * @param peerId  - Id of the receiving node.
+     * @param message - Message.
+     * @return - Future completed with the reply of the peer, or exceptionally if it can't be reached.
+     */
+    CompletableFuture<JSONObject> send(String peerId, JSONObject message);
+}
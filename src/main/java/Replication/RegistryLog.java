@@ -0,0 +1,93 @@
+package Replication;
+
+import Constants.ServerProperties;
+import Server.Server;
+import Server.ServerState;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The replicated registry log of this server, used when replication.mode is 'raft'.
+ * Registry changes are appended to the log instead of being gossiped, and a change that can't be appended
+ * yet, e.g. during a raft election, is retried with backoff instead of being lost.
+ */
+public class RegistryLog {
+
+    private static final Logger logger = LogManager.getLogger(RegistryLog.class);
+    private static final String RAFT_MODE = "raft";
+    private static RegistryLog registryLog;
+    private final RaftNode node;
+
+    private RegistryLog() {
+        Collection<String> peerIds = new ArrayList<>();
+        for (Server server : ServerState.getServerState().getServers()) {
+            peerIds.add(server.getId());
+        }
+        this.node = new RaftNode(ServerState.getServerState().getServerId(), peerIds,
+                new CoordinationTransport(), new RegistryStateMachine());
+    }
+
+    public static RegistryLog getRegistryLog() {
+        if (registryLog == null) {
+            synchronized (RegistryLog.class) {
+                if (registryLog == null) {
+                    registryLog = new RegistryLog();
+                }
+            }
+        }
+        return registryLog;
+    }
+
+    public static boolean isEnabled() {
+        return RAFT_MODE.equals(ServerProperties.REPLICATION_MODE);
+    }
+
+    public void start() {
+        node.start();
+    }
+
+    /**
+     * Handle a raft message from another server.
+     *
+     * @param message - Message.
+     * @return - Future completed with the reply.
+     */
+    public CompletableFuture<JSONObject> handle(JSONObject message) {
+        return node.handle(message);
+    }
+
+    /**
+     * Append a registry change to the log.
+     *
+     * @param entry - Change, in the same form as a single inform message.
+     */
+    public void append(JSONObject entry) {
+        append(entry, 1);
+    }
+
+    private void append(JSONObject entry, int attempt) {
+        node.submit(entry).whenComplete((index, error) -> {
+            if (error == null) {
+                return;
+            }
+            if (attempt >= ServerProperties.CONSENSUS_MAX_ATTEMPTS) {
+                logger.error("Registry change not replicated after " + attempt + " attempts: " + entry);
+                return;
+            }
+            long backoff = Math.min(ServerProperties.CONSENSUS_INITIAL_BACKOFF << (attempt - 1), ServerProperties.CONSENSUS_MAX_BACKOFF);
+            logger.debug("Retrying registry change in " + backoff + "ms: " + error);
+            CompletableFuture.delayedExecutor(backoff, TimeUnit.MILLISECONDS).execute(() -> append(entry, attempt + 1));
+        });
+    }
+
+    @Override
+    public String toString() {
+        return node.toString();
+    }
+}
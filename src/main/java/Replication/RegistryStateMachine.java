@@ -0,0 +1,125 @@
+package Replication;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Server.Room;
+import Server.ServerState;
+import Utilities.Messaging;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Applies the replicated registry log to the identities and rooms of {@link ServerState}.
+ * Commands are inform entries, as built by {@link Messaging#buildIdentityEntry(String, String)} and
+ * {@link Messaging#buildRoomEntry(String, String, String)}, or identity moves. A server has already applied
+ * its own changes when it made them, so entries of this server are skipped.
+ */
+public class RegistryStateMachine implements StateMachine {
+
+    private static final String ROOMS = "rooms";
+
+    @Override
+    public void apply(JSONObject command) {
+        ServerState serverState = ServerState.getServerState();
+        String entryServerId = (String) command.get(ServerConstants.SERVER_ID);
+        if (serverState.getServerId().equals(entryServerId)) {
+            return;
+        }
+        if (ServerConstants.IDENTITY_SERVER_CHANGE.equals(command.get(ServerConstants.TYPE))) {
+            serverState.updateIdentity((String) command.get(ServerConstants.IDENTITY), entryServerId);
+        } else {
+            serverState.applyRegistryDelta(List.of(command));
+        }
+    }
+
+    @Override
+    public JSONObject snapshot() {
+        ServerState serverState = ServerState.getServerState();
+        JSONObject identities = new JSONObject(serverState.getIdentityHashMap());
+        List<JSONObject> rooms = new ArrayList<>();
+        Enumeration<String> roomIds = serverState.getRoomsIds();
+        while (roomIds.hasMoreElements()) {
+            Room room = serverState.getRoom(roomIds.nextElement());
+            if (room != null) {
+                HashMap<String, String> jsonRoom = new HashMap<>();
+                jsonRoom.put(ServerConstants.ROOM_ID, room.getRoomId());
+                jsonRoom.put(ServerConstants.ROOM_OWNER, room.getOwner());
+                jsonRoom.put(ServerConstants.SERVER_ID, room.getServerId());
+                rooms.add(new JSONObject(jsonRoom));
+            }
+        }
+        HashMap<String, Object> snapshot = new HashMap<>();
+        snapshot.put(ServerConstants.IDENTITIES, identities);
+        snapshot.put(ROOMS, rooms);
+        return new JSONObject(snapshot);
+    }
+
+    /**
+     * Replace the identities and rooms of the other servers with those of a snapshot. Entries missing from the
+     * snapshot were deleted in the compacted part of the log, so they are removed. This server's own entries are
+     * kept, since it applies its own changes when it makes them, and so are the main halls, which follow membership.
+     *
+     * @param snapshot - Snapshot.
+     */
+    @Override
+    public void restore(JSONObject snapshot) {
+        ServerState serverState = ServerState.getServerState();
+        String thisServerId = serverState.getServerId();
+        Map<?, ?> identities = (Map<?, ?>) snapshot.get(ServerConstants.IDENTITIES);
+        Map<String, JSONObject> rooms = new HashMap<>();
+        for (Object element : (List<?>) snapshot.get(ROOMS)) {
+            JSONObject room = (JSONObject) element;
+            rooms.put((String) room.get(ServerConstants.ROOM_ID), room);
+        }
+
+        List<JSONObject> entries = new ArrayList<>();
+        for (Map.Entry<String, String> identity : serverState.getIdentityHashMap().entrySet()) {
+            if (!thisServerId.equals(identity.getValue()) && !identity.getValue().equals(identities.get(identity.getKey()))) {
+                entries.add(new JSONObject(buildEntry(ServerConstants.KIND_INFORM_DELETE_IDENTITY, identity.getValue(),
+                        ServerConstants.IDENTITY, identity.getKey())));
+            }
+        }
+        Enumeration<String> roomIds = serverState.getRoomsIds();
+        while (roomIds.hasMoreElements()) {
+            Room room = serverState.getRoom(roomIds.nextElement());
+            if (room == null || thisServerId.equals(room.getServerId()) ||
+                    room.getRoomId().equals(ServerConstants.MAIN_HALL + room.getServerId())) {
+                continue;
+            }
+            JSONObject snapshotRoom = rooms.get(room.getRoomId());
+            if (snapshotRoom == null || !room.getServerId().equals(snapshotRoom.get(ServerConstants.SERVER_ID)) ||
+                    !Objects.equals(room.getOwner(), snapshotRoom.get(ServerConstants.ROOM_OWNER))) {
+                entries.add(new JSONObject(buildEntry(ServerConstants.KIND_INFORM_DELETE_ROOM, room.getServerId(),
+                        ServerConstants.ROOM_ID, room.getRoomId())));
+            }
+        }
+
+        for (Object element : identities.entrySet()) {
+            Map.Entry<?, ?> identity = (Map.Entry<?, ?>) element;
+            entries.add(new JSONObject(buildEntry(ServerConstants.KIND_INFORM_NEW_IDENTITY, (String) identity.getValue(),
+                    ServerConstants.IDENTITY, (String) identity.getKey())));
+        }
+        for (JSONObject room : rooms.values()) {
+            HashMap<String, String> entry = buildEntry(ServerConstants.KIND_INFORM_NEW_ROOM, (String) room.get(ServerConstants.SERVER_ID),
+                    ServerConstants.ROOM_ID, (String) room.get(ServerConstants.ROOM_ID));
+            entry.put(ServerConstants.ROOM_OWNER, (String) room.get(ServerConstants.ROOM_OWNER));
+            entries.add(new JSONObject(entry));
+        }
+        entries.removeIf(entry -> thisServerId.equals(entry.get(ServerConstants.SERVER_ID)));
+        serverState.applyRegistryDelta(entries);
+    }
+
+    private static HashMap<String, String> buildEntry(String kind, String serverId, String key, String value) {
+        HashMap<String, String> entry = new HashMap<>();
+        entry.put(ServerConstants.TYPE, ServerConstants.TYPE_GOSSIP);
+        entry.put(ServerConstants.KIND, kind);
+        entry.put(ServerConstants.SERVER_ID, serverId);
+        entry.put(key, value);
+        return entry;
+    }
+}
@@ -0,0 +1,30 @@
+package Replication;
+
+import org.json.simple.JSONObject;
+
+/**
+ * State replicated by a {@link RaftNode}. Commands are applied in log order, once they are committed.
+ */
+public interface StateMachine {
+
+    /**
+     * Apply a committed command.
+     *
+     * @param command - Command.
+     */
+    void apply(JSONObject command);
+
+    /**
+     * State after every command applied so far, used to compact the log.
+     *
+     * @return - Snapshot.
+     */
+    JSONObject snapshot();
+
+    /**
+     * Replace the state with a snapshot received from the leader.
+     *
+     * @param snapshot - Snapshot.
+     */
+    void restore(JSONObject snapshot);
+}
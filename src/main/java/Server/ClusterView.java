@@ -0,0 +1,170 @@
+package Server;
+
+import Consensus.Leader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the cluster membership as seen by this server.
+ * Every change produces a new view with a higher version; see {@link ServerState#getClusterView()}.
+ */
+public final class ClusterView {
+
+    private final long version;
+    private final Server self;
+    private final Map<String, Server> serversById; // all the servers, including this one
+    private final List<Server> peers; // all the other servers; dead and alive
+    private final List<Server> higherPeers; // peers with a higher id, ascending
+    private final List<String> sortedIds; // ids of all the servers, ascending
+    private final Set<String> alive;
+    private final Set<String> suspected;
+    private final List<Server> alivePeers;
+    private final Leader leader;
+
+    private ClusterView(long version, Server self, Map<String, Server> serversById,
+                        Set<String> alive, Set<String> suspected, Leader leader) {
+        this.version = version;
+        this.self = self;
+        this.serversById = Collections.unmodifiableMap(serversById);
+        this.alive = Collections.unmodifiableSet(alive);
+        this.suspected = Collections.unmodifiableSet(suspected);
+        this.leader = leader;
+
+        List<Server> sortedServers = new ArrayList<>(serversById.values());
+        sortedServers.sort(new Server.ServerComparator());
+        List<String> ids = new ArrayList<>();
+        List<Server> others = new ArrayList<>();
+        List<Server> higher = new ArrayList<>();
+        List<Server> aliveOthers = new ArrayList<>();
+        for (Server server : sortedServers) {
+            ids.add(server.getId());
+            if (server == self) {
+                continue;
+            }
+            others.add(server);
+            if (server.compareTo(self) > 0) {
+                higher.add(server);
+            }
+            if (alive.contains(server.getId())) {
+                aliveOthers.add(server);
+            }
+        }
+        this.sortedIds = Collections.unmodifiableList(ids);
+        this.peers = Collections.unmodifiableList(others);
+        this.higherPeers = Collections.unmodifiableList(higher);
+        this.alivePeers = Collections.unmodifiableList(aliveOthers);
+    }
+
+    /**
+     * First view of a server, before any other server has been heard of.
+     *
+     * @param self  - This server.
+     * @param peers - Other servers from the configuration.
+     * @return - ClusterView
+     */
+    static ClusterView initial(Server self, Collection<Server> peers) {
+        Map<String, Server> serversById = new HashMap<>();
+        for (Server peer : peers) {
+            serversById.put(peer.getId(), peer);
+        }
+        serversById.put(self.getId(), self);
+        return new ClusterView(0, self, serversById, new HashSet<>(), new HashSet<>(), null);
+    }
+
+    ClusterView withLeader(Leader newLeader) {
+        return new ClusterView(version + 1, self, new HashMap<>(serversById), new HashSet<>(alive), new HashSet<>(suspected), newLeader);
+    }
+
+    /**
+     * View with a server heard from again.
+     *
+     * @param serverId - Server id.
+     * @return - ClusterView
+     */
+    ClusterView withAlive(String serverId) {
+        Set<String> newAlive = new HashSet<>(alive);
+        newAlive.add(serverId);
+        Set<String> newSuspected = new HashSet<>(suspected);
+        newSuspected.remove(serverId);
+        return new ClusterView(version + 1, self, new HashMap<>(serversById), newAlive, newSuspected, leader);
+    }
+
+    /**
+     * View with a server suspected to have failed.
+     *
+     * @param serverId - Server id.
+     * @return - ClusterView
+     */
+    ClusterView withSuspected(String serverId) {
+        Set<String> newAlive = new HashSet<>(alive);
+        newAlive.remove(serverId);
+        Set<String> newSuspected = new HashSet<>(suspected);
+        newSuspected.add(serverId);
+        return new ClusterView(version + 1, self, new HashMap<>(serversById), newAlive, newSuspected, leader);
+    }
+
+    /**
+     * View of a server that has forgotten every other server and the leader.
+     *
+     * @return - ClusterView
+     */
+    ClusterView reset() {
+        return new ClusterView(version + 1, self, new HashMap<>(serversById), new HashSet<>(), new HashSet<>(), null);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Server getSelf() {
+        return self;
+    }
+
+    public Server getServer(String serverId) {
+        return serversById.get(serverId);
+    }
+
+    public List<Server> getPeers() {
+        return peers;
+    }
+
+    public List<Server> getHigherPeers() {
+        return higherPeers;
+    }
+
+    public List<String> getSortedIds() {
+        return sortedIds;
+    }
+
+    public Set<String> getAlive() {
+        return alive;
+    }
+
+    public Set<String> getSuspected() {
+        return suspected;
+    }
+
+    public List<Server> getAlivePeers() {
+        return alivePeers;
+    }
+
+    public Leader getLeader() {
+        return leader;
+    }
+
+    public boolean isLeader() {
+        return leader != null && self.getId().equals(leader.getId());
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterView{version=" + version + ", alive=" + alive + ", suspected=" + suspected + ", leader=" + leader + "}";
+    }
+}
@@ -0,0 +1,82 @@
+package Server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * One identity or room change, as kept in the {@link RegistryChangeLog} and sent to servers that rejoin.
+ */
+public class RegistryChange {
+
+    public static final byte PUT_IDENTITY = 1;
+    public static final byte DELETE_IDENTITY = 2;
+    public static final byte PUT_ROOM = 3;
+    public static final byte DELETE_ROOM = 4;
+
+    private final byte operation;
+    private final String key; // identity or room id
+    private final String serverId;
+    private final String owner; // rooms only
+
+    public RegistryChange(byte operation, String key, String serverId, String owner) {
+        this.operation = operation;
+        this.key = key;
+        this.serverId = serverId == null ? "" : serverId;
+        this.owner = owner == null ? "" : owner;
+    }
+
+    public byte getOperation() {
+        return operation;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public boolean isIdentity() {
+        return operation == PUT_IDENTITY || operation == DELETE_IDENTITY;
+    }
+
+    /**
+     * Identifies the identity or room changed; a later change with the same target supersedes this one.
+     *
+     * @return - Target.
+     */
+    String getTarget() {
+        return (isIdentity() ? "i:" : "r:") + key;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(operation);
+        out.writeUTF(key);
+        out.writeUTF(serverId);
+        if (operation == PUT_ROOM) {
+            out.writeUTF(owner);
+        }
+    }
+
+    static RegistryChange readFrom(DataInputStream in) throws IOException {
+        byte operation = in.readByte();
+        if (operation < PUT_IDENTITY || operation > DELETE_ROOM) {
+            throw new IOException("Unknown registry change operation: " + operation);
+        }
+        String key = in.readUTF();
+        String serverId = in.readUTF();
+        String owner = operation == PUT_ROOM ? in.readUTF() : "";
+        return new RegistryChange(operation, key, serverId, owner);
+    }
+
+    @Override
+    public String toString() {
+        return "RegistryChange{" + operation + ", " + key + ", " + serverId + ", " + owner + "}";
+    }
+}
@@ -0,0 +1,126 @@
+package Server;
+
+import Constants.ServerProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The most recent registry changes with the registry version each of them produced, so that a server that rejoins
+ * gets only what changed since the version it last synchronized to. Not thread safe; ServerState uses it under its
+ * registry lock.
+ */
+public class RegistryChangeLog {
+
+    private static final byte FORMAT = 1;
+    private final ArrayDeque<RegistryChange> changes = new ArrayDeque<>();
+    private final ArrayDeque<Long> versions = new ArrayDeque<>();
+    private long truncatedVersion = 0; // changes up to this version are no longer kept
+
+    /**
+     * Record a change.
+     *
+     * @param change  - Change.
+     * @param version - Registry version after the change.
+     */
+    void record(RegistryChange change, long version) {
+        changes.addLast(change);
+        versions.addLast(version);
+        while (changes.size() > ServerProperties.REGISTRY_SYNC_LOG_SIZE) {
+            changes.removeFirst();
+            truncatedVersion = versions.removeFirst();
+        }
+    }
+
+    /**
+     * Forget every change, e.g. when the registry has changed without recording them.
+     *
+     * @param version - Current registry version.
+     */
+    void truncate(long version) {
+        changes.clear();
+        versions.clear();
+        truncatedVersion = version;
+    }
+
+    /**
+     * Changes after a given version, with only the last change of each identity and room.
+     *
+     * @param version - Version the requester has.
+     * @return - Changes in order, or null if some of them are no longer kept.
+     */
+    List<RegistryChange> since(long version) {
+        if (version < truncatedVersion) {
+            return null;
+        }
+        LinkedHashMap<String, RegistryChange> latest = new LinkedHashMap<>();
+        Iterator<Long> versionIterator = versions.iterator();
+        for (RegistryChange change : changes) {
+            if (versionIterator.next() > version) {
+                // Re-inserting moves a superseded change to the position of the latest one.
+                latest.remove(change.getTarget());
+                latest.put(change.getTarget(), change);
+            }
+        }
+        return new ArrayList<>(latest.values());
+    }
+
+    /**
+     * Encode changes in the binary sync format, as Base64 to be carried in a JSON message.
+     *
+     * @param changes - Changes.
+     * @return - Encoded changes.
+     */
+    public static String encode(Collection<RegistryChange> changes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + changes.size() * 24);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT);
+            out.writeInt(changes.size());
+            for (RegistryChange change : changes) {
+                change.writeTo(out);
+            }
+        } catch (IOException e) {
+            // Not thrown by an in-memory stream.
+            throw new IllegalStateException(e);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Decode changes encoded with {@link #encode(Collection)}.
+     *
+     * @param encoded - Encoded changes.
+     * @return - Changes in order.
+     * @throws IOException - If the data isn't in the sync format.
+     */
+    public static List<RegistryChange> decode(String encoded) throws IOException {
+        byte[] data;
+        try {
+            data = Base64.getDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Registry changes are not Base64 encoded", e);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            byte format = in.readByte();
+            if (format != FORMAT) {
+                throw new IOException("Unknown registry sync format: " + format);
+            }
+            int count = in.readInt();
+            List<RegistryChange> changes = new ArrayList<>(Math.min(count, data.length / 4));
+            for (int i = 0; i < count; i++) {
+                changes.add(RegistryChange.readFrom(in));
+            }
+            return changes;
+        }
+    }
+}
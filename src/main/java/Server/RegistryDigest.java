@@ -0,0 +1,129 @@
+package Server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Hash tree over the identities and rooms, used to find where the registries of two servers differ.
+ * Every identity and room falls in a bucket by its key; a bucket's hash is the XOR of the hashes of its entries,
+ * and every other node's hash is the XOR of its children, so a change updates one node per level.
+ * Not thread safe; ServerState uses it under its registry lock.
+ */
+public class RegistryDigest {
+
+    public static final int FANOUT = 16;
+    private final int depth;
+    private final long[][] levels; // levels[0] is the root, levels[depth] the buckets
+
+    /**
+     * @param buckets - Minimum number of buckets; rounded up to a power of the fanout.
+     */
+    public RegistryDigest(int buckets) {
+        int depth = 1;
+        for (int count = FANOUT; count < buckets; count *= FANOUT) {
+            depth++;
+        }
+        this.depth = depth;
+        this.levels = new long[depth + 1][];
+        for (int level = 0, count = 1; level <= depth; level++, count *= FANOUT) {
+            levels[level] = new long[count];
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getBucketCount() {
+        return levels[depth].length;
+    }
+
+    public long getRoot() {
+        return levels[0][0];
+    }
+
+    /**
+     * Hash of a node.
+     *
+     * @param level - Level, 0 being the root.
+     * @param index - Index of the node within its level.
+     * @return - Hash.
+     */
+    public long getHash(int level, int index) {
+        return levels[level][index];
+    }
+
+    /**
+     * Bucket of an identity or room.
+     *
+     * @param isIdentity - Whether the key is an identity rather than a room id.
+     * @param key        - Identity or room id.
+     * @return - Bucket index.
+     */
+    public int bucketOf(boolean isIdentity, String key) {
+        long hash = mix(fnv((isIdentity ? "i\u0000" : "r\u0000") + key));
+        return (int) (hash >>> 32) & (getBucketCount() - 1);
+    }
+
+    public void addIdentity(String identity, String serverId) {
+        toggle(bucketOf(true, identity), identityHash(identity, serverId));
+    }
+
+    public void removeIdentity(String identity, String serverId) {
+        toggle(bucketOf(true, identity), identityHash(identity, serverId));
+    }
+
+    public void addRoom(Room room) {
+        toggle(bucketOf(false, room.getRoomId()), roomHash(room));
+    }
+
+    public void removeRoom(Room room) {
+        toggle(bucketOf(false, room.getRoomId()), roomHash(room));
+    }
+
+    public void clear() {
+        for (long[] level : levels) {
+            Arrays.fill(level, 0);
+        }
+    }
+
+    /**
+     * XOR an entry hash into its bucket and every ancestor; adding and removing are the same operation.
+     */
+    private void toggle(int bucket, long entryHash) {
+        int index = bucket;
+        for (int level = depth; level >= 0; level--) {
+            levels[level][index] ^= entryHash;
+            index /= FANOUT;
+        }
+    }
+
+    private static long identityHash(String identity, String serverId) {
+        return mix(fnv("i\u0000" + identity + "\u0000" + serverId));
+    }
+
+    private static long roomHash(Room room) {
+        return mix(fnv("r\u0000" + room.getRoomId() + "\u0000" + room.getServerId() + "\u0000" + room.getOwner()));
+    }
+
+    /**
+     * 64-bit FNV-1a, the same on every server.
+     */
+    private static long fnv(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Spreads the bits of a hash, so that buckets are filled evenly.
+     */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -1,20 +1,19 @@
 package Server;
 
 import ClientHandler.ClientHandler;
+import ClientHandler.EncodedFrame;
 import Utilities.Messaging;
 import Utilities.Util;
-import org.json.simple.JSONObject;
 
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
-public class Room implements Serializable {
+public class Room {
     private final String roomId;
     private final String owner;
     private final String serverId;
-    private final ConcurrentLinkedQueue<ClientHandler> clientIdentityList = new ConcurrentLinkedQueue<>();
+    // Connected clients are local to this server and never sent to other servers.
+    private final RoomMembers members = new RoomMembers();
 
     public Room(String serverId, String roomId) {
         this.serverId = serverId;
@@ -40,16 +39,34 @@ public class Room implements Serializable {
         return serverId;
     }
 
-    public ConcurrentLinkedQueue<ClientHandler> getClientIdentityList() {
-        return clientIdentityList;
+    /**
+     * Clients in the room at this point in time.
+     *
+     * @return - Unmodifiable snapshot of the members.
+     */
+    public Collection<ClientHandler> getClientIdentityList() {
+        return members.snapshot();
+    }
+
+    /**
+     * Clients in the room at this point in time, for broadcasting.
+     *
+     * @return - Snapshot array of the members; must not be modified.
+     */
+    public ClientHandler[] getMembers() {
+        return members.toArray();
+    }
+
+    public int getMemberCount() {
+        return members.size();
     }
 
     public void addClient(ClientHandler clientHandler) {
-        clientIdentityList.add(clientHandler);
+        members.add(clientHandler);
     }
 
     public void removeClient(ClientHandler clientHandler) {
-        clientIdentityList.remove(clientHandler);
+        members.remove(clientHandler);
     }
 
     public void removeClientsFromRoom() {
@@ -67,12 +84,20 @@ public class Room implements Serializable {
             String prevRoom = client.getCurrentRoom();
             mainHall.addClient(client);
             client.setCurrentRoom(mainHall.getRoomId());
-            // Send room change request to client.
-            JSONObject roomChangeRequest = Util.buildRoomChangeJSON(
-                    client.getCurrentIdentity(), getRoomId(), mainHall.getRoomId());
-            Messaging.respond(roomChangeRequest, client.getClientSocket());
+            // Send room change request to client, encoded once for the client and the main hall members.
+            EncodedFrame roomChangeFrame = EncodedFrame.of(Util.buildRoomChangeJSON(
+                    client.getCurrentIdentity(), getRoomId(), mainHall.getRoomId()));
+            client.send(roomChangeFrame);
             // Inform MainHall members about room change of clients.
-            Messaging.broadcastClientChangeRoom(tempRoomClients, client.getCurrentIdentity(), prevRoom, mainHall.getRoomId());
+            if (getRoomId().equals(prevRoom)) {
+                for (ClientHandler mainHallClient : tempRoomClients) {
+                    if (mainHallClient.getCurrentRoom().equals(mainHall.getRoomId())) {
+                        mainHallClient.send(roomChangeFrame);
+                    }
+                }
+            } else {
+                Messaging.broadcastClientChangeRoom(tempRoomClients, client.getCurrentIdentity(), prevRoom, mainHall.getRoomId());
+            }
         }
         // Update mainHall in ServerState.
         ServerState.getServerState().updateRoom(mainHall);
@@ -0,0 +1,98 @@
+package Server;
+
+import ClientHandler.ClientHandler;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Members of a room. Adding and removing a client is constant time: members sit in a dense array
+ * and are located by their session id, a removed member's slot is filled with the last member.
+ * Readers get an immutable snapshot that is cached until the membership changes.
+ */
+public class RoomMembers {
+
+    private static final int INITIAL_CAPACITY = 8;
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final HashMap<Long, Integer> positions = new HashMap<>(); // session id -> index in members
+    private ClientHandler[] members = new ClientHandler[INITIAL_CAPACITY];
+    private volatile int count = 0;
+    private volatile ClientHandler[] snapshot = EMPTY;
+
+    /**
+     * Add a client.
+     *
+     * @param clientHandler - Client.
+     * @return - False if the client is already a member.
+     */
+    public synchronized boolean add(ClientHandler clientHandler) {
+        if (positions.containsKey(clientHandler.getId())) {
+            return false;
+        }
+        if (count == members.length) {
+            members = Arrays.copyOf(members, members.length * 2);
+        }
+        members[count] = clientHandler;
+        positions.put(clientHandler.getId(), count);
+        count++;
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * Remove a client.
+     *
+     * @param clientHandler - Client.
+     * @return - False if the client is not a member.
+     */
+    public synchronized boolean remove(ClientHandler clientHandler) {
+        Integer position = positions.remove(clientHandler.getId());
+        if (position == null) {
+            return false;
+        }
+        int last = count - 1;
+        if (position != last) {
+            members[position] = members[last];
+            positions.put(members[position].getId(), position);
+        }
+        members[last] = null;
+        count = last;
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * Members at this point in time. Later joins and leaves don't affect a returned array.
+     *
+     * @return - Array of members; must not be modified.
+     */
+    public ClientHandler[] toArray() {
+        ClientHandler[] current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = Arrays.copyOf(members, count);
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Members at this point in time, as an unmodifiable collection.
+     *
+     * @return - Collection of members.
+     */
+    public Collection<ClientHandler> snapshot() {
+        return Collections.unmodifiableList(Arrays.asList(toArray()));
+    }
+
+    public int size() {
+        return count;
+    }
+}
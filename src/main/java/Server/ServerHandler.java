@@ -3,28 +3,48 @@ package Server;
 import ClientHandler.ClientHandler;
 import Consensus.Consensus;
 import Consensus.LeaderElection;
+import Consensus.LeaderLease;
+import Constants.ChatServerConstants.RaftConstants;
 import Constants.ChatServerConstants.ServerConstants;
 import Constants.ChatServerConstants.ServerExceptionConstants;
+import Constants.ServerProperties;
 import Exception.ServerException;
+import Gossiping.AntiEntropy;
+import Gossiping.Dissemination;
 import Gossiping.Gossiping;
+import Replication.RegistryLog;
+import Utilities.LineFramer;
 import Utilities.Messaging;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class ServerHandler extends Thread {
+public class ServerHandler implements Runnable {
     private static final Logger logger = LogManager.getLogger(ClientHandler.class);
+    // Election messages may wait on other servers or back off for a while; they are handled one at a time, in the
+    // order received from every peer, without holding up the channels they arrive on.
+    private static final ExecutorService electionHandler = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Election-Handler");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final Socket serverSocket;
+    private OutputStream outputStream;
 
     public ServerHandler(Socket serverSocket) {
         this.serverSocket = serverSocket;
@@ -34,14 +54,82 @@ public class ServerHandler extends Thread {
     public void run() {
         try {
             InputStream inputFromClient = serverSocket.getInputStream();
-            Scanner serverInputScanner = new Scanner(inputFromClient, String.valueOf(StandardCharsets.UTF_8));
-            String line = serverInputScanner.nextLine();
-            logger.trace("Received: " + line);
-            JSONParser jsonParser = new JSONParser();
-            JSONObject jsonPayload = (JSONObject) jsonParser.parse(line);
+            outputStream = new BufferedOutputStream(serverSocket.getOutputStream());
+            LineFramer framer = new LineFramer(inputFromClient, ServerProperties.SERVER_MAX_FRAME_LENGTH);
+            // Peers keep their channel open, so serve messages until the peer closes it.
+            while (framer.next()) {
+                JSONObject jsonPayload = Messaging.decodeServerMessage(
+                        framer.getBuffer(), framer.getFrameOffset(), framer.getFrameLength());
+                logger.trace("Received: " + jsonPayload);
+                // Resolved in the order sent; requests that wait on other servers reply when their answer arrives.
+                resolve(jsonPayload);
+            }
+        } catch (IOException | ParseException e) {
+            logger.debug(e);
+        } finally {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.debug(e);
+            }
+        }
+    }
+
+    /**
+     * Resolve a message; a failure only affects that message, not the channel. A request that fails unexpectedly
+     * is answered with an error, so that the peer doesn't wait for it to time out.
+     *
+     * @param jsonPayload - Received payload.
+     */
+    private void resolve(JSONObject jsonPayload) {
+        try {
             resolveServerRequest(jsonPayload);
-        } catch (IOException | ParseException | ServerException | InterruptedException | ClassNotFoundException e) {
+        } catch (IOException | ParseException | ServerException | InterruptedException e) {
             logger.debug(e);
+        } catch (RuntimeException e) {
+            logger.error("Failed to resolve " + jsonPayload.toJSONString() + ": " + e);
+            if (jsonPayload.get(ServerConstants.CORRELATION_ID) != null) {
+                respond(createErrorJSON(jsonPayload), jsonPayload);
+            }
+        }
+    }
+
+    /**
+     * Resolve a message on the election handler.
+     *
+     * @param handler     - Resolves the message.
+     * @param jsonPayload - Received payload.
+     */
+    private void resolveOnElectionHandler(Runnable handler, JSONObject jsonPayload) {
+        electionHandler.execute(() -> {
+            try {
+                handler.run();
+            } catch (RuntimeException e) {
+                logger.error("Failed to resolve " + jsonPayload.toJSONString() + ": " + e);
+            }
+        });
+    }
+
+    /**
+     * Reply to a request, echoing its correlation id. Replies of concurrent requests are written one at a time.
+     *
+     * @param response - Reply.
+     * @param request  - Request being replied to.
+     */
+    @SuppressWarnings("unchecked") // JSONObject is a raw HashMap.
+    private void respond(JSONObject response, JSONObject request) {
+        Object correlationId = request.get(ServerConstants.CORRELATION_ID);
+        if (correlationId != null) {
+            response.put(ServerConstants.CORRELATION_ID, correlationId);
+        }
+        try {
+            logger.debug("Sending: " + response.toJSONString() + " to :" + serverSocket.getLocalPort());
+            synchronized (outputStream) {
+                outputStream.write(Messaging.frame(response));
+                outputStream.flush();
+            }
+        } catch (IOException exception) {
+            logger.debug("Socket closed for: " + serverSocket.getInetAddress());
         }
     }
 
@@ -53,7 +141,7 @@ public class ServerHandler extends Thread {
      * @throws ParseException
      * @throws ServerException
      */
-    private void resolveServerRequest(JSONObject jsonPayload) throws IOException, ParseException, ServerException, InterruptedException, ClassNotFoundException {
+    private void resolveServerRequest(JSONObject jsonPayload) throws IOException, ParseException, ServerException, InterruptedException {
         String type = (String) jsonPayload.get(ServerConstants.TYPE);
         String kind = (String) jsonPayload.get(ServerConstants.KIND);
 
@@ -64,6 +152,10 @@ public class ServerHandler extends Thread {
                         logger.info("Consensus: Unique value verification request received.");
                         verifyUnique(jsonPayload);
                         break;
+                    case ServerConstants.KIND_VERIFY_UNIQUE_BATCH:
+                        logger.info("Consensus: Unique value verification request received for a batch.");
+                        verifyUniqueBatch(jsonPayload);
+                        break;
                     case ServerConstants.KIND_REQUEST_TO_CREATE_NEW_IDENTITY:
                         logger.info("Consensus: New identity creation request received to leader.");
                         handleRequestToCreate(jsonPayload, ServerConstants.IDENTITY);
@@ -77,27 +169,29 @@ public class ServerHandler extends Thread {
             case ServerConstants.TYPE_GOSSIP:
                 switch (kind) {
                     case ServerConstants.KIND_INFORM_NEW_IDENTITY:
-                        logger.info("Gossiping: New identity creation information received.");
-                        addNewIdentity(jsonPayload);
+                    case ServerConstants.KIND_INFORM_DELETE_IDENTITY:
+                    case ServerConstants.KIND_INFORM_NEW_ROOM:
+                    case ServerConstants.KIND_INFORM_DELETE_ROOM:
+                        logger.info("Gossiping: Registry change information received: " + kind);
+                        ServerState.getServerState().applyRegistryDelta(List.of(jsonPayload));
                         break;
 
-                    case ServerConstants.KIND_INFORM_DELETE_IDENTITY:
-                        logger.info("Gossiping: Identity deletion information received.");
-                        deleteIdentity(jsonPayload);
+                    case ServerConstants.KIND_REGISTRY_DELTA:
+                        JSONArray entries = (JSONArray) jsonPayload.get(ServerConstants.ENTRIES);
+                        logger.info("Gossiping: Registry delta with " + entries.size() + " changes received.");
+                        ServerState.getServerState().applyRegistryDelta(entries);
                         break;
 
-                    case ServerConstants.KIND_INFORM_NEW_ROOM:
-                        logger.info("Gossiping: New room creation information received.");
-                        addNewRoom(jsonPayload);
+                    case ServerConstants.KIND_HEARTBEAT:
+                        Gossiping.receiveHeartBeatTable(jsonPayload);
                         break;
 
-                    case ServerConstants.KIND_INFORM_DELETE_ROOM:
-                        logger.info("Gossiping: Room deletion information received.");
-                        deleteRoom(jsonPayload);
+                    case ServerConstants.KIND_RUMOR:
+                        Dissemination.getDissemination().receive(jsonPayload);
                         break;
 
-                    case ServerConstants.KIND_HEARTBEAT:
-                        Gossiping.receiveHeartBeat(jsonPayload);
+                    case ServerConstants.KIND_ANTI_ENTROPY:
+                        respond(AntiEntropy.getAntiEntropy().answer(jsonPayload), jsonPayload);
                         break;
                 }
                 break;
@@ -106,24 +200,60 @@ public class ServerHandler extends Thread {
                     case ServerConstants.KIND_ELECTION:
                         // This server received an ELECTION message
                         logger.trace("Received bully to: " + ServerState.getServerState().getServerId() + " by: " + jsonPayload.get(ServerConstants.SERVER_ID));
-                        LeaderElection.replyOKorPass(jsonPayload, serverSocket);
+                        resolveOnElectionHandler(() -> {
+                            JSONObject electionReply = LeaderElection.replyOKorPass(jsonPayload);
+                            if (electionReply != null) {
+                                respond(electionReply, jsonPayload);
+                            }
+                        }, jsonPayload);
                         break;
 
                     case ServerConstants.KIND_ELECTED:
                         // This server received elected message
                         logger.trace("Received ELECTED to: " + ServerState.getServerState().getServerId() + " by: " + jsonPayload.get(ServerConstants.SERVER_ID));
-                        LeaderElection.respondToElectedMessage();
+                        resolveOnElectionHandler(LeaderElection::respondToElectedMessage, jsonPayload);
                         break;
 
                     case ServerConstants.KIND_COORDINATOR:
                         logger.trace("Received COORDINATOR to: " + ServerState.getServerState().getServerId() + " by: " + jsonPayload.get(ServerConstants.SERVER_ID));
-                        LeaderElection.receiveCoordinator(jsonPayload);
+                        resolveOnElectionHandler(() -> LeaderElection.receiveCoordinator(jsonPayload), jsonPayload);
+                        break;
+
+                    case ServerConstants.KIND_LEASE:
+                        respond(LeaderLease.getLeaderLease().onRenewal(jsonPayload), jsonPayload);
                         break;
+
+                    case ServerConstants.KIND_PRE_VOTE:
+                        respond(LeaderLease.getLeaderLease().onPreVote(jsonPayload), jsonPayload);
+                        break;
+                }
+                break;
+            case RaftConstants.TYPE_RAFT:
+                if (RegistryLog.isEnabled()) {
+                    RegistryLog.getRegistryLog().handle(jsonPayload).thenAccept(reply -> {
+                        if (reply != null) {
+                            respond(reply, jsonPayload);
+                        }
+                    });
+                } else {
+                    logger.debug("Raft message received with replication mode " + ServerProperties.REPLICATION_MODE);
                 }
                 break;
             case ServerConstants.LEADER_STATE_MERGE:
-                logger.info("State received from the leader.");
-                ServerState.getServerState().restoreServerState(jsonPayload);
+                long epoch = Long.parseLong((String) jsonPayload.get(ServerConstants.EPOCH));
+                long version = Long.parseLong((String) jsonPayload.get(ServerConstants.VERSION));
+                if (ServerState.getServerState().isRegistrySynced(epoch, version)) {
+                    logger.info("Registry already synchronized to version " + version + " of the leader.");
+                    ServerState.getServerState().setSmallPartitionFormed(false);
+                } else {
+                    logger.info("Registry sync offered by the leader.");
+                    Messaging.syncRegistry(ServerState.getServerState().getServerFromId((String) jsonPayload.get(ServerConstants.SERVER_ID)));
+                }
+                break;
+            case ServerConstants.TYPE_REGISTRY_SYNC:
+                if (ServerConstants.KIND_SYNC_REQUEST.equals(kind)) {
+                    respond(ServerState.getServerState().getRegistrySync(jsonPayload), jsonPayload);
+                }
                 break;
             case ServerConstants.IDENTITY_SERVER_CHANGE:
                 String identity = (String) jsonPayload.get(ServerConstants.IDENTITY);
@@ -134,79 +264,6 @@ public class ServerHandler extends Thread {
         }
     }
 
-    /**
-     * Add newly created identity.
-     *
-     * @param jsonPayload - JSON payload.
-     */
-    private void addNewIdentity(JSONObject jsonPayload) {
-        String identity = (String) jsonPayload.get(ServerConstants.IDENTITY);
-        String serverId = (String) jsonPayload.get(ServerConstants.SERVER_ID);
-        ServerState.getServerState().addIdentity(identity, serverId);
-    }
-
-    /**
-     * Remove delete identity from the list.
-     *
-     * @param jsonPayload - JSON payload.
-     */
-    private void deleteIdentity(JSONObject jsonPayload) {
-        String identity;
-        identity = (String) jsonPayload.get(ServerConstants.IDENTITY);
-        ServerState.getServerState().removeIdentity(identity);
-    }
-
-    /**
-     * Add newly created room.
-     *
-     * @param jsonPayload - JSON payload.
-     */
-    private void addNewRoom(JSONObject jsonPayload) {
-        Room newRoom = getRoomFromRequest(jsonPayload);
-        ServerState.getServerState().addRoomToMap(newRoom);
-    }
-
-    /**
-     * Remove deleted room from the hashmap.
-     *
-     * @param jsonPayload - JSON payload.
-     */
-    private void deleteRoom(JSONObject jsonPayload) {
-        String delRoomId = extractRoomIdFromRequest(jsonPayload);
-        Room delRoom = ServerState.getServerState().getRoom(delRoomId);
-        // Remove clients from the room, if the room is hosted in this server.
-        if (delRoom != null) {
-            if (delRoom.getServerId().equals(ServerState.getServerState().getServerId())) {
-                logger.info("Removing clients from room before deletion");
-                delRoom.removeClientsFromRoom();
-            }
-            ServerState.getServerState().removeRoom(delRoom);
-        }
-    }
-
-    /**
-     * Extract room from a JSON payload.
-     *
-     * @param jsonPayload - JSON payload.
-     * @return - Room object.
-     */
-    private Room getRoomFromRequest(JSONObject jsonPayload) {
-        String roomId = (String) jsonPayload.get(ServerConstants.ROOM_ID);
-        String serverId = (String) jsonPayload.get(ServerConstants.SERVER_ID);
-        String owner = (String) jsonPayload.get(ServerConstants.ROOM_OWNER);
-        return new Room(serverId, roomId, owner);
-    }
-
-    /**
-     * Extract room from a JSON payload with correct serverId for deletion purposes.
-     *
-     * @param jsonPayload - JSON payload.
-     * @return - Room object.
-     */
-    private String extractRoomIdFromRequest(JSONObject jsonPayload) {
-        return (String) jsonPayload.get(ServerConstants.ROOM_ID);
-    }
-
     /**
      * Verify whether the given value is unique or not.
      *
@@ -232,42 +289,74 @@ public class ServerHandler extends Thread {
         responseMap.put(ServerConstants.KIND, ServerConstants.KIND_VERIFY_UNIQUE);
         responseMap.put(valueType, value);
         responseMap.put(ServerConstants.UNIQUE, String.valueOf(isAvailable));
-        Messaging.respond(new JSONObject(responseMap), serverSocket);
+        respond(new JSONObject(responseMap), jsonPayload);
+    }
+
+    /**
+     * Verify which of the given values this server already has.
+     *
+     * @param jsonPayload - JSON payload with the identities and room ids of a reservation batch.
+     */
+    private void verifyUniqueBatch(JSONObject jsonPayload) {
+        List<Object> takenIdentities = new ArrayList<>();
+        for (Object identity : (JSONArray) jsonPayload.get(ServerConstants.IDENTITIES)) {
+            if (ServerState.getServerState().containsIdentity(String.valueOf(identity))) {
+                takenIdentities.add(identity);
+            }
+        }
+        List<Object> takenRoomIds = new ArrayList<>();
+        for (Object roomId : (JSONArray) jsonPayload.get(ServerConstants.ROOM_IDS)) {
+            if (ServerState.getServerState().hasRoomId(String.valueOf(roomId))) {
+                takenRoomIds.add(roomId);
+            }
+        }
+
+        HashMap<String, Object> responseMap = new HashMap<>();
+        responseMap.put(ServerConstants.TYPE, ServerConstants.TYPE_CONSENSUS);
+        responseMap.put(ServerConstants.KIND, ServerConstants.KIND_VERIFY_UNIQUE_BATCH);
+        responseMap.put(ServerConstants.IDENTITIES, takenIdentities);
+        responseMap.put(ServerConstants.ROOM_IDS, takenRoomIds);
+        respond(new JSONObject(responseMap), jsonPayload);
     }
 
     /**
-     * Handle request to create.
+     * Handle request to create. The leader replies once the value is reserved, see
+     * {@link Consensus#reserveAsLeader(String, String)}; any other server forwards it to the leader.
+     * Doesn't wait for the reply.
      *
      * @param jsonPayload - JSON payload.
      * @param type        - Type of the request.
      * @throws ServerException
-     * @throws IOException
-     * @throws ParseException
-     * @throws InterruptedException
      */
-    private void handleRequestToCreate(JSONObject jsonPayload, String type) throws ServerException, IOException, ParseException, InterruptedException {
-        boolean isAvailable;
-        JSONObject response = null;
+    private void handleRequestToCreate(JSONObject jsonPayload, String type) throws ServerException {
+        String value;
+        String requestKind;
         switch (type) {
             case ServerConstants.IDENTITY:
-                String identity = String.valueOf(jsonPayload.get(ServerConstants.IDENTITY));
-                isAvailable = Consensus.getConsensus().verifyUniqueValue(identity, ServerConstants.IDENTITY);
-                response = createRequestKindJSON(isAvailable, identity,
-                        ServerConstants.KIND_REQUEST_TO_CREATE_NEW_IDENTITY);
+                value = String.valueOf(jsonPayload.get(ServerConstants.IDENTITY));
+                requestKind = ServerConstants.KIND_REQUEST_TO_CREATE_NEW_IDENTITY;
                 break;
             case ServerConstants.ROOM_ID:
-                String roomId = String.valueOf(jsonPayload.get(ServerConstants.ROOM_ID));
-                isAvailable = Consensus.getConsensus().verifyUniqueValue(roomId, ServerConstants.ROOM_ID);
-                response = createRequestKindJSON(isAvailable, roomId,
-                        ServerConstants.KIND_REQUEST_TO_CREATE_NEW_ROOM);
-        }
-        if (response != null) {
-            Messaging.respond(response, serverSocket);
-        } else {
-            throw new ServerException(
-                    ServerExceptionConstants.INTERNAL_SERVER_ERROR_MSG,
-                    ServerExceptionConstants.INTERNAL_SERVER_ERROR_CODE);
+                value = String.valueOf(jsonPayload.get(ServerConstants.ROOM_ID));
+                requestKind = ServerConstants.KIND_REQUEST_TO_CREATE_NEW_ROOM;
+                break;
+            default:
+                throw new ServerException(
+                        ServerExceptionConstants.INTERNAL_SERVER_ERROR_MSG,
+                        ServerExceptionConstants.INTERNAL_SERVER_ERROR_CODE);
         }
+        CompletableFuture<Boolean> isAvailable = ServerState.getServerState().amITheLeader() ?
+                Consensus.getConsensus().reserveAsLeader(value, type) :
+                Consensus.getConsensus().verifyUniqueValueAsync(value, type);
+        isAvailable.whenComplete((available, error) -> {
+            if (error != null) {
+                // Fail the forwarded request now, rather than leave the server that sent it to time out.
+                logger.debug("Request to create " + value + " failed: " + error);
+                respond(createErrorJSON(jsonPayload), jsonPayload);
+            } else {
+                respond(createRequestKindJSON(available, value, requestKind), jsonPayload);
+            }
+        });
     }
 
     /**
@@ -293,4 +382,19 @@ public class ServerHandler extends Thread {
         }
         return new JSONObject(responseMap);
     }
+
+    /**
+     * Create the error reply of a request that failed.
+     *
+     * @param request - Request that failed.
+     * @return - JSONObject.
+     */
+    private JSONObject createErrorJSON(JSONObject request) {
+        HashMap<String, Object> responseMap = new HashMap<>();
+        responseMap.put(ServerConstants.TYPE, request.get(ServerConstants.TYPE));
+        responseMap.put(ServerConstants.KIND, request.get(ServerConstants.KIND));
+        responseMap.put(ServerConstants.ERROR, ServerExceptionConstants.INTERNAL_SERVER_ERROR_MSG);
+        responseMap.put(ServerConstants.ERROR_CODE, ServerExceptionConstants.INTERNAL_SERVER_ERROR_CODE);
+        return new JSONObject(responseMap);
+    }
 }
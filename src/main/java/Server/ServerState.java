@@ -2,33 +2,56 @@ package Server;
 
 import ClientHandler.ClientHandler;
 import Consensus.Leader;
+import Consensus.ReservationTable;
 import Constants.ChatServerConstants;
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+import Utilities.Messaging;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.simple.JSONObject;
 
-import java.io.*;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ServerState {
 
     private static final Logger logger = LogManager.getLogger(ServerState.class);
     private static ServerState serverState;
     private final ConcurrentHashMap<Long, ClientHandler> clientHandlerHashMap = new ConcurrentHashMap<>();
+    private final Set<ClientHandler> clientsWithoutRoom = ConcurrentHashMap.newKeySet(); // connected, not in a room yet
     private final ConcurrentHashMap<String, Room> roomsHashMap = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, Server> serversHashmap = new ConcurrentHashMap<>(); // has all the Servers; dead and alive; except this
     private final ConcurrentHashMap<String, String> identityHashMap = new ConcurrentHashMap<>(); // unique client identifies
     private final ConcurrentHashMap<String, Long> heartBeatMap = new ConcurrentHashMap<>(); //store heartbeats of servers
-    private final ConcurrentLinkedQueue<String> failedServers = new ConcurrentLinkedQueue<>(); // store failed servers
-    private boolean smallPartitionFormed = false;
+    private final ConcurrentHashMap<String, Long> failedHeartBeats = new ConcurrentHashMap<>(); //last heartbeats of failed servers
+    private final Object registryLock = new Object(); // serializes changes to the rooms and identities
+    private volatile long registryVersion = 0; // incremented on every change to the rooms and identities
+    // Registry versions are only comparable within one epoch, i.e. one run of a server.
+    private final long registryEpoch = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+    private final RegistryChangeLog registryChangeLog = new RegistryChangeLog();
+    private final RegistryDigest registryDigest = new RegistryDigest(ServerProperties.ANTI_ENTROPY_BUCKETS);
+    // Registry of another server this server last synchronized to, see applyRegistrySync.
+    private long syncedEpoch = -1;
+    private long syncedVersion = 0;
+    // Secondary indexes, maintained under the registry lock together with the maps above.
+    private final ConcurrentHashMap<String, Set<String>> roomIdsByOwner = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> roomIdsByServer = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> identitiesByServer = new ConcurrentHashMap<>();
+    // Membership, failed servers and the leader; replaced as a whole on every change.
+    private final AtomicReference<ClusterView> clusterView = new AtomicReference<>();
+    private final AtomicReference<CompletableFuture<Leader>> leaderElected = new AtomicReference<>(new CompletableFuture<>());
+    private volatile boolean smallPartitionFormed = false;
     private String serverId;
     private String serverAddress;
     private int coordinationPort;
     private int clientsPort;
     private long myHeartBeat = 0;
-    private Leader currentLeader = null;
 
     private ServerState() {
     }
@@ -53,6 +76,7 @@ public class ServerState {
     public void initialize(String thisServerId, String serverConf) {
         thisServerId = getServerIdFromName(thisServerId);
         this.serverId = thisServerId;
+        Collection<Server> peers = new ArrayList<>();
         try {
             File conf = new File(serverConf);
             Scanner reader = new Scanner(conf);
@@ -67,7 +91,7 @@ public class ServerState {
                     logger.trace("Server created: " + thisServerId + " " + serverAddress + " " + clientsPort + " " + coordinationPort);
                 } else {
                     Server server = new Server(params[0], params[1], Integer.parseInt(params[3]), Integer.parseInt(params[2]));
-                    serversHashmap.put(server.getId(), server);
+                    peers.add(server);
                 }
                 String mainHallId = getMainHallIdString(thisServerId);
                 addRoomToMap(new Room(thisServerId, mainHallId));
@@ -77,20 +101,21 @@ public class ServerState {
         } catch (FileNotFoundException e) {
             logger.debug(e.getMessage());
         }
+        Server self = new Server(this.serverId, this.serverAddress, this.coordinationPort, this.clientsPort);
+        clusterView.set(ClusterView.initial(self, peers));
+    }
 
+    /**
+     * Current membership snapshot. Read it once and use that snapshot for a consistent view.
+     *
+     * @return - ClusterView
+     */
+    public ClusterView getClusterView() {
+        return clusterView.get();
     }
 
     public Server getServerFromId(String serverId) {
-        Collection<Server> servers = getServers();
-        for (Server s : servers) {
-            if (s.getId().equals(serverId)) {
-                return s;
-            }
-        }
-        if (serverId.equals(this.serverId)) {
-            return new Server(this.serverId, this.serverAddress, this.coordinationPort, this.clientsPort);
-        }
-        return null;
+        return getClusterView().getServer(serverId);
     }
 
     public String getServerId() {
@@ -107,12 +132,15 @@ public class ServerState {
 
     public void updateRoom(Room room) {
         String roomId = room.getRoomId();
-        if (roomsHashMap.containsKey(roomId)) {
-            roomsHashMap.put(roomId, room);
+        synchronized (registryLock) {
+            Room current = roomsHashMap.get(roomId);
+            if (current != null && current != room) {
+                putRoom(room);
+            }
         }
     }
 
-    public ConcurrentLinkedQueue<ClientHandler> getClientsInRoom(String roomId) {
+    public Collection<ClientHandler> getClientsInRoom(String roomId) {
         Room room = roomsHashMap.get(roomId);
         if (room != null) {
             return room.getClientIdentityList();
@@ -138,12 +166,28 @@ public class ServerState {
 
     public void addClientHandler(ClientHandler clientHandler) {
         clientHandlerHashMap.put(clientHandler.getId(), clientHandler);
+        clientsWithoutRoom.add(clientHandler);
     }
 
     public void removeClientHandler(ClientHandler clientHandler) {
         if (clientHandlerHashMap.containsKey(clientHandler.getId())) {
             clientHandlerHashMap.remove(clientHandler.getId(), clientHandler);
         }
+        clientsWithoutRoom.remove(clientHandler);
+    }
+
+    /**
+     * Connected clients that haven't joined a room yet. They are informed of clients joining their first room,
+     * whose former room is empty like theirs.
+     *
+     * @return - Clients without a room.
+     */
+    public Collection<ClientHandler> getClientsWithoutRoom() {
+        return clientsWithoutRoom;
+    }
+
+    public void removeClientWithoutRoom(ClientHandler clientHandler) {
+        clientsWithoutRoom.remove(clientHandler);
     }
 
     public ConcurrentHashMap<Long, ClientHandler> getClientHandlerHashMap() {
@@ -152,34 +196,137 @@ public class ServerState {
 
 
     public Collection<Server> getServers() {
-        return serversHashmap.values();
+        return getClusterView().getPeers();
     }
 
     public Collection<Server> getServersHigherThanMyId() {
-        Collection<Server> higherServers = new ArrayList<>();
-        for (Server server : getServers()) {
-            if (Integer.parseInt(server.getId()) > Integer.parseInt(getServerId())) {
-                higherServers.add(server);
-            }
-        }
-        return higherServers;
+        return getClusterView().getHigherPeers();
     }
 
     public void addRoomToMap(Room room) {
-        roomsHashMap.put(room.getRoomId(), room);
+        synchronized (registryLock) {
+            putRoom(room);
+        }
     }
 
     public String getRoomByOwner(String owner) {
-        for (Map.Entry<String, Room> mapEntry : roomsHashMap.entrySet()) {
-            if (owner.equals(mapEntry.getValue().getOwner())) {
-                return mapEntry.getValue().getRoomId();
+        Set<String> roomIds = roomIdsByOwner.get(owner);
+        if (roomIds != null) {
+            for (String roomId : roomIds) {
+                return roomId;
             }
         }
         return null;
     }
 
     public void removeRoom(Room room) {
-        roomsHashMap.remove(room.getRoomId());
+        synchronized (registryLock) {
+            deleteRoom(room.getRoomId());
+        }
+    }
+
+    /**
+     * Put a room and index it. Caller holds the registry lock.
+     *
+     * @param room - Room.
+     */
+    private void putRoom(Room room) {
+        Room previous = roomsHashMap.put(room.getRoomId(), room);
+        if (previous != null) {
+            unindex(roomIdsByOwner, previous.getOwner(), previous.getRoomId());
+            unindex(roomIdsByServer, previous.getServerId(), previous.getRoomId());
+            registryDigest.removeRoom(previous);
+        }
+        registryDigest.addRoom(room);
+        index(roomIdsByOwner, room.getOwner(), room.getRoomId());
+        index(roomIdsByServer, room.getServerId(), room.getRoomId());
+        recordChange(new RegistryChange(RegistryChange.PUT_ROOM, room.getRoomId(), room.getServerId(), room.getOwner()));
+    }
+
+    /**
+     * Remove a room and its index entries. Caller holds the registry lock.
+     *
+     * @param roomId - Room id.
+     */
+    private void deleteRoom(String roomId) {
+        Room previous = roomsHashMap.remove(roomId);
+        if (previous != null) {
+            unindex(roomIdsByOwner, previous.getOwner(), roomId);
+            unindex(roomIdsByServer, previous.getServerId(), roomId);
+            registryDigest.removeRoom(previous);
+        }
+        ReservationTable.getReservationTable().release(roomId, ChatServerConstants.ServerConstants.ROOM_ID);
+        recordChange(new RegistryChange(RegistryChange.DELETE_ROOM, roomId, previous == null ? null : previous.getServerId(), null));
+    }
+
+    /**
+     * Put an identity and index it. Caller holds the registry lock.
+     *
+     * @param identity - Identity.
+     * @param sId      - Server id of the identity.
+     */
+    private void putIdentity(String identity, String sId) {
+        String previous = identityHashMap.put(identity, sId);
+        if (previous != null) {
+            unindex(identitiesByServer, previous, identity);
+            registryDigest.removeIdentity(identity, previous);
+        }
+        registryDigest.addIdentity(identity, sId);
+        index(identitiesByServer, sId, identity);
+        recordChange(new RegistryChange(RegistryChange.PUT_IDENTITY, identity, sId, null));
+    }
+
+    /**
+     * Remove an identity and its index entry. Caller holds the registry lock.
+     *
+     * @param identity - Identity.
+     */
+    private void deleteIdentity(String identity) {
+        String previous = identityHashMap.remove(identity);
+        if (previous != null) {
+            unindex(identitiesByServer, previous, identity);
+            registryDigest.removeIdentity(identity, previous);
+        }
+        ReservationTable.getReservationTable().release(identity, ChatServerConstants.ServerConstants.IDENTITY);
+        recordChange(new RegistryChange(RegistryChange.DELETE_IDENTITY, identity, previous, null));
+    }
+
+    /**
+     * Advance the registry version and keep the change for servers that rejoin. Caller holds the registry lock.
+     *
+     * @param change - Change.
+     */
+    private void recordChange(RegistryChange change) {
+        registryVersion++;
+        registryChangeLog.record(change, registryVersion);
+    }
+
+    private static void index(ConcurrentHashMap<String, Set<String>> index, String key, String value) {
+        if (key != null) {
+            index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(value);
+        }
+    }
+
+    private static void unindex(ConcurrentHashMap<String, Set<String>> index, String key, String value) {
+        if (key == null) {
+            return;
+        }
+        Set<String> values = index.get(key);
+        if (values != null) {
+            values.remove(value);
+            if (values.isEmpty()) {
+                index.remove(key, values);
+            }
+        }
+    }
+
+    /**
+     * Version of the rooms and identities; changes whenever any of them changes.
+     *
+     * @return - Version.
+     */
+    public long getRegistryVersion() {
+        return registryVersion;
     }
 
     public boolean hasRoomId(String identity) {
@@ -187,11 +334,88 @@ public class ServerState {
     }
 
     public Leader getCurrentLeader() {
-        return currentLeader;
+        return getClusterView().getLeader();
+    }
+
+    public void setCurrentLeader(Leader currentLeader) {
+        ClusterView view = clusterView.updateAndGet(current -> current.withLeader(currentLeader));
+        logger.trace("Cluster view updated: " + view);
+        if (currentLeader != null) {
+            leaderElected.get().complete(currentLeader);
+        }
+    }
+
+    /**
+     * Signal of the end of an election.
+     *
+     * @return - Future completed with the current leader, or with the next one if there is none.
+     */
+    public CompletableFuture<Leader> whenLeaderElected() {
+        return whenLeaderElected(null);
+    }
+
+    /**
+     * Signal of the end of an election that replaces a failed leader.
+     *
+     * @param failedLeader - Leader that failed; null if any leader will do.
+     * @return - Future completed with the current leader if it isn't the failed one, or with the next one set.
+     */
+    public CompletableFuture<Leader> whenLeaderElected(Leader failedLeader) {
+        Leader leader = getCurrentLeader();
+        if (leader != null && !isSameServer(leader, failedLeader)) {
+            return CompletableFuture.completedFuture(leader);
+        }
+        CompletableFuture<Leader> signal = leaderElected.updateAndGet(current -> current.isDone() ? new CompletableFuture<>() : current);
+        // A leader set while the signal was being replaced completed the old one.
+        leader = getCurrentLeader();
+        if (leader != null && !isSameServer(leader, failedLeader)) {
+            signal.complete(leader);
+        }
+        return signal;
+    }
+
+    private static boolean isSameServer(Leader leader, Leader other) {
+        return other != null && leader.getId().equals(other.getId());
     }
 
-    public synchronized void setCurrentLeader(Leader currentLeader) {
-        this.currentLeader = currentLeader;
+    /**
+     * Record a heartbeat of a newly discovered or recovered server.
+     *
+     * @param sId       - Server id.
+     * @param timeStamp - Heartbeat timestamp.
+     */
+    public void markServerAlive(String sId, long timeStamp) {
+        heartBeatMap.put(sId, timeStamp);
+        failedHeartBeats.remove(sId);
+        ClusterView view = clusterView.updateAndGet(current -> current.withAlive(sId));
+        logger.trace("Cluster view updated: " + view);
+    }
+
+    /**
+     * Mark a server as failed.
+     *
+     * @param sId - Server id.
+     */
+    public void markServerFailed(String sId) {
+        Long lastHeartBeat = heartBeatMap.remove(sId);
+        if (lastHeartBeat != null) {
+            failedHeartBeats.merge(sId, lastHeartBeat, Math::max);
+        }
+        ClusterView view = clusterView.updateAndGet(current -> current.withSuspected(sId));
+        logger.trace("Cluster view updated: " + view);
+    }
+
+    /**
+     * Whether a heartbeat of a server is no newer than the last one seen before it was marked failed. Other servers
+     * keep gossiping such heartbeats until they notice the failure too.
+     *
+     * @param sId       - Server id.
+     * @param timeStamp - Heartbeat timestamp.
+     * @return - True if the heartbeat doesn't show that the server has recovered.
+     */
+    public boolean isStaleHeartBeat(String sId, long timeStamp) {
+        Long lastHeartBeat = failedHeartBeats.get(sId);
+        return lastHeartBeat != null && timeStamp <= lastHeartBeat;
     }
 
     public ConcurrentHashMap<String, Long> getHeartbeatMap() {
@@ -207,119 +431,276 @@ public class ServerState {
     }
 
     public Collection<Server> getActiveServers() {
-        // active servers are maintained at the heartbeat map
-        ArrayList<String> serverIds = new ArrayList<>(getHeartbeatMap().keySet());
-        Collection<Server> output = new ArrayList<>();
-        for (Server server : getServers()) {
-            for (String id : serverIds) {
-                if (server.getId().equals(id)) {
-                    output.add(server);
-                }
-            }
-        }
-        return output;
+        return getClusterView().getAlivePeers();
     }
 
-    public ConcurrentLinkedQueue<String> getFailedServers() {
-        return failedServers;
+    public Collection<String> getFailedServers() {
+        return getClusterView().getSuspected();
     }
 
     public boolean isSmallPartitionFormed() {
-        return getServerState().smallPartitionFormed;
+        return smallPartitionFormed;
     }
 
     public void setSmallPartitionFormed(boolean smallPartitionFormed) {
-        getServerState().smallPartitionFormed = smallPartitionFormed;
+        this.smallPartitionFormed = smallPartitionFormed;
     }
 
     public boolean amITheLeader() {
-        if (currentLeader != null) {
-            return serverId.equals(currentLeader.getId());
-        }
-        return false;
+        return getClusterView().isLeader();
+    }
+
+    public long getRegistryEpoch() {
+        return registryEpoch;
     }
 
     /**
-     * Returns the current ServerState.
+     * Whether this server has synchronized to a given version of another server's registry.
      *
-     * @return - Current ServerState containing identities and rooms.
-     * @throws IOException
+     * @param epoch   - Registry epoch of the other server.
+     * @param version - Registry version of the other server.
+     * @return - True if there is nothing to synchronize.
      */
-    public HashMap<String, String> getCurrentServerState() throws IOException {
-        HashMap<String, String> serverState = new HashMap<>();
-
-        // Serialize identity list.
-        serverState.put("IdentityMap", serialize(identityHashMap));
-
-        // Rooms belonging to current server contains the ClientHandler list. Need to remove that before serializing.
-        ArrayList<Room> tempRooms = new ArrayList<>();
-        for (Room room : roomsHashMap.values()) {
-            tempRooms.add(new Room(room.getServerId(), room.getRoomId(), room.getOwner()));
+    public boolean isRegistrySynced(long epoch, long version) {
+        synchronized (registryLock) {
+            return syncedEpoch == epoch && syncedVersion >= version;
         }
-        serverState.put("RoomList", serialize(tempRooms));
-
-        return serverState;
     }
 
     /**
-     * Restores the ServerState using a jsonObject sent by the leader.
+     * Builds a request for the registry changes this server hasn't synchronized to yet.
      *
-     * @param jsonObject - JSONObject received from the leader.
-     * @throws IOException
-     * @throws ClassNotFoundException
+     * @return - Request.
      */
-    public void restoreServerState(JSONObject jsonObject) throws IOException, ClassNotFoundException {
-
-        logger.info("Restoring ServerState using data sent by the leader.");
-        String identityString = (String) jsonObject.get("IdentityMap");
-        String roomString = (String) jsonObject.get("RoomList");
+    public JSONObject createRegistrySyncRequest() {
+        HashMap<String, String> request = new HashMap<>();
+        request.put(ServerConstants.TYPE, ServerConstants.TYPE_REGISTRY_SYNC);
+        request.put(ServerConstants.KIND, ServerConstants.KIND_SYNC_REQUEST);
+        request.put(ServerConstants.SERVER_ID, serverId);
+        synchronized (registryLock) {
+            request.put(ServerConstants.EPOCH, String.valueOf(syncedEpoch));
+            request.put(ServerConstants.VERSION, String.valueOf(syncedVersion));
+        }
+        return new JSONObject(request);
+    }
 
-        ConcurrentHashMap<String, String> tempIdList = (ConcurrentHashMap<String, String>) deserialize(identityString);
-        if (identityHashMap.isEmpty()) {
-            identityHashMap.putAll(tempIdList);
+    /**
+     * Answers a registry sync request: the changes since the requested version if they are all still kept,
+     * otherwise every identity and room.
+     *
+     * @param request - Request with the epoch and version the requester has.
+     * @return - Reply with this server's epoch and version and the encoded changes.
+     */
+    public JSONObject getRegistrySync(JSONObject request) {
+        long epoch = Long.parseLong((String) request.get(ServerConstants.EPOCH));
+        long version = Long.parseLong((String) request.get(ServerConstants.VERSION));
+        List<RegistryChange> changes;
+        boolean full = false;
+        long currentVersion;
+        synchronized (registryLock) {
+            currentVersion = registryVersion;
+            changes = epoch == registryEpoch ? registryChangeLog.since(version) : null;
+            if (changes == null) {
+                full = true;
+                changes = new ArrayList<>(identityHashMap.size() + roomsHashMap.size());
+                for (Map.Entry<String, String> entry : identityHashMap.entrySet()) {
+                    changes.add(new RegistryChange(RegistryChange.PUT_IDENTITY, entry.getKey(), entry.getValue(), null));
+                }
+                for (Room room : roomsHashMap.values()) {
+                    changes.add(new RegistryChange(RegistryChange.PUT_ROOM, room.getRoomId(), room.getServerId(), room.getOwner()));
+                }
+            }
         }
+        logger.debug("Registry sync for server " + request.get(ServerConstants.SERVER_ID) + ": " + changes.size() +
+                (full ? " entries" : " changes since version " + version));
+        HashMap<String, String> reply = new HashMap<>();
+        reply.put(ServerConstants.TYPE, ServerConstants.TYPE_REGISTRY_SYNC);
+        reply.put(ServerConstants.KIND, ServerConstants.KIND_SYNC_REPLY);
+        reply.put(ServerConstants.EPOCH, String.valueOf(registryEpoch));
+        reply.put(ServerConstants.VERSION, String.valueOf(currentVersion));
+        reply.put(ServerConstants.FULL, String.valueOf(full));
+        reply.put(ServerConstants.CHANGES, RegistryChangeLog.encode(changes));
+        return new JSONObject(reply);
+    }
 
-        ArrayList<Room> tempRoomList = (ArrayList<Room>) deserialize(roomString);
-        for (Room room : tempRoomList) {
-            // Prevent MainHall duplicates.
-            if (!roomsHashMap.containsKey(room.getRoomId())) {
-                roomsHashMap.put(room.getRoomId(), room);
+    /**
+     * Applies a registry sync reply from the leader. Identities and rooms of this server are left as they are,
+     * since this server knows them best; a full reply only adds identities and rooms.
+     *
+     * @param reply - Reply to a registry sync request.
+     * @throws IOException - If the changes can't be decoded.
+     */
+    public void applyRegistrySync(JSONObject reply) throws IOException {
+        List<RegistryChange> changes = RegistryChangeLog.decode((String) reply.get(ServerConstants.CHANGES));
+        boolean full = Boolean.parseBoolean((String) reply.get(ServerConstants.FULL));
+        logger.info("Restoring ServerState using " + changes.size() + (full ? " entries" : " changes") + " sent by the leader.");
+        synchronized (registryLock) {
+            for (RegistryChange change : changes) {
+                if (serverId.equals(change.getServerId())) {
+                    continue;
+                }
+                switch (change.getOperation()) {
+                    case RegistryChange.PUT_IDENTITY:
+                        if (!change.getServerId().equals(identityHashMap.get(change.getKey()))) {
+                            putIdentity(change.getKey(), change.getServerId());
+                        }
+                        break;
+                    case RegistryChange.DELETE_IDENTITY:
+                        if (identityHashMap.containsKey(change.getKey())) {
+                            deleteIdentity(change.getKey());
+                        }
+                        break;
+                    case RegistryChange.PUT_ROOM:
+                        // Prevent MainHall duplicates.
+                        if (!roomsHashMap.containsKey(change.getKey())) {
+                            putRoom(new Room(change.getServerId(), change.getKey(), change.getOwner()));
+                        }
+                        break;
+                    case RegistryChange.DELETE_ROOM:
+                        Room room = roomsHashMap.get(change.getKey());
+                        if (room != null && !serverId.equals(room.getServerId())) {
+                            deleteRoom(change.getKey());
+                        }
+                        break;
+                }
             }
+            syncedEpoch = Long.parseLong((String) reply.get(ServerConstants.EPOCH));
+            syncedVersion = Long.parseLong((String) reply.get(ServerConstants.VERSION));
         }
 
         setSmallPartitionFormed(false);
     }
 
+    public int getRegistryDigestBuckets() {
+        return registryDigest.getBucketCount();
+    }
+
+    public int getRegistryDigestDepth() {
+        return registryDigest.getDepth();
+    }
 
     /**
-     * Serialize a given object.
+     * Root of the registry hash tree; equal on two servers when their registries are.
      *
-     * @param obj - Object
-     * @return - Serialized object.
-     * @throws IOException
+     * @return - Root hash.
      */
-    private String serialize(Serializable obj) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(obj);
-        oos.close();
-        return Base64.getEncoder().encodeToString(baos.toByteArray());
+    public long getRegistryDigestRoot() {
+        synchronized (registryLock) {
+            return registryDigest.getRoot();
+        }
     }
 
     /**
-     * Deserialize a given string.
+     * Hashes of the children of some nodes of the registry hash tree.
      *
-     * @param objectString - Serialized string.
-     * @return - Deserialized object.
-     * @throws IOException
-     * @throws ClassNotFoundException
+     * @param level - Level of the nodes, 0 being the root.
+     * @param nodes - Indexes of the nodes within their level.
+     * @return - Hashes of the children, RegistryDigest.FANOUT per node, in the order of the nodes.
      */
-    private static Object deserialize(String objectString) throws IOException, ClassNotFoundException {
-        byte[] data = Base64.getDecoder().decode(objectString);
-        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-        Object obj = ois.readObject();
-        ois.close();
-        return obj;
+    public long[] getRegistryDigestChildren(int level, List<Integer> nodes) {
+        long[] hashes = new long[nodes.size() * RegistryDigest.FANOUT];
+        synchronized (registryLock) {
+            for (int i = 0; i < nodes.size(); i++) {
+                for (int child = 0; child < RegistryDigest.FANOUT; child++) {
+                    hashes[i * RegistryDigest.FANOUT + child] =
+                            registryDigest.getHash(level + 1, nodes.get(i) * RegistryDigest.FANOUT + child);
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Identities and rooms in some buckets of the registry hash tree.
+     *
+     * @param buckets - Bucket indexes.
+     * @return - The entries, as changes that create them.
+     */
+    public List<RegistryChange> getRegistryBuckets(Set<Integer> buckets) {
+        List<RegistryChange> entries = new ArrayList<>();
+        synchronized (registryLock) {
+            for (Map.Entry<String, String> entry : identityHashMap.entrySet()) {
+                if (buckets.contains(registryDigest.bucketOf(true, entry.getKey()))) {
+                    entries.add(new RegistryChange(RegistryChange.PUT_IDENTITY, entry.getKey(), entry.getValue(), null));
+                }
+            }
+            for (Room room : roomsHashMap.values()) {
+                if (buckets.contains(registryDigest.bucketOf(false, room.getRoomId()))) {
+                    entries.add(new RegistryChange(RegistryChange.PUT_ROOM, room.getRoomId(), room.getServerId(), room.getOwner()));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Make some buckets of the registry match the leader's. The leader decides for the identities and rooms of the
+     * other servers; for this server's own, the leader is the one out of date, so they are left as they are and
+     * returned to be informed about again.
+     *
+     * @param buckets - Bucket indexes.
+     * @param leaderEntries - Identities and rooms the leader has in those buckets.
+     * @return - Inform messages for this server's identities and rooms the leader has wrong.
+     */
+    public List<JSONObject> repairRegistryBuckets(Set<Integer> buckets, List<RegistryChange> leaderEntries) {
+        List<JSONObject> reinforms = new ArrayList<>();
+        Map<String, RegistryChange> leaderIdentities = new HashMap<>();
+        Map<String, RegistryChange> leaderRooms = new HashMap<>();
+        for (RegistryChange entry : leaderEntries) {
+            (entry.isIdentity() ? leaderIdentities : leaderRooms).put(entry.getKey(), entry);
+        }
+        synchronized (registryLock) {
+            for (Map.Entry<String, String> entry : new ArrayList<>(identityHashMap.entrySet())) {
+                String identity = entry.getKey();
+                if (!buckets.contains(registryDigest.bucketOf(true, identity))) {
+                    continue;
+                }
+                RegistryChange leaderEntry = leaderIdentities.remove(identity);
+                if (serverId.equals(entry.getValue())) {
+                    if (leaderEntry == null || !serverId.equals(leaderEntry.getServerId())) {
+                        reinforms.add(Messaging.buildIdentityEntry(ServerConstants.KIND_INFORM_NEW_IDENTITY, identity));
+                    }
+                } else if (leaderEntry == null) {
+                    deleteIdentity(identity);
+                } else if (!leaderEntry.getServerId().equals(entry.getValue())) {
+                    putIdentity(identity, leaderEntry.getServerId());
+                }
+            }
+            for (RegistryChange leaderEntry : leaderIdentities.values()) {
+                if (serverId.equals(leaderEntry.getServerId())) {
+                    reinforms.add(Messaging.buildIdentityEntry(ServerConstants.KIND_INFORM_DELETE_IDENTITY, leaderEntry.getKey()));
+                } else {
+                    putIdentity(leaderEntry.getKey(), leaderEntry.getServerId());
+                }
+            }
+
+            for (Room room : new ArrayList<>(roomsHashMap.values())) {
+                String roomId = room.getRoomId();
+                if (!buckets.contains(registryDigest.bucketOf(false, roomId))) {
+                    continue;
+                }
+                RegistryChange leaderEntry = leaderRooms.remove(roomId);
+                if (serverId.equals(room.getServerId())) {
+                    // Main halls aren't informed about; every server adds them on its own.
+                    if (!roomId.equals(getMainHallIdString(serverId)) && (leaderEntry == null ||
+                            !serverId.equals(leaderEntry.getServerId()) || !room.getOwner().equals(leaderEntry.getOwner()))) {
+                        reinforms.add(Messaging.buildRoomEntry(ServerConstants.KIND_INFORM_NEW_ROOM, roomId, room.getOwner()));
+                    }
+                } else if (leaderEntry == null) {
+                    deleteRoom(roomId);
+                } else if (!leaderEntry.getServerId().equals(room.getServerId()) || !leaderEntry.getOwner().equals(room.getOwner())) {
+                    putRoom(new Room(leaderEntry.getServerId(), roomId, leaderEntry.getOwner()));
+                }
+            }
+            for (RegistryChange leaderEntry : leaderRooms.values()) {
+                if (serverId.equals(leaderEntry.getServerId())) {
+                    reinforms.add(Messaging.buildRoomEntry(ServerConstants.KIND_INFORM_DELETE_ROOM, leaderEntry.getKey(), leaderEntry.getOwner()));
+                } else {
+                    putRoom(new Room(leaderEntry.getServerId(), leaderEntry.getKey(), leaderEntry.getOwner()));
+                }
+            }
+        }
+        return reinforms;
     }
 
     /**
@@ -330,14 +711,24 @@ public class ServerState {
     public void purgeServerState() throws IOException, InterruptedException {
         if (smallPartitionFormed) {
             logger.info("Purging ServerState due to formation of a small partition.");
-            currentLeader = null;
+            clusterView.updateAndGet(ClusterView::reset);
             disconnectClients();
             Thread.sleep(4000);
             clientHandlerHashMap.clear();
             removeRoomsExceptMainHall();
-            identityHashMap.clear();
+            synchronized (registryLock) {
+                for (Map.Entry<String, String> entry : identityHashMap.entrySet()) {
+                    registryDigest.removeIdentity(entry.getKey(), entry.getValue());
+                }
+                identityHashMap.clear();
+                identitiesByServer.clear();
+                registryVersion++;
+                registryChangeLog.truncate(registryVersion);
+                syncedEpoch = -1;
+                syncedVersion = 0;
+            }
             heartBeatMap.clear();
-            failedServers.clear();
+            failedHeartBeats.clear();
             // Confirm resetting heartbeat
             myHeartBeat = 0;
         }
@@ -347,9 +738,11 @@ public class ServerState {
      * Remove all the rooms in the rooms map except for main hall.
      */
     private void removeRoomsExceptMainHall() {
-        for (Room room : roomsHashMap.values()) {
-            if (!room.getRoomId().equals(getMainHallIdString(serverId))) {
-                roomsHashMap.remove(room.getRoomId(), room);
+        synchronized (registryLock) {
+            for (Room room : roomsHashMap.values()) {
+                if (!room.getRoomId().equals(getMainHallIdString(serverId))) {
+                    deleteRoom(room.getRoomId());
+                }
             }
         }
     }
@@ -368,7 +761,7 @@ public class ServerState {
 
     public void addMainHallOfDetectedServer(String sId) {
         String mainHallId = getMainHallIdString(sId);
-        roomsHashMap.put(mainHallId, new Room(sId, mainHallId));
+        addRoomToMap(new Room(sId, mainHallId));
     }
 
     private String getMainHallIdString(String sId) {
@@ -376,34 +769,39 @@ public class ServerState {
     }
 
     public Collection<Room> getRoomsByOwner(String owner) {
-        Collection<Room> roomListOwned = new ArrayList<>();
-        for (Room room : roomsHashMap.values()) {
-            if (room.getOwner().equals(owner)) {
-                roomListOwned.add(room);
-            }
-        }
-        return roomListOwned;
+        return getRooms(roomIdsByOwner.get(owner));
     }
 
     public Collection<Room> getRoomsByServer(String serverId) {
-        Collection<Room> serverRoomList = new ArrayList<>();
-        for (Room room : roomsHashMap.values()) {
-            if (room.getServerId().equals(serverId)) {
-                serverRoomList.add(room);
+        return getRooms(roomIdsByServer.get(serverId));
+    }
+
+    private Collection<Room> getRooms(Set<String> roomIds) {
+        Collection<Room> rooms = new ArrayList<>();
+        if (roomIds != null) {
+            for (String roomId : roomIds) {
+                Room room = roomsHashMap.get(roomId);
+                if (room != null) {
+                    rooms.add(room);
+                }
             }
         }
-        return serverRoomList;
+        return rooms;
     }
 
     public void addIdentity(String identity, String serverId) {
-        if (!identityHashMap.containsKey(identity)) {
-            this.identityHashMap.put(identity, serverId);
+        synchronized (registryLock) {
+            if (!identityHashMap.containsKey(identity)) {
+                putIdentity(identity, serverId);
+            }
         }
     }
 
     public void updateIdentity(String identity, String serverId) {
-        if (identityHashMap.containsKey(identity)) {
-            this.identityHashMap.put(identity, serverId);
+        synchronized (registryLock) {
+            if (identityHashMap.containsKey(identity)) {
+                putIdentity(identity, serverId);
+            }
         }
     }
 
@@ -412,17 +810,62 @@ public class ServerState {
     }
 
     public void removeIdentity(String identity) {
-        identityHashMap.remove(identity);
+        synchronized (registryLock) {
+            deleteIdentity(identity);
+        }
     }
 
-    public Collection<String> getIdentityByServer(String sId) {
-        Collection<String> identities = new ArrayList<>();
-        for (Map.Entry<String, String> entry : identityHashMap.entrySet()) {
-            if (sId.equals(entry.getValue())) {
-                identities.add(entry.getKey());
+    /**
+     * Apply a batch of identity and room changes in order, with no other registry change in between.
+     *
+     * @param entries - Inform messages.
+     */
+    public void applyRegistryDelta(Collection<?> entries) {
+        synchronized (registryLock) {
+            for (Object entry : entries) {
+                applyRegistryEntry((JSONObject) entry);
             }
         }
-        return identities;
+    }
+
+    /**
+     * Apply a single identity or room change.
+     *
+     * @param entry - Inform message.
+     */
+    private void applyRegistryEntry(JSONObject entry) {
+        String kind = (String) entry.get(ChatServerConstants.ServerConstants.KIND);
+        String entryServerId = (String) entry.get(ChatServerConstants.ServerConstants.SERVER_ID);
+        switch (kind) {
+            case ChatServerConstants.ServerConstants.KIND_INFORM_NEW_IDENTITY:
+                addIdentity((String) entry.get(ChatServerConstants.ServerConstants.IDENTITY), entryServerId);
+                break;
+            case ChatServerConstants.ServerConstants.KIND_INFORM_DELETE_IDENTITY:
+                removeIdentity((String) entry.get(ChatServerConstants.ServerConstants.IDENTITY));
+                break;
+            case ChatServerConstants.ServerConstants.KIND_INFORM_NEW_ROOM:
+                addRoomToMap(new Room(entryServerId, (String) entry.get(ChatServerConstants.ServerConstants.ROOM_ID),
+                        (String) entry.get(ChatServerConstants.ServerConstants.ROOM_OWNER)));
+                break;
+            case ChatServerConstants.ServerConstants.KIND_INFORM_DELETE_ROOM:
+                Room delRoom = getRoom((String) entry.get(ChatServerConstants.ServerConstants.ROOM_ID));
+                // Remove clients from the room, if the room is hosted in this server.
+                if (delRoom != null) {
+                    if (delRoom.getServerId().equals(serverId)) {
+                        logger.info("Removing clients from room before deletion");
+                        delRoom.removeClientsFromRoom();
+                    }
+                    removeRoom(delRoom);
+                }
+                break;
+            default:
+                logger.debug("Unknown registry change: " + entry);
+        }
+    }
+
+    public Collection<String> getIdentityByServer(String sId) {
+        Set<String> identities = identitiesByServer.get(sId);
+        return identities == null ? new ArrayList<>() : new ArrayList<>(identities);
     }
 
     public ConcurrentHashMap<String, String> getIdentityHashMap() {
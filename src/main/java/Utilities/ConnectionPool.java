@@ -0,0 +1,184 @@
+package Utilities;
+
+import Constants.ServerProperties;
+import Server.Server;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps one multiplexed {@link PeerChannel} to the coordination port of each peer server, keyed by server id.
+ * Channels are opened on first use and replaced when they fail. A channel being opened is held as a future, so
+ * that the connect runs outside the map and other callers for the same server wait for the same connection.
+ */
+public class ConnectionPool {
+
+    private static final Logger logger = LogManager.getLogger(ConnectionPool.class);
+    private static ConnectionPool connectionPool;
+    private final ConcurrentHashMap<String, CompletableFuture<PeerChannel>> channels = new ConcurrentHashMap<>();
+
+    private ConnectionPool() {
+
+    }
+
+    public static ConnectionPool getConnectionPool() {
+        if (connectionPool == null) {
+            synchronized (ConnectionPool.class) {
+                if (connectionPool == null) {
+                    connectionPool = new ConnectionPool();
+                }
+            }
+        }
+        return connectionPool;
+    }
+
+    /**
+     * Send a message without waiting for a reply.
+     *
+     * @param server  - Receiver.
+     * @param message - Message.
+     * @throws IOException
+     */
+    public void send(Server server, JSONObject message) throws IOException {
+        PeerChannel channel = getChannel(server);
+        try {
+            channel.send(message);
+        } catch (IOException e) {
+            // The channel went stale while idle; reconnect once.
+            logger.trace("Reconnecting to server " + server.getId() + " after stale channel: " + e.getMessage());
+            getChannel(server).send(message);
+        }
+    }
+
+    /**
+     * Send a request. Doesn't block unless a channel to the server has to be opened.
+     *
+     * @param server  - Receiver.
+     * @param request - Request.
+     * @return - Future completed with the reply.
+     */
+    public CompletableFuture<JSONObject> request(Server server, JSONObject request) {
+        try {
+            PeerChannel channel = getChannel(server);
+            try {
+                return channel.request(request);
+            } catch (IOException e) {
+                logger.trace("Reconnecting to server " + server.getId() + " after stale channel: " + e.getMessage());
+                return getChannel(server).request(request);
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Send a request, opening the channel on the messaging executor if there is none yet,
+     * so that an unreachable server doesn't hold up the caller.
+     *
+     * @param server  - Receiver.
+     * @param request - Request.
+     * @return - Future completed with the reply, or with a RejectedExecutionException if the messaging executor
+     * is saturated and discards the request.
+     */
+    public CompletableFuture<JSONObject> requestAsync(Server server, JSONObject request) {
+        if (getOpenChannel(server.getId()) != null) {
+            return request(server, request);
+        }
+        CompletableFuture<JSONObject> reply = new CompletableFuture<>();
+        boolean queued = MessagingExecutor.getMessagingExecutor().execute(() -> request(server, request).whenComplete((response, error) -> {
+            if (error != null) {
+                reply.completeExceptionally(error);
+            } else {
+                reply.complete(response);
+            }
+        }));
+        if (!queued) {
+            reply.completeExceptionally(new RejectedExecutionException("Messaging executor saturated, request to server " +
+                    server.getId() + " discarded"));
+        }
+        return reply;
+    }
+
+    private PeerChannel getChannel(Server server) throws IOException {
+        CompletableFuture<PeerChannel> connecting = new CompletableFuture<>();
+        CompletableFuture<PeerChannel> channel = channels.compute(server.getId(),
+                (serverId, current) -> current != null && (!current.isDone() || isOpen(current)) ? current : connecting);
+        if (channel == connecting) {
+            // Connect outside the map, which would otherwise hold every caller of this bin for the connect timeout.
+            try {
+                connecting.complete(new PeerChannel(server));
+            } catch (IOException e) {
+                channels.remove(server.getId(), connecting);
+                connecting.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return channel.join();
+        } catch (CompletionException e) {
+            // Another caller's connect failed.
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return - Channel to a server if it is open, without waiting for one being opened.
+     */
+    private PeerChannel getOpenChannel(String serverId) {
+        CompletableFuture<PeerChannel> channel = channels.get(serverId);
+        return channel != null && isOpen(channel) ? channel.join() : null;
+    }
+
+    private static boolean isOpen(CompletableFuture<PeerChannel> channel) {
+        return channel.isDone() && !channel.isCompletedExceptionally() && channel.join().isOpen();
+    }
+
+    /**
+     * Close the channel to a server, e.g. when it has failed.
+     *
+     * @param serverId - Server id.
+     */
+    public void evict(String serverId) {
+        CompletableFuture<PeerChannel> channel = channels.remove(serverId);
+        if (channel != null) {
+            channel.thenAccept(PeerChannel::close);
+        }
+    }
+
+    /**
+     * Close channels that failed, or sat idle longer than the idle timeout with no request in flight.
+     */
+    public void checkIdleChannels() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, CompletableFuture<PeerChannel>> entry : channels.entrySet()) {
+            if (!entry.getValue().isDone() || entry.getValue().isCompletedExceptionally()) {
+                continue;
+            }
+            PeerChannel channel = entry.getValue().join();
+            boolean idle = now - channel.getLastUsed() > ServerProperties.POOL_IDLE_TIMEOUT && channel.getPendingCount() == 0;
+            if (!channel.isOpen() || idle) {
+                logger.trace("Closing channel to server " + entry.getKey());
+                channels.remove(entry.getKey(), entry.getValue());
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Periodic health check of the channels.
+     */
+    public static class HealthCheck extends TimerTask {
+        @Override
+        public void run() {
+            getConnectionPool().checkIdleChannels();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package Utilities;
+
+import Constants.ServerProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts client and server handlers either on platform threads or, on JDK 21+, on virtual threads.
+ * Virtual threads are looked up reflectively so the same sources still build for Java 11.
+ */
+public class HandlerThreads {
+
+    private static final Logger logger = LogManager.getLogger(HandlerThreads.class);
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    private static final MethodHandle START_VIRTUAL_THREAD = findStartVirtualThread();
+    private static volatile boolean useVirtualThreads = false;
+    // Platform threads for short tasks, kept a while for the next one instead of started for every task.
+    private static final ExecutorService taskPool = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "Handler-Task");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private HandlerThreads() {
+
+    }
+
+    /**
+     * Select the thread kind according to the server properties.
+     */
+    public static void init() {
+        if (VIRTUAL.equals(ServerProperties.HANDLER_THREADS)) {
+            if (START_VIRTUAL_THREAD == null) {
+                logger.warn("Virtual threads requested but not supported by this JVM (" +
+                        System.getProperty("java.version") + "). Falling back to platform threads.");
+            } else {
+                useVirtualThreads = true;
+            }
+        }
+        logger.info("Running handlers on " + (useVirtualThreads ? VIRTUAL : PLATFORM) + " threads.");
+    }
+
+    public static boolean isUsingVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    /**
+     * Start a handler on a new thread.
+     *
+     * @param handler - Handler to run.
+     * @param name    - Thread name.
+     * @return - Started thread.
+     */
+    public static Thread start(Runnable handler, String name) {
+        if (useVirtualThreads) {
+            try {
+                Thread thread = (Thread) START_VIRTUAL_THREAD.invoke(handler);
+                thread.setName(name);
+                return thread;
+            } catch (Throwable e) {
+                logger.error("Unable to start virtual thread. " + e);
+            }
+        }
+        Thread thread = new Thread(handler, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Run a task that ends once it has nothing left to do, e.g. writing the frames queued for a client: on a new
+     * virtual thread, or on a pooled platform thread.
+     *
+     * @param task - Task to run.
+     * @param name - Thread name while it runs.
+     */
+    public static void execute(Runnable task, String name) {
+        if (useVirtualThreads) {
+            start(task, name);
+            return;
+        }
+        taskPool.execute(() -> {
+            Thread thread = Thread.currentThread();
+            thread.setName(name);
+            try {
+                task.run();
+            } finally {
+                thread.setName("Handler-Task");
+            }
+        });
+    }
+
+    /**
+     * Resolve Thread.startVirtualThread(Runnable), which only exists on JDK 21+.
+     *
+     * @return - Method handle or null if unavailable.
+     */
+    private static MethodHandle findStartVirtualThread() {
+        try {
+            return MethodHandles.publicLookup().findStatic(
+                    Thread.class, "startVirtualThread", MethodType.methodType(Thread.class, Runnable.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package Utilities;
+
+import ClientHandler.ClientRequest;
+import Constants.ChatServerConstants.ClientConstants;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Purpose-built json codec for the client and server protocols.
+ * Decodes straight from the received bytes without building intermediate Strings for the whole line,
+ * and encodes into a reusable per-thread buffer instead of going through toJSONString().
+ */
+public class JsonCodec {
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    // Per-thread buffers grown past this by a large message are released afterwards.
+    private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // Keys of client requests, matched against the raw bytes so no key String is allocated.
+    private static final String[] CLIENT_KEYS = {
+            ClientConstants.TYPE,
+            ClientConstants.IDENTITY,
+            ClientConstants.ROOM_ID,
+            ClientConstants.FORMER_ROOM,
+            ClientConstants.CONTENT
+    };
+    private static final byte[][] CLIENT_KEY_BYTES = new byte[CLIENT_KEYS.length][];
+
+    static {
+        for (int i = 0; i < CLIENT_KEYS.length; i++) {
+            CLIENT_KEY_BYTES[i] = CLIENT_KEYS[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final ThreadLocal<Decoder> decoders = ThreadLocal.withInitial(Decoder::new);
+    private static final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+
+    private JsonCodec() {
+
+    }
+
+    /**
+     * Decode a client request.
+     *
+     * @param buffer - Buffer holding the frame.
+     * @param offset - Start of the frame.
+     * @param length - Length of the frame, without the line terminator.
+     * @return - Typed request.
+     * @throws ParseException
+     */
+    public static ClientRequest decodeClientRequest(byte[] buffer, int offset, int length) throws ParseException {
+        return decoders.get().reset(buffer, offset, length).readClientRequest();
+    }
+
+    /**
+     * Decode a json object.
+     *
+     * @param buffer - Buffer holding the frame.
+     * @param offset - Start of the frame.
+     * @param length - Length of the frame, without the line terminator.
+     * @return - Decoded object.
+     * @throws ParseException
+     */
+    public static JSONObject decodeObject(byte[] buffer, int offset, int length) throws ParseException {
+        Decoder decoder = decoders.get().reset(buffer, offset, length);
+        decoder.skipWhitespace();
+        JSONObject object = decoder.readObject();
+        decoder.expectEnd();
+        return object;
+    }
+
+    /**
+     * Encode a map of strings, string collections, nested maps, numbers and booleans into a newline
+     * terminated frame.
+     *
+     * @param map - Message.
+     * @return - UTF-8 encoded frame.
+     */
+    public static byte[] encode(Map<?, ?> map) {
+        Encoder encoder = encoders.get();
+        encoder.reset();
+        encoder.writeObject(map);
+        encoder.writeByte('\n');
+        return encoder.toByteArray();
+    }
+
+    private static class Decoder {
+        private byte[] buffer;
+        private int position;
+        private int end;
+        private int start;
+        // Holds unescaped string bytes when a string contains escape sequences.
+        private byte[] scratch = new byte[INITIAL_BUFFER_SIZE];
+
+        Decoder reset(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.start = offset;
+            this.end = offset + length;
+            return this;
+        }
+
+        ClientRequest readClientRequest() throws ParseException {
+            ClientRequest request = new ClientRequest();
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                expectEnd();
+                return request;
+            }
+            while (true) {
+                skipWhitespace();
+                int key = readClientKey();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if (key >= 0 && peek() == '"') {
+                    request.set(CLIENT_KEYS[key], readString());
+                } else if (key >= 0) {
+                    Object value = readValue();
+                    request.set(CLIENT_KEYS[key], value == null ? null : String.valueOf(value));
+                } else {
+                    readValue();
+                }
+                skipWhitespace();
+                byte next = next();
+                if (next == '}') {
+                    break;
+                } else if (next != ',') {
+                    throw unexpected(next);
+                }
+            }
+            expectEnd();
+            return request;
+        }
+
+        /**
+         * Read an object key and match it against the client request keys.
+         *
+         * @return - Index into CLIENT_KEYS or -1 for unknown keys.
+         */
+        private int readClientKey() throws ParseException {
+            expect('"');
+            int keyStart = position;
+            while (position < end && buffer[position] != '"' && buffer[position] != '\\') {
+                position++;
+            }
+            if (position < end && buffer[position] == '"') {
+                int keyLength = position - keyStart;
+                position++;
+                for (int i = 0; i < CLIENT_KEY_BYTES.length; i++) {
+                    byte[] candidate = CLIENT_KEY_BYTES[i];
+                    if (candidate.length == keyLength &&
+                            Arrays.equals(candidate, 0, keyLength, buffer, keyStart, position - 1)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+            // Escaped key; rare enough to take the slow path.
+            position = keyStart - 1;
+            String key = readString();
+            for (int i = 0; i < CLIENT_KEYS.length; i++) {
+                if (CLIENT_KEYS[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Object readValue() throws ParseException {
+            byte next = peek();
+            switch (next) {
+                case '"':
+                    return readString();
+                case '{':
+                    return readObject();
+                case '[':
+                    return readArray();
+                case 't':
+                    expectLiteral("true");
+                    return Boolean.TRUE;
+                case 'f':
+                    expectLiteral("false");
+                    return Boolean.FALSE;
+                case 'n':
+                    expectLiteral("null");
+                    return null;
+                default:
+                    if (next == '-' || (next >= '0' && next <= '9')) {
+                        return readNumber();
+                    }
+                    throw unexpected(next);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        JSONObject readObject() throws ParseException {
+            JSONObject object = new JSONObject();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw unexpected(peek());
+                }
+                String key = readString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                object.put(key, readValue());
+                skipWhitespace();
+                byte next = next();
+                if (next == '}') {
+                    return object;
+                } else if (next != ',') {
+                    throw unexpected(next);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        JSONArray readArray() throws ParseException {
+            JSONArray array = new JSONArray();
+            expect('[');
+            skipWhitespace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                skipWhitespace();
+                array.add(readValue());
+                skipWhitespace();
+                byte next = next();
+                if (next == ']') {
+                    return array;
+                } else if (next != ',') {
+                    throw unexpected(next);
+                }
+            }
+        }
+
+        String readString() throws ParseException {
+            expect('"');
+            int stringStart = position;
+            // Fast path: no escape sequences, decode the bytes in place.
+            while (position < end) {
+                byte b = buffer[position];
+                if (b == '"') {
+                    position++;
+                    return new String(buffer, stringStart, position - 1 - stringStart, StandardCharsets.UTF_8);
+                }
+                if (b == '\\') {
+                    break;
+                }
+                position++;
+            }
+            int length = position - stringStart;
+            ensureScratch(length);
+            System.arraycopy(buffer, stringStart, scratch, 0, length);
+            while (position < end) {
+                byte b = buffer[position++];
+                if (b == '"') {
+                    return new String(scratch, 0, length, StandardCharsets.UTF_8);
+                }
+                ensureScratch(length + 4);
+                if (b != '\\') {
+                    scratch[length++] = b;
+                    continue;
+                }
+                byte escaped = next();
+                switch (escaped) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        scratch[length++] = escaped;
+                        break;
+                    case 'b':
+                        scratch[length++] = '\b';
+                        break;
+                    case 'f':
+                        scratch[length++] = '\f';
+                        break;
+                    case 'n':
+                        scratch[length++] = '\n';
+                        break;
+                    case 'r':
+                        scratch[length++] = '\r';
+                        break;
+                    case 't':
+                        scratch[length++] = '\t';
+                        break;
+                    case 'u':
+                        int codePoint = readHex4();
+                        if (Character.isHighSurrogate((char) codePoint) && position + 6 <= end &&
+                                buffer[position] == '\\' && buffer[position + 1] == 'u') {
+                            position += 2;
+                            int low = readHex4();
+                            if (Character.isLowSurrogate((char) low)) {
+                                codePoint = Character.toCodePoint((char) codePoint, (char) low);
+                            } else {
+                                length = writeUtf8(codePoint, length);
+                                codePoint = low;
+                            }
+                        }
+                        length = writeUtf8(codePoint, length);
+                        break;
+                    default:
+                        throw unexpected(escaped);
+                }
+            }
+            throw new ParseException(position - start, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+        }
+
+        private int readHex4() throws ParseException {
+            if (position + 4 > end) {
+                throw new ParseException(position - start, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+            }
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(buffer[position++], 16);
+                if (digit < 0) {
+                    throw unexpected(buffer[position - 1]);
+                }
+                value = (value << 4) | digit;
+            }
+            return value;
+        }
+
+        private int writeUtf8(int codePoint, int length) {
+            ensureScratch(length + 4);
+            if (codePoint < 0x80) {
+                scratch[length++] = (byte) codePoint;
+            } else if (codePoint < 0x800) {
+                scratch[length++] = (byte) (0xC0 | (codePoint >> 6));
+                scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (codePoint < 0x10000) {
+                scratch[length++] = (byte) (0xE0 | (codePoint >> 12));
+                scratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                scratch[length++] = (byte) (0xF0 | (codePoint >> 18));
+                scratch[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                scratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            return length;
+        }
+
+        private void ensureScratch(int capacity) {
+            if (scratch.length < capacity) {
+                scratch = Arrays.copyOf(scratch, Math.max(capacity, scratch.length * 2));
+            }
+        }
+
+        private Number readNumber() throws ParseException {
+            int numberStart = position;
+            boolean decimal = false;
+            while (position < end) {
+                byte b = buffer[position];
+                if ((b >= '0' && b <= '9') || b == '-' || b == '+') {
+                    position++;
+                } else if (b == '.' || b == 'e' || b == 'E') {
+                    decimal = true;
+                    position++;
+                } else {
+                    break;
+                }
+            }
+            String number = new String(buffer, numberStart, position - numberStart, StandardCharsets.US_ASCII);
+            try {
+                return decimal ? (Number) Double.valueOf(number) : (Number) Long.valueOf(number);
+            } catch (NumberFormatException e) {
+                throw new ParseException(numberStart - start, ParseException.ERROR_UNEXPECTED_TOKEN, number);
+            }
+        }
+
+        private void expectLiteral(String literal) throws ParseException {
+            for (int i = 0; i < literal.length(); i++) {
+                byte b = next();
+                if (b != literal.charAt(i)) {
+                    throw unexpected(b);
+                }
+            }
+        }
+
+        void skipWhitespace() {
+            while (position < end) {
+                byte b = buffer[position];
+                if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                    return;
+                }
+                position++;
+            }
+        }
+
+        void expectEnd() throws ParseException {
+            skipWhitespace();
+            if (position != end) {
+                throw unexpected(buffer[position]);
+            }
+        }
+
+        private void expect(char expected) throws ParseException {
+            byte b = next();
+            if (b != expected) {
+                throw unexpected(b);
+            }
+        }
+
+        private byte peek() throws ParseException {
+            if (position >= end) {
+                throw new ParseException(position - start, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+            }
+            return buffer[position];
+        }
+
+        private byte next() throws ParseException {
+            byte b = peek();
+            position++;
+            return b;
+        }
+
+        private ParseException unexpected(byte b) {
+            return new ParseException(position - start, ParseException.ERROR_UNEXPECTED_CHAR, (char) b);
+        }
+    }
+
+    private static class Encoder {
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int length;
+
+        void reset() {
+            length = 0;
+            if (buffer.length > RETAINED_BUFFER_SIZE) {
+                buffer = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        void writeObject(Map<?, ?> map) {
+            writeByte('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (!first) {
+                    writeByte(',');
+                }
+                first = false;
+                writeString(String.valueOf(entry.getKey()));
+                writeByte(':');
+                writeValue(entry.getValue());
+            }
+            writeByte('}');
+        }
+
+        void writeValue(Object value) {
+            if (value == null) {
+                writeAscii("null");
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof Map) {
+                writeObject((Map<?, ?>) value);
+            } else if (value instanceof Collection) {
+                writeByte('[');
+                boolean first = true;
+                for (Object element : (Collection<?>) value) {
+                    if (!first) {
+                        writeByte(',');
+                    }
+                    first = false;
+                    writeValue(element);
+                }
+                writeByte(']');
+            } else if (value instanceof Number || value instanceof Boolean) {
+                writeAscii(value.toString());
+            } else {
+                writeString(value.toString());
+            }
+        }
+
+        void writeString(String value) {
+            // Worst case: every char is a control char, written as a six byte unicode escape.
+            ensureCapacity(value.length() * 6 + 2);
+            buffer[length++] = '"';
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    if (c == '"' || c == '\\') {
+                        buffer[length++] = '\\';
+                        buffer[length++] = (byte) c;
+                    } else if (c < 0x20) {
+                        writeControl(c);
+                    } else {
+                        buffer[length++] = (byte) c;
+                    }
+                } else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xC0 | (c >> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() &&
+                        Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogate; same replacement String.getBytes would use.
+                    buffer[length++] = '?';
+                } else {
+                    buffer[length++] = (byte) (0xE0 | (c >> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            buffer[length++] = '"';
+        }
+
+        private void writeControl(char c) {
+            buffer[length++] = '\\';
+            switch (c) {
+                case '\b':
+                    buffer[length++] = 'b';
+                    break;
+                case '\f':
+                    buffer[length++] = 'f';
+                    break;
+                case '\n':
+                    buffer[length++] = 'n';
+                    break;
+                case '\r':
+                    buffer[length++] = 'r';
+                    break;
+                case '\t':
+                    buffer[length++] = 't';
+                    break;
+                default:
+                    buffer[length++] = 'u';
+                    buffer[length++] = '0';
+                    buffer[length++] = '0';
+                    buffer[length++] = HEX[c >> 4];
+                    buffer[length++] = HEX[c & 0xF];
+            }
+        }
+
+        private void writeAscii(String value) {
+            ensureCapacity(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                buffer[length++] = (byte) value.charAt(i);
+            }
+        }
+
+        void writeByte(char b) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) b;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(length + extra, buffer.length * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package Utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into newline terminated frames of bounded length.
+ * Frames are exposed as a slice of the internal buffer, valid until the next call to {@link #next()}.
+ */
+public class LineFramer {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final InputStream inputStream;
+    private final int maxFrameLength;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    // Unconsumed bytes are buffer[start, end).
+    private int start = 0;
+    private int end = 0;
+    // Bytes in buffer[start, scanned) are known not to contain a line terminator.
+    private int scanned = 0;
+    private int frameOffset;
+    private int frameLength;
+
+    /**
+     * Framer reading from a blocking stream.
+     *
+     * @param inputStream    - Stream to read from.
+     * @param maxFrameLength - Longest accepted frame in bytes.
+     */
+    public LineFramer(InputStream inputStream, int maxFrameLength) {
+        this.inputStream = inputStream;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Framer fed through {@link #append(ByteBuffer)}.
+     *
+     * @param maxFrameLength - Longest accepted frame in bytes.
+     */
+    public LineFramer(int maxFrameLength) {
+        this(null, maxFrameLength);
+    }
+
+    /**
+     * Append received bytes.
+     *
+     * @param source - Bytes to append; fully consumed.
+     */
+    public void append(ByteBuffer source) {
+        ensureSpace(source.remaining());
+        int length = source.remaining();
+        source.get(buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * Advance to the next complete frame. With a stream, blocks until a frame or end of stream arrives.
+     *
+     * @return - False at end of stream, or when no complete frame is buffered.
+     * @throws IOException - If a frame exceeds the maximum length.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    frameOffset = start;
+                    frameLength = i - start;
+                    if (frameLength > 0 && buffer[i - 1] == '\r') {
+                        frameLength--;
+                    }
+                    start = i + 1;
+                    scanned = start;
+                    checkLength(frameLength);
+                    return true;
+                }
+            }
+            scanned = end;
+            checkLength(end - start);
+            if (inputStream == null) {
+                return false;
+            }
+            ensureSpace(INITIAL_BUFFER_SIZE);
+            int read = inputStream.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                return false;
+            }
+            end += read;
+        }
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int getFrameOffset() {
+        return frameOffset;
+    }
+
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    private void checkLength(int length) throws IOException {
+        if (length > maxFrameLength) {
+            throw new IOException("Frame exceeds maximum length of " + maxFrameLength + " bytes.");
+        }
+    }
+
+    /**
+     * Make room for at least the given number of bytes after end, compacting before growing.
+     *
+     * @param required - Required free space.
+     */
+    private void ensureSpace(int required) {
+        if (buffer.length - end >= required) {
+            return;
+        }
+        int pending = end - start;
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+            scanned -= start;
+            start = 0;
+            end = pending;
+        }
+        if (buffer.length - end < required) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, end + required));
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package Utilities;
 
 import ClientHandler.ClientHandler;
+import ClientHandler.ClientRequest;
+import ClientHandler.EncodedFrame;
 import Consensus.Leader;
 import Constants.ChatServerConstants;
 import Constants.ServerProperties;
 import Exception.ServerException;
+import Gossiping.RegistryDeltaPublisher;
+import Replication.RegistryLog;
 import Server.Server;
 import Server.ServerState;
 import org.apache.logging.log4j.LogManager;
@@ -13,26 +17,25 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.ConnectException;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 public class Messaging {
 
     private static final Logger logger = LogManager.getLogger(Messaging.class);
+    private static final String JSON_SIMPLE_CODEC = "json-simple";
 
     /**
      * JSON parse a given string.
@@ -48,20 +51,57 @@ public class Messaging {
     }
 
     /**
-     * Send a given json response via a given socket.
+     * Whether the json-simple codec is used instead of the streaming JsonCodec.
      *
-     * @param obj    - Response as a json object
-     * @param socket - Socket of the receiver.
+     * @return - Boolean value.
      */
-    public static void respond(JSONObject obj, Socket socket) {
-        try {
-            logger.debug("Sending: " + obj.toJSONString() + " to :" + socket.getLocalPort());
-            DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
-            dataOutputStream.write((obj.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8));
-            dataOutputStream.flush();
-        } catch (IOException exception) {
-            logger.debug("Socket closed for: " + socket.getInetAddress());
+    private static boolean useJsonSimple() {
+        return JSON_SIMPLE_CODEC.equals(ServerProperties.PROTOCOL_CODEC);
+    }
+
+    /**
+     * Encode a given json object into a newline terminated frame.
+     *
+     * @param obj - Json object.
+     * @return - UTF-8 encoded frame.
+     */
+    public static byte[] frame(JSONObject obj) {
+        if (useJsonSimple()) {
+            return (obj.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        return JsonCodec.encode(obj);
+    }
+
+    /**
+     * Decode a client request frame.
+     *
+     * @param buffer - Buffer holding the frame.
+     * @param offset - Start of the frame.
+     * @param length - Length of the frame.
+     * @return - Typed request.
+     * @throws ParseException
+     */
+    public static ClientRequest decodeClientRequest(byte[] buffer, int offset, int length) throws ParseException {
+        if (useJsonSimple()) {
+            return ClientRequest.fromJSON(jsonParseRequest(new String(buffer, offset, length, StandardCharsets.UTF_8)));
+        }
+        return JsonCodec.decodeClientRequest(buffer, offset, length);
+    }
+
+    /**
+     * Decode a server message frame.
+     *
+     * @param buffer - Buffer holding the frame.
+     * @param offset - Start of the frame.
+     * @param length - Length of the frame.
+     * @return - JSONObject
+     * @throws ParseException
+     */
+    public static JSONObject decodeServerMessage(byte[] buffer, int offset, int length) throws ParseException {
+        if (useJsonSimple()) {
+            return jsonParseRequest(new String(buffer, offset, length, StandardCharsets.UTF_8));
         }
+        return JsonCodec.decodeObject(buffer, offset, length);
     }
 
     /**
@@ -74,30 +114,26 @@ public class Messaging {
      */
     public static ConcurrentHashMap<String, JSONObject> askServers(JSONObject request, Collection<Server> servers) {
         ConcurrentHashMap<String, JSONObject> serverResponses = new ConcurrentHashMap<>();
-        ExecutorService executorService = Executors.newFixedThreadPool(ServerProperties.THREAD_COUNT);
+        List<CompletableFuture<Void>> pendingResponses = new ArrayList<>();
         for (Server server : servers) {
-            executorService.submit(() -> {
-                try {
-                    Socket socket = new Socket(server.getAddress(), server.getPort());
-                    String line = sendRequest(request, socket);
-                    serverResponses.put(server.getId(), jsonParseRequest(line));
-                    socket.close();
-                } catch (Exception e) {
-                    logger.debug("Connection failed for server: " + server.getAddress() + ":" + server.getPort() + " msg: " + request.toJSONString());
-                }
-            });
+            pendingResponses.add(ConnectionPool.getConnectionPool().requestAsync(server, request)
+                    .thenAccept(response -> serverResponses.put(server.getId(), response))
+                    .exceptionally(e -> {
+                        logger.debug("Connection failed for server: " + server.getAddress() + ":" + server.getPort() + " msg: " + request.toJSONString());
+                        return null;
+                    }));
         }
-        executorService.shutdown();
         try {
-            //wait till completion or 5s or interruption of this thread
-            if (!executorService.awaitTermination(ServerProperties.CONN_TIMEOUT, TimeUnit.MILLISECONDS)) {
-                executorService.shutdownNow();
-            }
+            //wait till completion or 5s or interruption of this thread; late responses are ignored
+            CompletableFuture.allOf(pendingResponses.toArray(new CompletableFuture<?>[0]))
+                    .get(ServerProperties.CONN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException ex) {
+            logger.debug("Not every server responded to: " + request.toJSONString());
         } catch (InterruptedException ex) {
-            executorService.shutdownNow();
             Thread.currentThread().interrupt();
         }
-        return serverResponses;
+        // Copy so that responses arriving after the timeout don't show up in the result.
+        return new ConcurrentHashMap<>(serverResponses);
     }
 
     /**
@@ -107,67 +143,65 @@ public class Messaging {
      * @param servers Collection of servers to send the message
      */
     public static void sendAndForget(JSONObject request, Collection<Server> servers) {
-        ExecutorService executorService = Executors.newFixedThreadPool(ServerProperties.THREAD_COUNT);
         for (Server server : servers) {
-            executorService.submit(() -> {
+            MessagingExecutor.getMessagingExecutor().execute(() -> {
                 try {
-                    Socket socket = new Socket(server.getAddress(), server.getPort());
-                    sendOnly(request, socket);
+                    ConnectionPool.getConnectionPool().send(server, request);
                 } catch (Exception e) {
                     logger.trace("Connection failed for server: " + server.getAddress() + ":" + server.getPort() + " msg: " + request.toJSONString());
                 }
             });
         }
-        executorService.shutdown();
     }
 
-    public static JSONObject contactLeader(JSONObject request, Leader leader) throws ServerException, IOException, ParseException {
-
-        try {
-            logger.debug("Sending request: " + request.toJSONString());
-            Socket socket = new Socket(leader.getAddress(), leader.getPort());
-            socket.setSoTimeout((int) ServerProperties.CONN_TIMEOUT);
-            String line = sendRequest(request, socket);
-            socket.close();
-            if (line != null) {
-                return jsonParseRequest(line);
-            } else {
-                logger.debug("No response received from the leader.");
-                throw new ServerException(
+    /**
+     * Send a request to the leader.
+     *
+     * @param request - Request.
+     * @param leader  - Leader.
+     * @return - Future completed with the reply, or with a ServerException if the connection to the leader
+     * fails or times out. An error reply of the leader, and a request the saturated messaging executor discards,
+     * fail as is, as no sign of a leader failure.
+     */
+    public static CompletableFuture<JSONObject> contactLeaderAsync(JSONObject request, Leader leader) {
+        logger.debug("Sending request: " + request.toJSONString());
+        return ConnectionPool.getConnectionPool().requestAsync(leader, request).handle((response, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof RejectedExecutionException || cause instanceof ServerException) {
+                throw new CompletionException(cause);
+            }
+            if (error != null) {
+                logger.info("Connection to leader failed: " + error.getMessage());
+                throw new CompletionException(new ServerException(
                         ChatServerConstants.ServerExceptionConstants.LEADER_FAILED_MSG,
-                        ChatServerConstants.ServerExceptionConstants.LEADER_FAILED_CODE);
+                        ChatServerConstants.ServerExceptionConstants.LEADER_FAILED_CODE));
             }
-        } catch (SocketTimeoutException | ConnectException e) {
-            // Throw an error if connection to leader fails.
-            logger.info("Connection to leader timed out.");
-            throw new ServerException(
-                    ChatServerConstants.ServerExceptionConstants.LEADER_FAILED_MSG,
-                    ChatServerConstants.ServerExceptionConstants.LEADER_FAILED_CODE);
-        }
+            return response;
+        });
     }
 
-    private static String sendRequest(JSONObject request, Socket socket) throws IOException {
-        try {
-            logger.debug("Sending request: " + request.toJSONString());
-            DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
-            dataOutputStream.write((request.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8));
-            dataOutputStream.flush();
-
-            InputStream inputFromClient = socket.getInputStream();
-            Scanner serverInputScanner = new Scanner(inputFromClient, String.valueOf(StandardCharsets.UTF_8));
-            String line = serverInputScanner.nextLine();
-            logger.debug("Received -: " + line);
-            return line;
-        } catch (NoSuchElementException | IllegalStateException e) {
-            return null;
+    /**
+     * Ask a server, normally the leader, for the registry changes this server hasn't synchronized to yet,
+     * and apply them once they arrive.
+     *
+     * @param server - Server to synchronize to.
+     */
+    public static void syncRegistry(Server server) {
+        if (server == null) {
+            return;
         }
-    }
-
-    private static void sendOnly(JSONObject request, Socket socket) throws IOException {
-        DataOutputStream dataOutputStream = new DataOutputStream(socket.getOutputStream());
-        dataOutputStream.write((request.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8));
-        dataOutputStream.flush();
-        socket.close();
+        JSONObject request = ServerState.getServerState().createRegistrySyncRequest();
+        ConnectionPool.getConnectionPool().requestAsync(server, request).whenComplete((reply, error) -> {
+            if (error != null) {
+                logger.debug("Registry sync with server " + server.getId() + " failed: " + error.getMessage());
+                return;
+            }
+            try {
+                ServerState.getServerState().applyRegistrySync(reply);
+            } catch (IOException e) {
+                logger.debug("Invalid registry sync from server " + server.getId() + ": " + e.getMessage());
+            }
+        });
     }
 
     /**
@@ -177,11 +211,11 @@ public class Messaging {
      * @param roomId  New joining room id.
      */
     public static void broadcastClientChangeRoom(Collection<ClientHandler> clients, String clientIdentity, String prevRoom, String roomId) {
+        EncodedFrame roomChangeFrame = EncodedFrame.of(Util.buildRoomChangeJSON(clientIdentity, prevRoom, roomId));
+        logger.debug("Informing about room change of " + clientIdentity + ": " + roomChangeFrame);
         for (ClientHandler client : clients) {
             if (client.getCurrentRoom().equals(roomId)) {
-                logger.debug("Informing about room change of " + clientIdentity + " to " + client.getCurrentIdentity());
-                JSONObject roomChangeRequest = Util.buildRoomChangeJSON(clientIdentity, prevRoom, roomId);
-                respond(roomChangeRequest, client.getClientSocket());
+                client.send(roomChangeFrame);
             }
         }
     }
@@ -196,6 +230,10 @@ public class Messaging {
         request.put(ChatServerConstants.ServerConstants.TYPE, ChatServerConstants.ServerConstants.IDENTITY_SERVER_CHANGE);
         request.put(ChatServerConstants.ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
         request.put(ChatServerConstants.ServerConstants.IDENTITY, identity);
+        if (RegistryLog.isEnabled()) {
+            RegistryLog.getRegistryLog().append(new JSONObject(request));
+            return;
+        }
         Collection<Server> servers = ServerState.getServerState().getServers();
         sendAndForget(new JSONObject(request), servers);
     }
@@ -207,30 +245,67 @@ public class Messaging {
      * @param identity - Identity.
      */
     public static void informServersIdentity(String kind, String identity) {
+        informServersRegistry(List.of(buildIdentityEntry(kind, identity)));
+    }
+
+    /**
+     * Inform servers about room creation/ deletion.
+     *
+     * @param kind   - Kind.
+     * @param roomId - Room Id.
+     * @param owner
+     */
+    public static void informServersRoom(String kind, String roomId, String owner) {
+        informServersRegistry(List.of(buildRoomEntry(kind, roomId, owner)));
+    }
+
+    /**
+     * Inform servers about registry changes already applied on this server: appended to the replicated
+     * registry log in the 'raft' replication mode, sent with the next registry delta otherwise.
+     *
+     * @param entries - Changes, as built by buildIdentityEntry and buildRoomEntry.
+     */
+    public static void informServersRegistry(Collection<JSONObject> entries) {
+        if (RegistryLog.isEnabled()) {
+            for (JSONObject entry : entries) {
+                RegistryLog.getRegistryLog().append(entry);
+            }
+        } else {
+            RegistryDeltaPublisher.getRegistryDeltaPublisher().publishAll(entries);
+        }
+    }
+
+    /**
+     * Build an identity creation/ deletion message of this server.
+     *
+     * @param kind     - Kind.
+     * @param identity - Identity.
+     * @return - JSONObject
+     */
+    public static JSONObject buildIdentityEntry(String kind, String identity) {
         HashMap<String, String> request = new HashMap<>();
         request.put(ChatServerConstants.ServerConstants.TYPE, ChatServerConstants.ServerConstants.TYPE_GOSSIP);
         request.put(ChatServerConstants.ServerConstants.KIND, kind);
         request.put(ChatServerConstants.ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
         request.put(ChatServerConstants.ServerConstants.IDENTITY, identity);
-        Collection<Server> servers = ServerState.getServerState().getServers();
-        sendAndForget(new JSONObject(request), servers);
+        return new JSONObject(request);
     }
 
     /**
-     * Inform servers about room creation/ deletion.
+     * Build a room creation/ deletion message of this server.
      *
      * @param kind   - Kind.
      * @param roomId - Room Id.
-     * @param owner
+     * @param owner  - Room owner.
+     * @return - JSONObject
      */
-    public static void informServersRoom(String kind, String roomId, String owner) {
+    public static JSONObject buildRoomEntry(String kind, String roomId, String owner) {
         HashMap<String, String> request = new HashMap<>();
         request.put(ChatServerConstants.ServerConstants.TYPE, ChatServerConstants.ServerConstants.TYPE_GOSSIP);
         request.put(ChatServerConstants.ServerConstants.KIND, kind);
         request.put(ChatServerConstants.ServerConstants.SERVER_ID, ServerState.getServerState().getServerId());
         request.put(ChatServerConstants.ServerConstants.ROOM_ID, roomId);
         request.put(ChatServerConstants.ServerConstants.ROOM_OWNER, owner);
-        Collection<Server> servers = ServerState.getServerState().getServers();
-        sendAndForget(new JSONObject(request), servers);
+        return new JSONObject(request);
     }
 }
@@ -0,0 +1,97 @@
+package Utilities;
+
+import Constants.ServerProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single long-lived, bounded executor for outbound inter-server messaging.
+ * When both the threads and the queue are full, the configured rejection policy applies:
+ * 'caller-runs' sends the message on the calling thread, 'discard' drops it and tells the caller.
+ */
+public class MessagingExecutor {
+
+    private static final Logger logger = LogManager.getLogger(MessagingExecutor.class);
+    private static final String DISCARD_POLICY = "discard";
+    private static MessagingExecutor messagingExecutor;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejectedTasks = new AtomicLong();
+
+    private MessagingExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        // Aborting is how execute() learns of a discarded task.
+        RejectedExecutionHandler rejectionPolicy = DISCARD_POLICY.equals(ServerProperties.MESSAGING_REJECTION_POLICY)
+                ? new ThreadPoolExecutor.AbortPolicy()
+                : new ThreadPoolExecutor.CallerRunsPolicy();
+        this.executor = new ThreadPoolExecutor(
+                ServerProperties.THREAD_COUNT, ServerProperties.THREAD_COUNT,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ServerProperties.MESSAGING_QUEUE_CAPACITY),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "Messaging-Executor-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, pool) -> {
+                    rejectedTasks.incrementAndGet();
+                    logger.trace("Messaging executor saturated with " + pool.getQueue().size() + " queued tasks.");
+                    rejectionPolicy.rejectedExecution(runnable, pool);
+                });
+    }
+
+    public static MessagingExecutor getMessagingExecutor() {
+        if (messagingExecutor == null) {
+            synchronized (MessagingExecutor.class) {
+                if (messagingExecutor == null) {
+                    messagingExecutor = new MessagingExecutor();
+                }
+            }
+        }
+        return messagingExecutor;
+    }
+
+    /**
+     * Run a messaging task.
+     *
+     * @param task - Task.
+     * @return - False if the task was discarded, so that the caller can fail what waits for it.
+     */
+    public boolean execute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    public long getRejectedCount() {
+        return rejectedTasks.get();
+    }
+
+    @Override
+    public String toString() {
+        return "active: " + getActiveCount() + " queued: " + getQueuedCount() +
+                " completed: " + getCompletedCount() + " rejected: " + getRejectedCount();
+    }
+}
@@ -0,0 +1,168 @@
+package Utilities;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+import Exception.ServerException;
+import Server.Server;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived connection to the coordination port of a peer server, shared by every thread talking to it.
+ * Requests carry a correlation id and complete a future when the reply with the same id arrives,
+ * so any number of requests can be in flight at once. Replies are read by a dedicated reader thread.
+ */
+public class PeerChannel implements Runnable {
+
+    private static final Logger logger = LogManager.getLogger(PeerChannel.class);
+
+    private final String serverId;
+    private final Socket socket;
+    private final OutputStream outputStream;
+    private final LineFramer framer;
+    private final ConcurrentHashMap<String, CompletableFuture<JSONObject>> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    private volatile long lastUsed;
+    private volatile boolean open = true;
+
+    PeerChannel(Server server) throws IOException {
+        this.serverId = server.getId();
+        this.socket = new Socket();
+        this.socket.connect(new InetSocketAddress(server.getAddress(), server.getPort()), (int) ServerProperties.CONN_TIMEOUT);
+        this.socket.setTcpNoDelay(true);
+        this.outputStream = new BufferedOutputStream(socket.getOutputStream());
+        this.framer = new LineFramer(socket.getInputStream(), ServerProperties.SERVER_MAX_FRAME_LENGTH);
+        this.lastUsed = System.currentTimeMillis();
+        Thread reader = new Thread(this, "Peer-Channel-Reader-" + serverId);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public String getServerId() {
+        return serverId;
+    }
+
+    /**
+     * Write a message that expects no reply.
+     *
+     * @param message - Message.
+     * @throws IOException
+     */
+    public void send(JSONObject message) throws IOException {
+        write(Messaging.frame(message));
+    }
+
+    /**
+     * Send a request tagged with a new correlation id.
+     *
+     * @param request - Request. Not modified; it may be shared with other channels.
+     * @return - Future completed with the reply, or exceptionally when the channel fails, the reply times out or
+     * the request failed on the server.
+     * @throws IOException - If the request could not be written.
+     */
+    @SuppressWarnings("unchecked") // JSONObject is a raw HashMap.
+    public CompletableFuture<JSONObject> request(JSONObject request) throws IOException {
+        String correlationId = String.valueOf(nextCorrelationId.incrementAndGet());
+        JSONObject message = new JSONObject(request);
+        message.put(ServerConstants.CORRELATION_ID, correlationId);
+
+        CompletableFuture<JSONObject> reply = new CompletableFuture<>();
+        pendingRequests.put(correlationId, reply);
+        try {
+            write(Messaging.frame(message));
+        } catch (IOException e) {
+            pendingRequests.remove(correlationId);
+            throw e;
+        }
+        return reply.orTimeout(ServerProperties.CONN_TIMEOUT, TimeUnit.MILLISECONDS)
+                .whenComplete((response, error) -> pendingRequests.remove(correlationId));
+    }
+
+    private void write(byte[] frame) throws IOException {
+        if (!open) {
+            throw new IOException("Channel to server " + serverId + " is closed");
+        }
+        try {
+            synchronized (outputStream) {
+                outputStream.write(frame);
+                outputStream.flush();
+            }
+            lastUsed = System.currentTimeMillis();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read replies and hand each one to the request waiting for it.
+     */
+    @Override
+    public void run() {
+        try {
+            while (framer.next()) {
+                JSONObject reply = Messaging.decodeServerMessage(
+                        framer.getBuffer(), framer.getFrameOffset(), framer.getFrameLength());
+                lastUsed = System.currentTimeMillis();
+                CompletableFuture<JSONObject> pending = pendingRequests.remove(
+                        String.valueOf(reply.get(ServerConstants.CORRELATION_ID)));
+                if (pending != null && reply.get(ServerConstants.ERROR) != null) {
+                    pending.completeExceptionally(new ServerException(
+                            (String) reply.get(ServerConstants.ERROR), (String) reply.get(ServerConstants.ERROR_CODE)));
+                } else if (pending != null) {
+                    pending.complete(reply);
+                } else {
+                    // The request already timed out.
+                    logger.trace("Discarding unmatched reply from server " + serverId + ": " + reply);
+                }
+            }
+        } catch (IOException | ParseException e) {
+            logger.debug("Channel to server " + serverId + " failed: " + e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public int getPendingCount() {
+        return pendingRequests.size();
+    }
+
+    /**
+     * Close the channel and fail every request still waiting for a reply.
+     */
+    public void close() {
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already closed.
+        }
+        IOException closed = new IOException("Channel to server " + serverId + " closed");
+        for (String correlationId : pendingRequests.keySet()) {
+            CompletableFuture<JSONObject> pending = pendingRequests.remove(correlationId);
+            if (pending != null) {
+                pending.completeExceptionally(closed);
+            }
+        }
+    }
+}
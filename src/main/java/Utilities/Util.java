@@ -7,13 +7,15 @@ import org.json.simple.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class Util {
     /**
      * Select n number of random servers out of a given collection of servers.
-     * Selection happens without replacement.
+     * Selection happens without replacement; all the servers are returned if there are no more than n.
      *
      * @param servers servers Collection
      * @param n       n
@@ -21,13 +23,13 @@ public class Util {
      */
     public static Collection<Server> getRandomServers(Collection<Server> servers, int n) {
         ArrayList<Server> serversList = new ArrayList<>(servers);
-        Random random = new Random();
-        Collection<Server> randomServers = new ArrayList<>();
-        //select servers randomly
-        for (int i = 0; i < n; i++) {
-            randomServers.add(serversList.get(random.nextInt(serversList.size())));
+        Random random = ThreadLocalRandom.current();
+        int count = Math.min(n, serversList.size());
+        //partial Fisher-Yates shuffle: the first count servers are a uniform sample
+        for (int i = 0; i < count; i++) {
+            Collections.swap(serversList, i, i + random.nextInt(serversList.size() - i));
         }
-        return randomServers;
+        return new ArrayList<>(serversList.subList(0, count));
     }
 
     /**
@@ -0,0 +1,176 @@
+package ClientHandler;
+
+import Constants.ChatServerConstants.ClientConstants;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    private static EncodedFrame message(String content) {
+        HashMap<String, String> message = new HashMap<>();
+        message.put(ClientConstants.TYPE, ClientConstants.TYPE_MESSAGE);
+        message.put(ClientConstants.CONTENT, content);
+        return EncodedFrame.of(new JSONObject(message));
+    }
+
+    private static EncodedFrame roomChange(String identity, String former, String roomId) {
+        HashMap<String, String> roomChange = new HashMap<>();
+        roomChange.put(ClientConstants.TYPE, ClientConstants.CHANGE_ROOM);
+        roomChange.put(ClientConstants.IDENTITY, identity);
+        roomChange.put(ClientConstants.FORMER_ROOM, former);
+        roomChange.put(ClientConstants.ROOM_ID, roomId);
+        return EncodedFrame.of(new JSONObject(roomChange));
+    }
+
+    private static List<EncodedFrame> drain(OutboundQueue queue) {
+        List<EncodedFrame> frames = new ArrayList<>();
+        queue.drainTo(frames);
+        return frames;
+    }
+
+    @Test
+    public void dropOldestDiscardsTheHead() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST);
+        EncodedFrame first = message("1");
+        EncodedFrame second = message("2");
+        EncodedFrame third = message("3");
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertTrue(queue.offer(third));
+
+        List<EncodedFrame> frames = drain(queue);
+        assertEquals(List.of(second, third), frames);
+        assertEquals(1, queue.getDroppedFrames());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void disconnectRejectsOnceFull() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.SlowConsumerPolicy.DISCONNECT);
+        assertTrue(queue.offer(message("1")));
+        assertFalse(queue.offer(message("2")));
+        assertEquals(1, queue.getDepth());
+    }
+
+    @Test
+    public void conflateReplacesTheRoomChangeWhereItStands() {
+        OutboundQueue queue = new OutboundQueue(3, OutboundQueue.SlowConsumerPolicy.CONFLATE);
+        EncodedFrame aliceToRoomA = roomChange("Alice", "MainHall-s1", "roomA");
+        EncodedFrame bob = roomChange("Bob", "MainHall-s1", "roomA");
+        EncodedFrame text = message("hi");
+        EncodedFrame aliceToRoomB = roomChange("Alice", "roomA", "roomB");
+        queue.offer(aliceToRoomA);
+        queue.offer(bob);
+        queue.offer(text);
+        assertTrue(queue.offer(aliceToRoomB));
+
+        // Alice's latest room change stays ahead of the frames queued after her first one.
+        assertEquals(List.of(aliceToRoomB, bob, text), drain(queue));
+        assertEquals(1, queue.getDroppedFrames());
+    }
+
+    @Test
+    public void conflateDropsTheOldestWithoutAMatch() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.SlowConsumerPolicy.CONFLATE);
+        EncodedFrame first = message("1");
+        EncodedFrame second = roomChange("Alice", "MainHall-s1", "roomA");
+        EncodedFrame third = roomChange("Bob", "MainHall-s1", "roomA");
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(third);
+
+        assertEquals(List.of(second, third), drain(queue));
+    }
+
+    @Test
+    public void closedQueueDiscardsFramesAndKeepsTheWriter() {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST);
+        EncodedFrame queued = message("1");
+        queue.offer(queued);
+        assertTrue(queue.claimWriter());
+        queue.close();
+        assertTrue(queue.offer(message("2")));
+
+        assertEquals(List.of(queued), drain(queue));
+        assertTrue(queue.isClosed());
+        assertFalse(queue.releaseWriter());
+        assertFalse(queue.claimWriter());
+    }
+
+    @Test
+    public void writerIsReleasedOnceNothingIsQueued() {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST);
+        queue.offer(message("1"));
+        assertTrue(queue.claimWriter());
+        assertFalse(queue.claimWriter());
+
+        queue.offer(message("2"));
+        assertFalse(queue.releaseWriter());
+        assertEquals(2, drain(queue).size());
+        assertTrue(queue.releaseWriter());
+        assertTrue(queue.claimWriter());
+    }
+
+    @Test
+    public void everyFrameIsWrittenByOneWriterAtATime() throws InterruptedException {
+        int senders = 8;
+        int framesPerSender = 10000;
+        OutboundQueue queue = new OutboundQueue(senders * framesPerSender, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST);
+        AtomicInteger written = new AtomicInteger();
+        AtomicInteger writers = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        ExecutorService writerPool = Executors.newCachedThreadPool();
+        Runnable writer = () -> {
+            if (writers.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            List<EncodedFrame> frames = new ArrayList<>();
+            while (true) {
+                if (queue.drainTo(frames) > 0) {
+                    written.addAndGet(frames.size());
+                    frames.clear();
+                } else {
+                    writers.decrementAndGet();
+                    if (queue.releaseWriter()) {
+                        return;
+                    }
+                    writers.incrementAndGet();
+                }
+            }
+        };
+        CountDownLatch sent = new CountDownLatch(senders);
+        for (int i = 0; i < senders; i++) {
+            new Thread(() -> {
+                for (int j = 0; j < framesPerSender; j++) {
+                    queue.offer(message(String.valueOf(j)));
+                    if (queue.claimWriter()) {
+                        writerPool.execute(writer);
+                    }
+                }
+                sent.countDown();
+            }).start();
+        }
+
+        assertTrue(sent.await(30, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 30000;
+        while (written.get() < senders * framesPerSender && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        writerPool.shutdown();
+        assertEquals(senders * framesPerSender, written.get());
+        assertEquals(0, overlaps.get());
+    }
+}
@@ -0,0 +1,181 @@
+package Consensus;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+import Server.ServerState;
+import org.json.simple.JSONObject;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Answers of server s2, of s1, s2 and s3, to lease renewals and pre-votes, on a clock the test moves.
+ */
+public class LeaderLeaseTest {
+
+    private long now = 0;
+    private LeaderLease lease;
+
+    @BeforeClass
+    public static void setUpServers() throws IOException {
+        File conf = File.createTempFile("servers", ".conf");
+        conf.deleteOnExit();
+        Files.write(conf.toPath(), List.of("s1\tlocalhost\t4444\t5555", "s2\tlocalhost\t4445\t5556",
+                "s3\tlocalhost\t4446\t5557"));
+        ServerState.getServerState().initialize("s2", conf.getPath());
+    }
+
+    @Before
+    public void setUp() {
+        ServerProperties.init();
+        ServerState.getServerState().setCurrentLeader(null);
+        lease = new LeaderLease(() -> now);
+    }
+
+    private static JSONObject message(String kind, String senderId, long term) {
+        HashMap<String, String> message = new HashMap<>();
+        message.put(ServerConstants.TYPE, ServerConstants.TYPE_BULLY);
+        message.put(ServerConstants.KIND, kind);
+        message.put(ServerConstants.SERVER_ID, senderId);
+        message.put(ServerConstants.TERM, String.valueOf(term));
+        return new JSONObject(message);
+    }
+
+    private boolean renew(String senderId, long term) {
+        JSONObject reply = lease.onRenewal(message(ServerConstants.KIND_LEASE, senderId, term));
+        assertEquals(String.valueOf(lease.getTerm()), reply.get(ServerConstants.TERM));
+        return Boolean.parseBoolean((String) reply.get(ServerConstants.GRANTED));
+    }
+
+    private boolean preVote() {
+        JSONObject reply = lease.onPreVote(message(ServerConstants.KIND_PRE_VOTE, "1", 0));
+        return Boolean.parseBoolean((String) reply.get(ServerConstants.GRANTED));
+    }
+
+    private static String leaderId() {
+        Leader leader = ServerState.getServerState().getCurrentLeader();
+        return leader == null ? null : leader.getId();
+    }
+
+    @Test
+    public void grantsOneLeaderUntilItsLeaseRunsOut() {
+        assertTrue(renew("3", 1));
+        assertEquals("3", leaderId());
+        assertTrue(lease.isLeaderLeaseValid());
+
+        now += ServerProperties.LEASE_DURATION;
+        assertFalse(renew("1", 1));
+        assertTrue(renew("3", 1));
+
+        now += ServerProperties.LEASE_DURATION + 1;
+        assertTrue(lease.hasLapsed("3"));
+        assertFalse(lease.isLeaderLeaseValid());
+        assertTrue(renew("1", 1));
+        assertEquals("1", leaderId());
+        assertFalse(lease.hasLapsed("1"));
+    }
+
+    @Test
+    public void refusesADeposedLeaderAfterTheLeaseRunsOut() {
+        assertTrue(renew("1", 1));
+        // Server 1 was cut off, and server 3 elected in its place.
+        assertTrue(renew("3", 2));
+        assertEquals("3", leaderId());
+
+        now += ServerProperties.LEASE_DURATION + 1;
+        assertFalse(renew("1", 1));
+        assertEquals("3", leaderId());
+        assertEquals(2, lease.getTerm());
+    }
+
+    @Test
+    public void refusesRenewalsWithoutATermOnceATermIsKnown() {
+        JSONObject renewal = message(ServerConstants.KIND_LEASE, "3", 0);
+        renewal.remove(ServerConstants.TERM);
+        JSONObject reply = lease.onRenewal(renewal);
+        assertEquals("true", reply.get(ServerConstants.GRANTED));
+
+        assertTrue(renew("1", 1));
+        now += ServerProperties.LEASE_DURATION + 1;
+        reply = lease.onRenewal(renewal);
+        assertEquals("false", reply.get(ServerConstants.GRANTED));
+        assertEquals("1", reply.get(ServerConstants.TERM));
+    }
+
+    @Test
+    public void electedLeaderStartsANewTerm() {
+        assertTrue(renew("3", 4));
+        lease.onLeaderElected("2");
+
+        assertTrue(ServerState.getServerState().amITheLeader());
+        assertEquals(5, lease.getTerm());
+        assertFalse(renew("3", 4));
+        assertTrue(ServerState.getServerState().amITheLeader());
+    }
+
+    @Test
+    public void concurrentLeadersOfATermKeepTheHigherId() {
+        lease.onLeaderElected("2");
+        assertEquals(1, lease.getTerm());
+
+        assertFalse(renew("1", 1));
+        assertTrue(ServerState.getServerState().amITheLeader());
+        assertTrue(renew("3", 1));
+        assertEquals("3", leaderId());
+    }
+
+    @Test
+    public void leaderStepsDownForANewerTerm() {
+        lease.onLeaderElected("2");
+
+        assertTrue(renew("1", 2));
+        assertFalse(ServerState.getServerState().amITheLeader());
+        assertEquals("1", leaderId());
+        assertEquals(2, lease.getTerm());
+    }
+
+    @Test
+    public void leaderStepsDownWhenRefusedForANewerTerm() {
+        lease.onLeaderElected("2");
+
+        // Refused by a server that still follows the leader of the same term.
+        lease.onRefused(message(ServerConstants.KIND_LEASE, "1", 1));
+        assertTrue(ServerState.getServerState().amITheLeader());
+
+        lease.onRefused(message(ServerConstants.KIND_LEASE, "1", 3));
+        assertNull(leaderId());
+        assertEquals(3, lease.getTerm());
+        lease.onLeaderElected("2");
+        assertEquals(4, lease.getTerm());
+    }
+
+    @Test
+    public void preVoteWaitsForTheLeaseToRunOut() {
+        assertTrue(preVote());
+        assertTrue(renew("3", 1));
+        assertFalse(preVote());
+
+        now += ServerProperties.LEASE_DURATION + 1;
+        assertTrue(preVote());
+    }
+
+    @Test
+    public void leaderRefusesPreVotesWhileItHoldsTheLease() {
+        lease.onLeaderElected("2");
+        assertFalse(preVote());
+
+        now += ServerProperties.LEASE_DURATION + 1;
+        assertTrue(preVote());
+    }
+}
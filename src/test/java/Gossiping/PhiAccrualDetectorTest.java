@@ -0,0 +1,140 @@
+package Gossiping;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PhiAccrualDetectorTest {
+
+    private static final String SERVER = "s2";
+    private static final double THRESHOLD = 8;
+    private static final int WINDOW_SIZE = 100;
+    private static final double MIN_STD_DEVIATION = 100;
+    private static final long HEARTBEAT_PERIOD = 1000;
+    // Phi when a heartbeat is as late as the mean interval: half of the intervals are longer.
+    private static final double PHI_AT_MEAN = -Math.log10(0.5);
+
+    /**
+     * Heartbeats of one server, on a clock of their own.
+     */
+    private static class Link {
+        private long now = 0;
+        private final PhiAccrualDetector detector;
+
+        private Link(long acceptablePause) {
+            detector = new PhiAccrualDetector(() -> now, WINDOW_SIZE, MIN_STD_DEVIATION, HEARTBEAT_PERIOD, acceptablePause);
+        }
+
+        /**
+         * Heartbeats at the given intervals, in turn, until the window is full.
+         */
+        private Link heartbeats(long... intervals) {
+            detector.heartbeat(SERVER);
+            for (int i = 0; i < WINDOW_SIZE; i++) {
+                now += intervals[i % intervals.length];
+                detector.heartbeat(SERVER);
+            }
+            return this;
+        }
+
+        /**
+         * Phi once the given time has passed since the last heartbeat, without moving the clock.
+         */
+        private double phiAfter(long delay) {
+            now += delay;
+            double phi = detector.phi(SERVER);
+            now -= delay;
+            return phi;
+        }
+
+        private boolean isSuspectedAfter(long delay) {
+            now += delay;
+            boolean suspected = detector.isSuspected(SERVER, THRESHOLD);
+            now -= delay;
+            return suspected;
+        }
+    }
+
+    @Test
+    public void unknownServerIsNotSuspected() {
+        Link link = new Link(0);
+        assertEquals(0.0, link.detector.phi(SERVER), 0.0);
+        assertFalse(link.detector.isSuspected(SERVER, THRESHOLD));
+    }
+
+    @Test
+    public void regularHeartbeatsAreSuspectedSoonAfterTheInterval() {
+        Link link = new Link(0).heartbeats(1000);
+
+        assertTrue(link.phiAfter(0) < 0.01);
+        assertEquals(PHI_AT_MEAN, link.phiAfter(1000), 0.01);
+        double previous = 0;
+        for (long delay = 0; delay <= 3000; delay += 100) {
+            double phi = link.phiAfter(delay);
+            assertTrue(phi >= previous);
+            previous = phi;
+        }
+        // Standard deviation at its minimum of 100: five deviations late is still tolerated, six are not.
+        assertFalse(link.isSuspectedAfter(1500));
+        assertTrue(link.isSuspectedAfter(1600));
+    }
+
+    @Test
+    public void jitteryHeartbeatsGetMoreTime() {
+        Link steady = new Link(0).heartbeats(1000);
+        // Same mean interval, with a standard deviation of 400.
+        Link jittery = new Link(0).heartbeats(600, 1400);
+
+        assertEquals(PHI_AT_MEAN, jittery.phiAfter(1000), 0.01);
+        assertTrue(jittery.phiAfter(1500) < steady.phiAfter(1500));
+        assertTrue(steady.isSuspectedAfter(2000));
+        assertFalse(jittery.isSuspectedAfter(2000));
+        assertFalse(jittery.isSuspectedAfter(3000));
+        assertTrue(jittery.isSuspectedAfter(3500));
+    }
+
+    @Test
+    public void jitterCountsWithAnAcceptablePause() {
+        Link steady = new Link(1000).heartbeats(1000);
+        Link jittery = new Link(1000).heartbeats(600, 1400);
+
+        // The pause moves the mean, not the deviation.
+        assertEquals(PHI_AT_MEAN, steady.phiAfter(2000), 0.01);
+        assertEquals(PHI_AT_MEAN, jittery.phiAfter(2000), 0.01);
+        assertFalse(steady.isSuspectedAfter(2500));
+        assertTrue(steady.isSuspectedAfter(3000));
+        assertFalse(jittery.isSuspectedAfter(3000));
+    }
+
+    @Test
+    public void longPauseIsSuspectedAndRecovers() {
+        Link link = new Link(0).heartbeats(900, 1000, 1100);
+
+        link.now += 10000;
+        assertTrue(link.detector.isSuspected(SERVER, THRESHOLD));
+        // Grows without becoming infinite, however long the pause.
+        double phi = link.detector.phi(SERVER);
+        link.now += 1_000_000;
+        assertTrue(Double.isFinite(link.detector.phi(SERVER)));
+        assertTrue(link.detector.phi(SERVER) > phi);
+
+        link.detector.heartbeat(SERVER);
+        assertFalse(link.detector.isSuspected(SERVER, THRESHOLD));
+        // The pause is one of the intervals now, and widens the distribution.
+        assertFalse(link.isSuspectedAfter(2000));
+    }
+
+    @Test
+    public void firstHeartbeatUsesTheEstimate() {
+        Link link = new Link(0);
+        link.detector.heartbeat(SERVER);
+
+        assertEquals(PHI_AT_MEAN, link.phiAfter(HEARTBEAT_PERIOD), 0.01);
+        assertTrue(link.isSuspectedAfter(3 * HEARTBEAT_PERIOD));
+
+        link.detector.remove(SERVER);
+        assertEquals(0.0, link.detector.phi(SERVER), 0.0);
+    }
+}
@@ -0,0 +1,81 @@
+package Replication;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process network between {@link RaftNode}s, for running a cluster in a single JVM.
+ * Messages are copied through their JSON text, delivered in order per receiving node, and nodes can be
+ * disconnected and reconnected to simulate failures and partitions.
+ */
+public class LocalTransport {
+
+    private final Map<String, RaftNode> nodes = new ConcurrentHashMap<>();
+    private final Map<String, ExecutorService> inboxes = new ConcurrentHashMap<>();
+    private final Set<String> disconnected = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Transport of one node.
+     *
+     * @param senderId - Id of the sending node.
+     * @return - RaftTransport
+     */
+    public RaftTransport forNode(String senderId) {
+        return (peerId, message) -> deliver(senderId, peerId, message);
+    }
+
+    public void register(RaftNode node) {
+        nodes.put(node.getId(), node);
+        inboxes.put(node.getId(), Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Local-Transport-" + node.getId());
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    public void disconnect(String nodeId) {
+        disconnected.add(nodeId);
+    }
+
+    public void reconnect(String nodeId) {
+        disconnected.remove(nodeId);
+    }
+
+    public boolean isConnected(String nodeId) {
+        return !disconnected.contains(nodeId);
+    }
+
+    private CompletableFuture<JSONObject> deliver(String senderId, String peerId, JSONObject message) {
+        RaftNode receiver = nodes.get(peerId);
+        if (receiver == null || disconnected.contains(senderId) || disconnected.contains(peerId)) {
+            return CompletableFuture.failedFuture(new IOException(peerId + " is unreachable from " + senderId));
+        }
+        JSONObject received = copy(message);
+        return CompletableFuture.supplyAsync(() -> receiver.handle(received), inboxes.get(peerId))
+                .thenCompose(reply -> reply)
+                .thenApply(reply -> {
+                    if (disconnected.contains(senderId) || disconnected.contains(peerId)) {
+                        throw new CompletionException(new IOException("Reply from " + peerId + " lost"));
+                    }
+                    return reply == null ? null : copy(reply);
+                });
+    }
+
+    private static JSONObject copy(JSONObject message) {
+        try {
+            return (JSONObject) new JSONParser().parse(message.toJSONString());
+        } catch (ParseException e) {
+            throw new CompletionException(e);
+        }
+    }
+}
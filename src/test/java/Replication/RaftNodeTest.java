@@ -0,0 +1,392 @@
+package Replication;
+
+import Constants.ChatServerConstants.ServerConstants;
+import Constants.ServerProperties;
+import Server.ServerState;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs raft clusters in this JVM over a {@link LocalTransport}, failing and reconnecting nodes, and checks that
+ * every node ends up with the same log and applies the same commands in the same order.
+ */
+public class RaftNodeTest {
+
+    private static final String VALUE = "value";
+    private static final long TIMEOUT = 30000;
+
+    private final LocalTransport network = new LocalTransport();
+    private final List<RaftNode> nodes = new ArrayList<>();
+    private final List<RecordingStateMachine> stateMachines = new ArrayList<>();
+    private long snapshotThreshold;
+
+    @Before
+    public void setUp() {
+        ServerProperties.init();
+        snapshotThreshold = ServerProperties.RAFT_SNAPSHOT_THRESHOLD;
+    }
+
+    @After
+    public void tearDown() {
+        nodes.forEach(RaftNode::stop);
+        ServerProperties.RAFT_SNAPSHOT_THRESHOLD = snapshotThreshold;
+    }
+
+    @Test
+    public void appliesCommandsInTheOrderProposed() throws Exception {
+        startCluster(3);
+        RaftNode leader = awaitLeader();
+        propose(leader, 0, 500);
+
+        awaitApplied(leader.getCommitIndex());
+        assertAppliedEverywhere(values(0, 500));
+        assertLogsMatch();
+    }
+
+    @Test
+    public void newLeaderKeepsTheCommittedCommands() throws Exception {
+        startCluster(3);
+        RaftNode leader = awaitLeader();
+        propose(leader, 0, 250);
+
+        network.disconnect(leader.getId());
+        RaftNode newLeader = awaitLeader();
+        assertTrue(newLeader.getCurrentTerm() > leader.getCurrentTerm());
+        propose(newLeader, 250, 500);
+        network.reconnect(leader.getId());
+
+        awaitApplied(newLeader.getCommitIndex());
+        assertFalse(leader.isLeader());
+        assertEquals(newLeader.getCommitIndex(), leader.getCommitIndex());
+        assertAppliedEverywhere(values(0, 500));
+        assertLogsMatch();
+    }
+
+    @Test
+    public void isolatedLeaderDiscardsItsUncommittedCommands() throws Exception {
+        startCluster(3);
+        RaftNode leader = awaitLeader();
+        propose(leader, 0, 10);
+
+        network.disconnect(leader.getId());
+        // Appended to the isolated leader's log, but never replicated to a majority.
+        List<CompletableFuture<Long>> lost = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            lost.add(leader.propose(command("lost" + i)));
+        }
+        RaftNode newLeader = awaitLeader();
+        propose(newLeader, 10, 20);
+        network.reconnect(leader.getId());
+
+        for (CompletableFuture<Long> proposal : lost) {
+            try {
+                proposal.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("Uncommitted command applied");
+            } catch (ExecutionException e) {
+                // expected: the old leader stepped down and its entries were overwritten
+            }
+        }
+        awaitApplied(newLeader.getCommitIndex());
+        assertAppliedEverywhere(values(0, 20));
+        assertLogsMatch();
+    }
+
+    @Test
+    public void laggingFollowerCatchesUpFromASnapshot() throws Exception {
+        ServerProperties.RAFT_SNAPSHOT_THRESHOLD = 50;
+        startCluster(3);
+        RaftNode leader = awaitLeader();
+        RaftNode follower = nodes.stream().filter(node -> node != leader).findFirst().get();
+        propose(leader, 0, 20);
+
+        network.disconnect(follower.getId());
+        propose(leader, 20, 300);
+        assertTrue(leader.getSnapshotIndex() > follower.getLastApplied());
+        network.reconnect(follower.getId());
+
+        awaitApplied(leader.getCommitIndex());
+        assertTrue(follower.getSnapshotIndex() > 0);
+        assertAppliedEverywhere(values(0, 300));
+        assertLogsMatch();
+    }
+
+    @Test
+    public void laggingFollowerDropsEntriesDeletedInTheCompactedLog() throws Exception {
+        ServerProperties.RAFT_SNAPSHOT_THRESHOLD = 50;
+        File conf = File.createTempFile("servers", ".conf");
+        conf.deleteOnExit();
+        Files.write(conf.toPath(), List.of("s1\tlocalhost\t4444\t5555", "s2\tlocalhost\t4445\t5556",
+                "s3\tlocalhost\t4446\t5557"));
+        ServerState serverState = ServerState.getServerState();
+        serverState.initialize("s3", conf.getPath());
+        serverState.addIdentity("carol", serverState.getServerId());
+        // Node n3 applies to ServerState. It is cut off until the others hold a longer log, so it is never elected.
+        startCluster(List.of(new RegistryModel(), new RegistryModel(), new RegistryStateMachine()));
+        RaftNode follower = nodes.get(2);
+        network.disconnect(follower.getId());
+        propose(awaitLeader(), registryEntry(ServerConstants.KIND_INFORM_NEW_IDENTITY, ServerConstants.IDENTITY, "filler"));
+        network.reconnect(follower.getId());
+        RaftNode leader = awaitLeader();
+        awaitLeaderKnown(leader);
+
+        propose(leader, registryEntry(ServerConstants.KIND_INFORM_NEW_IDENTITY, ServerConstants.IDENTITY, "alice"));
+        propose(leader, registryEntry(ServerConstants.KIND_INFORM_NEW_IDENTITY, ServerConstants.IDENTITY, "bob"));
+        propose(leader, registryEntry(ServerConstants.KIND_INFORM_NEW_ROOM, ServerConstants.ROOM_ID, "roomA"));
+        awaitApplied(leader.getCommitIndex());
+        assertTrue(serverState.containsIdentity("alice"));
+        assertTrue(serverState.hasRoomId("roomA"));
+
+        network.disconnect(follower.getId());
+        propose(leader, registryEntry(ServerConstants.KIND_INFORM_DELETE_IDENTITY, ServerConstants.IDENTITY, "alice"));
+        propose(leader, registryEntry(ServerConstants.KIND_INFORM_DELETE_ROOM, ServerConstants.ROOM_ID, "roomA"));
+        for (int i = 0; i < 100; i++) {
+            leader.propose(registryEntry(ServerConstants.KIND_INFORM_NEW_IDENTITY, ServerConstants.IDENTITY, "user" + i));
+        }
+        propose(leader, registryEntry(ServerConstants.KIND_INFORM_NEW_IDENTITY, ServerConstants.IDENTITY, "dave"));
+        assertTrue(leader.getSnapshotIndex() > follower.getLastApplied());
+        network.reconnect(follower.getId());
+
+        awaitApplied(leader.getCommitIndex());
+        assertTrue(follower.getSnapshotIndex() > 0);
+        assertFalse(serverState.containsIdentity("alice"));
+        assertFalse(serverState.hasRoomId("roomA"));
+        assertTrue(serverState.containsIdentity("bob"));
+        assertTrue(serverState.containsIdentity("dave"));
+        assertTrue(serverState.containsIdentity("carol"));
+    }
+
+    @Test
+    public void followerForwardsCommandsToTheLeader() throws Exception {
+        startCluster(3);
+        RaftNode leader = awaitLeader();
+        awaitLeaderKnown(leader);
+        RaftNode follower = nodes.stream().filter(node -> node != leader).findFirst().get();
+
+        long index = follower.submit(command("c0")).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        awaitApplied(index);
+        assertAppliedEverywhere(values(0, 1));
+    }
+
+    private void startCluster(int size) {
+        for (int i = 0; i < size; i++) {
+            stateMachines.add(new RecordingStateMachine());
+        }
+        startCluster(stateMachines);
+    }
+
+    private void startCluster(List<? extends StateMachine> nodeStateMachines) {
+        int size = nodeStateMachines.size();
+        for (int i = 1; i <= size; i++) {
+            List<String> peerIds = new ArrayList<>();
+            for (int j = 1; j <= size; j++) {
+                if (j != i) {
+                    peerIds.add("n" + j);
+                }
+            }
+            RaftNode node = new RaftNode("n" + i, peerIds, network.forNode("n" + i), nodeStateMachines.get(i - 1));
+            network.register(node);
+            nodes.add(node);
+        }
+        nodes.forEach(RaftNode::start);
+    }
+
+    private RaftNode awaitLeader() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            for (RaftNode node : nodes) {
+                if (node.isLeader() && network.isConnected(node.getId())) {
+                    return node;
+                }
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("No leader elected: " + nodes);
+    }
+
+    private void awaitLeaderKnown(RaftNode leader) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!nodes.stream().allMatch(node -> leader.getId().equals(node.getLeaderId()))) {
+            assertTrue("Leader unknown: " + nodes, System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private void awaitApplied(long index) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!nodes.stream().allMatch(node -> node.getLastApplied() >= index)) {
+            assertTrue("Not applied up to " + index + ": " + nodes, System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private void assertAppliedEverywhere(List<String> expected) {
+        for (int i = 0; i < nodes.size(); i++) {
+            assertEquals(nodes.get(i).toString(), expected, stateMachines.get(i).getValues());
+        }
+    }
+
+    /**
+     * Every node has the same commit index, and the same term at every log index that no node has compacted.
+     */
+    private void assertLogsMatch() {
+        long commitIndex = nodes.get(0).getCommitIndex();
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        for (RaftNode node : nodes) {
+            assertEquals(node.toString(), commitIndex, node.getCommitIndex());
+            assertEquals(node.toString(), commitIndex, node.getLastIndex());
+            from = Math.max(from, node.getSnapshotIndex());
+            to = Math.min(to, node.getLastIndex());
+        }
+        for (long index = from; index <= to; index++) {
+            long term = nodes.get(0).getTermAt(index);
+            for (RaftNode node : nodes) {
+                assertEquals("Term at " + index + " of " + node, term, node.getTermAt(index));
+            }
+        }
+    }
+
+    private static void propose(RaftNode leader, int from, int to) throws Exception {
+        List<CompletableFuture<Long>> applied = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            applied.add(leader.propose(command("c" + i)));
+        }
+        CompletableFuture.allOf(applied.toArray(new CompletableFuture<?>[0])).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static void propose(RaftNode leader, JSONObject command) throws Exception {
+        leader.propose(command).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static JSONObject command(String value) {
+        HashMap<String, Object> command = new HashMap<>();
+        command.put(VALUE, value);
+        return new JSONObject(command);
+    }
+
+    /**
+     * Registry change of server s1.
+     */
+    private static JSONObject registryEntry(String kind, String key, String value) {
+        HashMap<String, String> entry = new HashMap<>();
+        entry.put(ServerConstants.TYPE, ServerConstants.TYPE_GOSSIP);
+        entry.put(ServerConstants.KIND, kind);
+        entry.put(ServerConstants.SERVER_ID, "1");
+        entry.put(key, value);
+        entry.put(ServerConstants.ROOM_OWNER, "owner");
+        return new JSONObject(entry);
+    }
+
+    private static List<String> values(int from, int to) {
+        List<String> values = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            values.add("c" + i);
+        }
+        return values;
+    }
+
+    /**
+     * Keeps every applied value, in order.
+     */
+    private static class RecordingStateMachine implements StateMachine {
+        private final List<String> values = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void apply(JSONObject command) {
+            values.add((String) command.get(VALUE));
+        }
+
+        @Override
+        public JSONObject snapshot() {
+            HashMap<String, Object> snapshot = new HashMap<>();
+            snapshot.put(VALUE, getValues());
+            return new JSONObject(snapshot);
+        }
+
+        @Override
+        public void restore(JSONObject snapshot) {
+            synchronized (values) {
+                values.clear();
+                for (Object value : (JSONArray) snapshot.get(VALUE)) {
+                    values.add((String) value);
+                }
+            }
+        }
+
+        List<String> getValues() {
+            synchronized (values) {
+                return new ArrayList<>(values);
+            }
+        }
+    }
+
+    /**
+     * Identities and rooms, kept like {@link RegistryStateMachine} keeps them in ServerState, for the nodes that
+     * don't share its ServerState.
+     */
+    private static class RegistryModel implements StateMachine {
+        private final Map<String, String> identities = new HashMap<>();
+        private final Map<String, JSONObject> rooms = new HashMap<>();
+
+        @Override
+        public synchronized void apply(JSONObject command) {
+            switch ((String) command.get(ServerConstants.KIND)) {
+                case ServerConstants.KIND_INFORM_NEW_IDENTITY:
+                    identities.putIfAbsent((String) command.get(ServerConstants.IDENTITY), (String) command.get(ServerConstants.SERVER_ID));
+                    break;
+                case ServerConstants.KIND_INFORM_DELETE_IDENTITY:
+                    identities.remove((String) command.get(ServerConstants.IDENTITY));
+                    break;
+                case ServerConstants.KIND_INFORM_NEW_ROOM:
+                    rooms.put((String) command.get(ServerConstants.ROOM_ID), command);
+                    break;
+                case ServerConstants.KIND_INFORM_DELETE_ROOM:
+                    rooms.remove((String) command.get(ServerConstants.ROOM_ID));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown registry change: " + command);
+            }
+        }
+
+        @Override
+        public synchronized JSONObject snapshot() {
+            HashMap<String, Object> snapshot = new HashMap<>();
+            snapshot.put(ServerConstants.IDENTITIES, new JSONObject(new HashMap<>(identities)));
+            snapshot.put("rooms", new ArrayList<>(rooms.values()));
+            return new JSONObject(snapshot);
+        }
+
+        @Override
+        public synchronized void restore(JSONObject snapshot) {
+            identities.clear();
+            for (Object element : ((Map<?, ?>) snapshot.get(ServerConstants.IDENTITIES)).entrySet()) {
+                Map.Entry<?, ?> identity = (Map.Entry<?, ?>) element;
+                identities.put((String) identity.getKey(), (String) identity.getValue());
+            }
+            rooms.clear();
+            for (Object element : (List<?>) snapshot.get("rooms")) {
+                JSONObject room = (JSONObject) element;
+                rooms.put((String) room.get(ServerConstants.ROOM_ID), room);
+            }
+        }
+    }
+}
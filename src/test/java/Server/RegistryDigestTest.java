@@ -0,0 +1,146 @@
+package Server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegistryDigestTest {
+
+    private static RegistryDigest digestOf(List<String> identities, List<Room> rooms) {
+        RegistryDigest digest = new RegistryDigest(256);
+        identities.forEach(identity -> digest.addIdentity(identity, "s1"));
+        rooms.forEach(digest::addRoom);
+        return digest;
+    }
+
+    private static List<String> identities(int count) {
+        List<String> identities = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            identities.add("user" + i);
+        }
+        return identities;
+    }
+
+    /**
+     * Buckets whose hashes differ, found by walking down from the root through the nodes that differ only.
+     */
+    private static List<Integer> differingBuckets(RegistryDigest a, RegistryDigest b) {
+        List<Integer> nodes = new ArrayList<>();
+        if (a.getRoot() != b.getRoot()) {
+            nodes.add(0);
+        }
+        for (int level = 1; level <= a.getDepth(); level++) {
+            List<Integer> children = new ArrayList<>();
+            for (int node : nodes) {
+                for (int child = node * RegistryDigest.FANOUT; child < (node + 1) * RegistryDigest.FANOUT; child++) {
+                    if (a.getHash(level, child) != b.getHash(level, child)) {
+                        children.add(child);
+                    }
+                }
+            }
+            nodes = children;
+        }
+        return nodes;
+    }
+
+    @Test
+    public void roundsBucketsUpToAPowerOfTheFanout() {
+        assertEquals(1, new RegistryDigest(1).getDepth());
+        assertEquals(16, new RegistryDigest(16).getBucketCount());
+        assertEquals(2, new RegistryDigest(17).getDepth());
+        assertEquals(256, new RegistryDigest(256).getBucketCount());
+        assertEquals(4096, new RegistryDigest(1000).getBucketCount());
+    }
+
+    @Test
+    public void sameEntriesGiveTheSameHashesInAnyOrder() {
+        List<String> identities = identities(500);
+        List<Room> rooms = List.of(new Room("s1", "roomA", "user1"), new Room("s2", "roomB", "user2"));
+        RegistryDigest digest = digestOf(identities, rooms);
+
+        List<String> reversed = new ArrayList<>(identities);
+        Collections.reverse(reversed);
+        RegistryDigest other = digestOf(reversed, List.of(rooms.get(1), rooms.get(0)));
+
+        assertNotEquals(0, digest.getRoot());
+        for (int level = 0; level <= digest.getDepth(); level++) {
+            for (int index = 0; index < 1 << (4 * level); index++) {
+                assertEquals(digest.getHash(level, index), other.getHash(level, index));
+            }
+        }
+    }
+
+    @Test
+    public void removingEveryEntryEmptiesTheDigest() {
+        RegistryDigest digest = digestOf(identities(100), List.of(new Room("s1", "roomA", "user1")));
+        for (String identity : identities(100)) {
+            digest.removeIdentity(identity, "s1");
+        }
+        digest.removeRoom(new Room("s1", "roomA", "user1"));
+        assertEquals(0, digest.getRoot());
+        assertTrue(differingBuckets(digest, new RegistryDigest(256)).isEmpty());
+    }
+
+    @Test
+    public void parentHashIsTheXorOfItsChildren() {
+        RegistryDigest digest = digestOf(identities(1000), List.of());
+        for (int level = 0; level < digest.getDepth(); level++) {
+            for (int index = 0; index < 1 << (4 * level); index++) {
+                long children = 0;
+                for (int child = index * RegistryDigest.FANOUT; child < (index + 1) * RegistryDigest.FANOUT; child++) {
+                    children ^= digest.getHash(level + 1, child);
+                }
+                assertEquals(digest.getHash(level, index), children);
+            }
+        }
+    }
+
+    @Test
+    public void walkFindsTheBucketsThatDiffer() {
+        RegistryDigest digest = digestOf(identities(1000), List.of());
+        RegistryDigest other = digestOf(identities(1000), List.of());
+        // Same identity on another server, a missing identity and a room only one side has.
+        other.removeIdentity("user7", "s1");
+        other.addIdentity("user7", "s2");
+        other.removeIdentity("user500", "s1");
+        Room room = new Room("s2", "roomC", "user9");
+        other.addRoom(room);
+
+        List<Integer> expected = new ArrayList<>();
+        for (int bucket : new int[]{digest.bucketOf(true, "user7"), digest.bucketOf(true, "user500"), digest.bucketOf(false, "roomC")}) {
+            if (!expected.contains(bucket)) {
+                expected.add(bucket);
+            }
+        }
+        expected.sort(null);
+        assertEquals(expected, differingBuckets(digest, other));
+    }
+
+    @Test
+    public void roomOwnerIsPartOfTheHash() {
+        RegistryDigest digest = digestOf(List.of(), List.of(new Room("s1", "roomA", "user1")));
+        RegistryDigest other = digestOf(List.of(), List.of(new Room("s1", "roomA", "user2")));
+        assertNotEquals(digest.getRoot(), other.getRoot());
+        assertEquals(List.of(digest.bucketOf(false, "roomA")), differingBuckets(digest, other));
+    }
+
+    @Test
+    public void bucketsAreSpreadEvenly() {
+        RegistryDigest digest = new RegistryDigest(16);
+        int[] counts = new int[digest.getBucketCount()];
+        for (String identity : identities(16000)) {
+            int bucket = digest.bucketOf(true, identity);
+            assertTrue(bucket >= 0 && bucket < counts.length);
+            counts[bucket]++;
+        }
+        for (int count : counts) {
+            assertTrue("Bucket with " + count + " of 16000", count > 800 && count < 1200);
+        }
+    }
+}
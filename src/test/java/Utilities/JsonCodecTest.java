@@ -0,0 +1,162 @@
+package Utilities;
+
+import ClientHandler.ClientRequest;
+import Constants.ChatServerConstants.ClientConstants;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class JsonCodecTest {
+
+    private static Map<String, Object> message(String content) {
+        Map<String, Object> message = new HashMap<>();
+        message.put(ClientConstants.TYPE, ClientConstants.TYPE_MESSAGE);
+        message.put(ClientConstants.CONTENT, content);
+        return message;
+    }
+
+    /**
+     * Encode with JsonCodec and read the frame back with json-simple.
+     */
+    private static JSONObject roundTrip(Map<String, Object> map) throws ParseException {
+        byte[] frame = JsonCodec.encode(map);
+        assertEquals('\n', frame[frame.length - 1]);
+        return (JSONObject) new JSONParser().parse(new String(frame, 0, frame.length - 1, StandardCharsets.UTF_8));
+    }
+
+    private static ClientRequest decode(String line) throws ParseException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return JsonCodec.decodeClientRequest(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void encodesControlCharsAmongMultibyteChars() throws Exception {
+        // Control chars take six bytes, more than any multibyte char. Grow the string across the end of a fresh
+        // buffer, so that it ends within the few bytes a smaller reservation would be short of.
+        StringBuilder content = new StringBuilder("\u0001");
+        for (int i = 0; i < 200; i++) {
+            content.append('中');
+            Map<String, Object> map = message(content.toString());
+            FutureTask<byte[]> encoding = new FutureTask<>(() -> JsonCodec.encode(map));
+            // Each thread starts with a buffer of its own.
+            new Thread(encoding).start();
+            byte[] frame = encoding.get();
+            JSONObject decoded = (JSONObject) new JSONParser().parse(new String(frame, StandardCharsets.UTF_8));
+            assertEquals(content.toString(), decoded.get(ClientConstants.CONTENT));
+        }
+    }
+
+    @Test
+    public void encodesMixedControlAndMultibyteChars() throws ParseException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            content.append((char) (i % 0x20)).append("é😀中");
+        }
+        assertEquals(content.toString(), roundTrip(message(content.toString())).get(ClientConstants.CONTENT));
+    }
+
+    @Test
+    public void encodesOnlyControlChars() throws ParseException {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append((char) (i % 0x20));
+        }
+        assertEquals(content.toString(), roundTrip(message(content.toString())).get(ClientConstants.CONTENT));
+    }
+
+    @Test
+    public void encodesEscapesAndNestedValues() throws ParseException {
+        Map<String, Object> map = message("quote \" backslash \\ slash / tab \t newline \n");
+        map.put("rooms", List.of("MainHall-s1", "roomA"));
+        map.put("nested", Map.of("count", 3, "flag", true));
+        map.put("missing", null);
+
+        JSONObject decoded = roundTrip(map);
+        assertEquals(map.get(ClientConstants.CONTENT), decoded.get(ClientConstants.CONTENT));
+        assertEquals(List.of("MainHall-s1", "roomA"), decoded.get("rooms"));
+        JSONObject nested = (JSONObject) decoded.get("nested");
+        assertEquals(3L, nested.get("count"));
+        assertEquals(true, nested.get("flag"));
+        assertNull(decoded.get("missing"));
+    }
+
+    @Test
+    public void encodesLikeJsonSimple() {
+        Map<String, Object> map = message("plain text");
+        JSONObject object = new JSONObject(map);
+        byte[] expected = (object.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, JsonCodec.encode(object));
+    }
+
+    @Test
+    public void encodesUnpairedSurrogatesAsString() throws ParseException {
+        String content = "a\uD800b\uDC00c";
+        String expected = new String(content.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+        assertEquals(expected, roundTrip(message(content)).get(ClientConstants.CONTENT));
+    }
+
+    @Test
+    public void encodesLargeMessagesRepeatedly() throws ParseException {
+        String large = "中".repeat(50_000);
+        assertEquals(large, roundTrip(message(large)).get(ClientConstants.CONTENT));
+        // The thread's buffer is released after a large message, and the next one still fits.
+        assertEquals("small", roundTrip(message("small")).get(ClientConstants.CONTENT));
+    }
+
+    @Test
+    public void decodesClientRequests() throws ParseException {
+        ClientRequest request = decode("{\"type\":\"movejoin\",\"former\":\"roomA\",\"roomid\":\"roomB\",\"identity\":\"Al\\u00e9\"}");
+        assertEquals(ClientConstants.TYPE_MOVE_JOIN, request.getType());
+        assertEquals("roomA", request.getFormer());
+        assertEquals("roomB", request.getRoomId());
+        assertEquals("Alé", request.getIdentity());
+
+        ClientRequest message = decode(" { \"type\" : \"message\", \"content\" : \"中 \\\"hi\\\" 😀\", \"extra\": [1, {\"a\": null}] } ");
+        assertEquals("中 \"hi\" 😀", message.getContent());
+    }
+
+    @Test
+    public void decodesObjects() throws ParseException {
+        byte[] bytes = "xx{\"kind\":\"delta\",\"entries\":[{\"id\":\"a\"},\"b\"],\"n\":-1.5e2,\"ok\":false}yy".getBytes(StandardCharsets.UTF_8);
+        JSONObject object = JsonCodec.decodeObject(bytes, 2, bytes.length - 4);
+        assertEquals("delta", object.get("kind"));
+        JSONArray entries = (JSONArray) object.get("entries");
+        assertEquals("a", ((JSONObject) entries.get(0)).get("id"));
+        assertEquals("b", entries.get(1));
+        assertEquals(-150.0, ((Number) object.get("n")).doubleValue(), 0.0);
+        assertEquals(false, object.get("ok"));
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        String[] malformed = {
+                "{\"type\":\"message\"",
+                "{\"type\" \"message\"}",
+                "{\"type\":\"message\"} trailing",
+                "[\"type\"]",
+                "{\"type\":\"bad \\x escape\"}",
+                ""
+        };
+        for (String line : malformed) {
+            try {
+                decode(line);
+                fail("Accepted " + line);
+            } catch (ParseException e) {
+                // expected
+            }
+        }
+    }
+}